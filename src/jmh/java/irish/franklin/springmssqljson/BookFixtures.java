@@ -0,0 +1,37 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import irish.franklin.springmssqljson.models.Book;
+
+/**
+ * Books for the benchmarks, sized by the amount of additionalProperties members.
+ */
+final class BookFixtures {
+    private BookFixtures() {
+    }
+
+    static Book book(int id, int additionalProperties) {
+        ObjectNode properties = JsonNodeFactory.instance.objectNode();
+        for (int i = 0; i < additionalProperties; i++) {
+            switch (i % 3) {
+                case 0:
+                    properties.put("property" + i, "value " + i);
+                    break;
+                case 1:
+                    properties.put("property" + i, i);
+                    break;
+                default:
+                    properties.putObject("property" + i).put("nested", i % 2 == 0);
+            }
+        }
+        return Book.builder()
+                .id(id)
+                .name("Benchmark Book " + id)
+                .description("Benchmark Book Description " + id)
+                .author("Benchmark Author")
+                .language(id % 2 == 0 ? "English" : "Spanish")
+                .additionalProperties(additionalProperties == 0 ? null : properties)
+                .build();
+    }
+}
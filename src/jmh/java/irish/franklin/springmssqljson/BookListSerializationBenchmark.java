@@ -0,0 +1,59 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.RawBook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a search response the way Spring MVC does, from parsed books and from the stored JSON text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BookListSerializationBenchmark {
+    @Param({"10", "500"})
+    int books;
+
+    @Param({"0", "100"})
+    int additionalProperties;
+
+    private ObjectMapper objectMapper;
+    private List<Book> bookList;
+    private List<RawBook> rawBookList;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        bookList = new ArrayList<>();
+        rawBookList = new ArrayList<>();
+        for (int i = 0; i < books; i++) {
+            Book book = BookFixtures.book(i, additionalProperties);
+            bookList.add(book);
+            rawBookList.add(new RawBook(i, objectMapper.writeValueAsString(book), "00000000000007D1"));
+        }
+    }
+
+    @Benchmark
+    public byte[] books() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(bookList);
+    }
+
+    @Benchmark
+    public byte[] rawBooks() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(rawBookList);
+    }
+}
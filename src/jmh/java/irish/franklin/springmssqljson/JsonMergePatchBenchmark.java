@@ -0,0 +1,44 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.utils.JsonMergePatchUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonMergePatchBenchmark {
+    @Param({"0", "100", "10000"})
+    int additionalProperties;
+
+    private BookJson bookJson;
+    private JsonNode patch;
+
+    @Setup
+    public void setup() throws IOException {
+        bookJson = BookJson.builder()
+                .id(1)
+                .book(BookFixtures.book(1, additionalProperties))
+                .build();
+        patch = new ObjectMapper().readTree(
+                "{\"book\":{\"language\":\"French\",\"additionalProperties\":{\"property0\":\"patched\",\"property1\":null}}}");
+    }
+
+    @Benchmark
+    public BookJson mergePatch() {
+        // the merge takes over members of the patch, so every invocation gets its own copy like a request would
+        return JsonMergePatchUtils.mergePatch(bookJson, patch.deepCopy(), BookJson.class);
+    }
+}
@@ -0,0 +1,57 @@
+package irish.franklin.springmssqljson;
+
+import com.vladmihalcea.hibernate.type.json.internal.JsonTypeDescriptor;
+import irish.franklin.springmssqljson.models.Book;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the {@code JsonStringType} of {@code BookJson.book} costs per row: binding serializes the Book, extracting
+ * parses it, and a managed entity additionally takes a snapshot copy and compares it at flush time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonStringTypeBenchmark {
+    @Param({"0", "100", "10000"})
+    int additionalProperties;
+
+    private JsonTypeDescriptor descriptor;
+    private Book book;
+    private String json;
+
+    @Setup
+    public void setup() {
+        descriptor = new JsonTypeDescriptor(Book.class);
+        book = BookFixtures.book(1, additionalProperties);
+        json = descriptor.toString(book);
+    }
+
+    @Benchmark
+    public String bind() {
+        return descriptor.toString(book);
+    }
+
+    @Benchmark
+    public Object extract() {
+        return descriptor.fromString(json);
+    }
+
+    @Benchmark
+    public Object snapshot() {
+        return descriptor.getMutabilityPlan().deepCopy(book);
+    }
+
+    @Benchmark
+    public boolean dirtyCheck() {
+        return descriptor.areEqual(book, descriptor.fromString(json));
+    }
+}
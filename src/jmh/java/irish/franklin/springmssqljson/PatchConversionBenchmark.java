@@ -0,0 +1,51 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wrapping the merge patch body into a BookJson patch, as the in-memory path of {@code BookController.patchBook} does
+ * through org.json, against wrapping the Jackson tree directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PatchConversionBenchmark {
+    @Param({"2", "100"})
+    int patchedProperties;
+
+    private JsonNode patch;
+
+    @Setup
+    public void setup() {
+        ObjectNode additionalProperties = (ObjectNode) BookFixtures.book(1, patchedProperties).getAdditionalProperties();
+        patch = JsonNodeFactory.instance.objectNode()
+                .put("description", "Updated Book Description")
+                .set("additionalProperties", additionalProperties);
+    }
+
+    @Benchmark
+    public JsonNode orgJson() {
+        JSONObject bookProperties = new JSONObject();
+        bookProperties.put("book", new JSONObject(patch.toString()));
+        return JacksonUtil.toJsonNode(bookProperties.toString());
+    }
+
+    @Benchmark
+    public JsonNode jacksonTree() {
+        return JsonNodeFactory.instance.objectNode().set("book", patch);
+    }
+}
@@ -0,0 +1,135 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import irish.franklin.springmssqljson.models.Book;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoded size and decode cost of a book per storage codec. The text codec is stored as NVARCHAR, so its size is two
+ * bytes per character, gzip compresses the UTF-16LE text like SQL Server's COMPRESS. Smile and CBOR are app-side
+ * encodings the database can't read with JSON_VALUE, they are measured to compare against the server-side codecs.
+ * The encoded sizes are reported as the {@code size:encodedBytes} counter, e.g.
+ * {@code ./gradlew jmh -PjmhInclude=StorageCodecBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageCodecBenchmark {
+    @Param({"0", "100", "10000"})
+    int additionalProperties;
+
+    @Param({"text", "gzip", "smile", "smile-shared-strings", "cbor"})
+    String codec;
+
+    private ObjectMapper objectMapper;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        switch (codec) {
+            case "smile":
+                objectMapper = new ObjectMapper(new SmileFactory()
+                        .disable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+                        .disable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+                break;
+            case "smile-shared-strings":
+                objectMapper = new ObjectMapper(new SmileFactory()
+                        .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+                        .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES));
+                break;
+            case "cbor":
+                objectMapper = new ObjectMapper(new CBORFactory());
+                break;
+            default:
+                objectMapper = new ObjectMapper();
+        }
+        encoded = encode(BookFixtures.book(1, additionalProperties));
+    }
+
+    private byte[] encode(Book book) throws IOException {
+        switch (codec) {
+            case "text":
+                return objectMapper.writeValueAsString(book).getBytes(StandardCharsets.UTF_16LE);
+            case "gzip":
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(objectMapper.writeValueAsString(book).getBytes(StandardCharsets.UTF_16LE));
+                }
+                return compressed.toByteArray();
+            default:
+                return objectMapper.writeValueAsBytes(book);
+        }
+    }
+
+    /**
+     * Only reports the encoded size, its time is meaningless.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public void size(EncodedSize size) {
+        size.report(encoded.length);
+    }
+
+    @Benchmark
+    public Book decode() throws IOException {
+        switch (codec) {
+            case "text":
+                return objectMapper.readValue(new String(encoded, StandardCharsets.UTF_16LE), Book.class);
+            case "gzip":
+                try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+                    ByteArrayOutputStream text = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    for (int read = gzip.read(buffer); read != -1; read = gzip.read(buffer)) {
+                        text.write(buffer, 0, read);
+                    }
+                    return objectMapper.readValue(new String(text.toByteArray(), StandardCharsets.UTF_16LE), Book.class);
+                }
+            default:
+                return objectMapper.readValue(encoded, Book.class);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class EncodedSize {
+        public long encodedBytes;
+        private boolean measuring;
+        private boolean reported;
+
+        @Setup(Level.Iteration)
+        public void startIteration(IterationParams iteration) {
+            encodedBytes = 0;
+            measuring = iteration.getType() == IterationType.MEASUREMENT;
+        }
+
+        void report(int bytes) {
+            // events are summed over the measurement iterations, so the size is only counted in the first one
+            if (measuring && !reported) {
+                encodedBytes = bytes;
+                reported = true;
+            }
+        }
+    }
+}
@@ -1,13 +1,35 @@
 package irish.franklin.springmssqljson;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import irish.franklin.springmssqljson.cache.BookCache;
+import irish.franklin.springmssqljson.models.AggregateBucket;
+import irish.franklin.springmssqljson.models.BatchItemResult;
 import irish.franklin.springmssqljson.models.Book;
 import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.models.ChangeWindow;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.patch.PatchCoalescer;
+import irish.franklin.springmssqljson.query.Aggregation;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.query.CompiledQuery;
+import irish.franklin.springmssqljson.query.MergePatchCompiler;
+import irish.franklin.springmssqljson.query.Projection;
+import irish.franklin.springmssqljson.replica.ReplicaRouting;
+import irish.franklin.springmssqljson.singleflight.SingleFlight;
+import irish.franklin.springmssqljson.utils.ETags;
 import irish.franklin.springmssqljson.utils.JsonMergePatchUtils;
 import lombok.RequiredArgsConstructor;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -15,13 +37,23 @@ import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -29,44 +61,164 @@ import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/api/v1/book")
+@Profile("!reactive")
 @RequiredArgsConstructor
 @Validated
 public class BookController {
+    static final String NDJSON = "application/x-ndjson";
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    static final String CHANGE_TOKEN_HEADER = "X-Change-Token";
+    private static final int MAX_PATCH_ATTEMPTS = 3;
+
     private final BookLibraryRepository repository;
+    private final ObjectMapper objectMapper;
+    private final MergePatchCompiler mergePatchCompiler;
+    private final BookCache bookCache;
+    private final PatchCoalescer patchCoalescer;
+    private final SingleFlight singleFlight;
+
+    @Value("${book-library.pagination.default-limit:500}")
+    private int defaultPageLimit;
+
+    @Value("${book-library.pagination.max-limit:5000}")
+    private int maxPageLimit;
+
+    @Value("${book-library.batch.max-size:1000}")
+    private int maxBatchSize;
 
     @GetMapping("/{id}")
-    public Book getBookById(@PathVariable Integer id) {
-        return repository.findById(id)
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id"))
-                .getBook();
+    public ResponseEntity<RawBook> getBookById(@PathVariable Integer id,
+                                               @RequestParam(value = Projection.FIELDS_PARAM, required = false) String fields,
+                                               WebRequest request) {
+        Projection projection = Projection.fromQueryParam(fields);
+        // revalidating only reads the version of the book
+        if (request.getHeader(HttpHeaders.IF_NONE_MATCH) != null) {
+            Optional<String> version = singleFlight.run("version-by-id", id, () -> repository.findVersionById(id));
+            if (version.isPresent() && request.checkNotModified(ETags.ofProjection(version.get(), projection))) {
+                return null;
+            }
+        }
+
+        // only whole books are cached
+        Optional<RawBook> foundBook = projection.isAll()
+                ? bookCache.findById(id, key -> findRawBookById(key, Projection.ALL))
+                : findRawBookById(id, projection);
+        RawBook book = foundBook
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id"));
+        return ResponseEntity.ok()
+                .eTag(ETags.ofProjection(book.getVersion(), projection))
+                .body(book);
     }
 
     @GetMapping
-    public List<Book> getBooksByQueryParams(@RequestParam Map<String,String> queryParamMap){
-        List<BookJson> foundBooks;
-        String[] queryParamKeys = queryParamMap.keySet().toArray(new String[0]);
-        if (queryParamMap.isEmpty()) {
-            foundBooks = repository.findAll();
-        }
-        else if (queryParamMap.size() == 1) {
-            foundBooks = repository.findBooksBySingleParam(
-                queryParamKeys[0],
-                queryParamMap.get(queryParamKeys[0])
-            );
-        } else if (queryParamMap.size() == 2) {
-            foundBooks = repository.findBooksByTwoParams(
-                    queryParamKeys[0],
-                    queryParamMap.get(queryParamKeys[0]),
-                    queryParamKeys[1],
-                    queryParamMap.get(queryParamKeys[1])
-            );
-        } else {
-            // Set to two for this example, but adding an additional else if for 3 or more query params would work
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max amount of query params that can be used is currently 2");
-        }
-        return foundBooks.stream()
-            .map(BookJson::getBook)
-            .collect(Collectors.toList());
+    public ResponseEntity<List<RawBook>> getBooksByQueryParams(@RequestParam Map<String,String> queryParamMap,
+                                                               WebRequest request){
+        BookQuery query = BookQuery.fromQueryParams(queryParamMap);
+        int limit = pageLimit(query);
+
+        // one extra row tells us whether there is a next page
+        BookQuery pageQuery = query.withLimit(limit + 1);
+        if (request.getHeader(HttpHeaders.IF_NONE_MATCH) != null
+                && request.checkNotModified(ETags.ofProjection(
+                        ETags.ofBooks(singleFlight.run("book-versions", pageQuery,
+                                () -> repository.findBookVersions(pageQuery))), query.getProjection()))) {
+            return null;
+        }
+
+        List<RawBook> foundBooks = bookCache.findBooks(pageQuery,
+                key -> singleFlight.run("books", key, () -> repository.findRawBooks(key)));
+        HttpHeaders headers = new HttpHeaders();
+        String pageTag = ETags.ofBooks(foundBooks.stream().map(RawBook::toBookVersion).collect(Collectors.toList()));
+        headers.setETag('"' + ETags.ofProjection(pageTag, query.getProjection()) + '"');
+        if (foundBooks.size() > limit) {
+            foundBooks = foundBooks.subList(0, limit);
+            Integer nextCursor = foundBooks.get(limit - 1).getId();
+            String nextPage = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam(BookQuery.AFTER_PARAM, nextCursor)
+                    .replaceQueryParam(BookQuery.LIMIT_PARAM, limit)
+                    .toUriString();
+            headers.set(NEXT_CURSOR_HEADER, nextCursor.toString());
+            headers.set(HttpHeaders.LINK, "<" + nextPage + ">; rel=\"next\"");
+        }
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(foundBooks);
+    }
+
+    @GetMapping(produces = NDJSON)
+    public StreamingResponseBody streamBooksByQueryParams(@RequestParam Map<String,String> queryParamMap){
+        BookQuery query = BookQuery.fromQueryParams(queryParamMap);
+        return outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.setRootValueSeparator(null);
+                repository.streamRawBooks(query, book -> {
+                    try {
+                        generator.writeRawValue(book.getJson());
+                        generator.writeRaw('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Streams the books written and deleted since the token as NDJSON, or every book without a token. The
+     * {@code X-Change-Token} header holds the token of the next call.
+     */
+    @GetMapping("/changes")
+    public ResponseEntity<StreamingResponseBody> streamChanges(@RequestParam(value = "since", required = false) String since) {
+        byte[] sinceVersion = since != null ? ChangeWindow.parseToken(since) : null;
+        ChangeWindow window = repository.openChangeWindow(sinceVersion);
+        if (!window.isComplete()) {
+            throw new ResponseStatusException(HttpStatus.GONE, "Deletes before the change token are not kept anymore, sync all books without a token");
+        }
+
+        StreamingResponseBody changes = outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.setRootValueSeparator(null);
+                repository.streamChanges(sinceVersion, window.getUntil(), change -> {
+                    try {
+                        generator.writeObject(change);
+                        generator.writeRaw('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NDJSON))
+                .header(CHANGE_TOKEN_HEADER, window.getNextToken())
+                .body(changes);
+    }
+
+    /**
+     * Groups the books matching the filters by a path and returns a metric per group, at most {@code limit} groups.
+     */
+    @GetMapping("/aggregate")
+    public List<AggregateBucket> aggregateBooks(@RequestParam Map<String,String> queryParamMap) {
+        Map<String, String> filterParams = new HashMap<>(queryParamMap);
+        Aggregation aggregation = Aggregation.fromQueryParams(
+                filterParams.remove(Aggregation.GROUP_BY_PARAM), filterParams.remove(Aggregation.METRIC_PARAM));
+        BookQuery query = BookQuery.fromQueryParams(filterParams);
+        if (query.getAfter() != null || !query.getProjection().isAll()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Aggregations can't be paged or projected");
+        }
+        int limit = pageLimit(query);
+
+        // one extra bucket tells us whether there are more
+        BookQuery bucketQuery = query.withLimit(limit + 1);
+        List<AggregateBucket> buckets = singleFlight.run("aggregate", Arrays.asList(bucketQuery, aggregation),
+                () -> repository.aggregateBooks(bucketQuery, aggregation));
+        if (buckets.size() > limit) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "There are more than " + limit + " groups, add filters or raise the limit");
+        }
+        return buckets;
     }
 
     @PostMapping
@@ -79,36 +231,135 @@ public class BookController {
         BookJson bookJsonToSave = BookJson.builder()
                 .book(book)
                 .build();
-        return repository.save(bookJsonToSave).getBook();
+        return repository.createBooks(Collections.singletonList(bookJsonToSave)).get(0).getBook();
+    }
+
+    @PostMapping("/batch")
+    public ResponseEntity<List<BatchItemResult>> createNewBooks(@RequestBody List<JsonNode> bookNodes) {
+        if (bookNodes.size() > maxBatchSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max amount of books in a batch is " + maxBatchSize);
+        }
+
+        BatchItemResult[] results = new BatchItemResult[bookNodes.size()];
+        List<Integer> indexesToSave = new ArrayList<>();
+        List<BookJson> booksToSave = new ArrayList<>();
+        for (int i = 0; i < bookNodes.size(); i++) {
+            try {
+                Book book = objectMapper.treeToValue(bookNodes.get(i), Book.class);
+                if (book == null) {
+                    results[i] = BatchItemResult.failed(i, HttpStatus.BAD_REQUEST, "Invalid book");
+                } else if (book.getId() != null) {
+                    results[i] = BatchItemResult.failed(i, HttpStatus.BAD_REQUEST, "Book Ids are auto generated");
+                } else {
+                    indexesToSave.add(i);
+                    booksToSave.add(BookJson.builder().book(book).build());
+                }
+            } catch (JsonProcessingException e) {
+                results[i] = BatchItemResult.failed(i, HttpStatus.BAD_REQUEST, "Invalid book: " + e.getOriginalMessage());
+            }
+        }
+
+        // one transaction, so ids come from the pooled sequence and the inserts are sent as JDBC batches
+        List<BookJson> savedBooks = repository.createBooks(booksToSave);
+        for (int i = 0; i < savedBooks.size(); i++) {
+            results[indexesToSave.get(i)] = BatchItemResult.created(indexesToSave.get(i), savedBooks.get(i).getBook());
+        }
+
+        boolean allCreated = savedBooks.size() == results.length;
+        return ResponseEntity.status(allCreated ? HttpStatus.CREATED : HttpStatus.MULTI_STATUS)
+                .body(Arrays.asList(results));
     }
 
     @PatchMapping(path = "/{id}", consumes = "application/merge-patch+json")
-    public Book patchBook(@PathVariable("id") Integer id,
-                         @RequestBody JsonNode bookPropertiesPatchNode){
+    public ResponseEntity<RawBook> patchBook(@PathVariable("id") Integer id,
+                                             @RequestBody JsonNode bookPropertiesPatchNode,
+                                             @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch)
+            throws JsonProcessingException {
 
         if (bookPropertiesPatchNode.has("id")) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot update Id");
         }
 
-        Optional<BookJson> book = repository.findById(id);
-
-        if(book.isPresent()){
-            JSONObject bookProperties = new JSONObject();
-            bookProperties.put("book", new JSONObject(bookPropertiesPatchNode.toString()));
-            JsonNode bookJsonNode = JacksonUtil.toJsonNode(bookProperties.toString());
-            BookJson updatedBook = JsonMergePatchUtils.mergePatch(book.get(), bookJsonNode, BookJson.class);
-            return repository.save(updatedBook).getBook();
+        List<byte[]> expectedVersions = ETags.parseIfMatch(ifMatch);
+        // a conditional patch has to be applied to the version it names, so it is never coalesced
+        if (expectedVersions == null && patchCoalescer.isEnabled()) {
+            RawBook book = patchCoalescer.patch(id, bookPropertiesPatchNode);
+            return ResponseEntity.ok()
+                    .eTag(book.getVersion())
+                    .body(book);
         }
+        Optional<CompiledQuery> serverSidePatch = mergePatchCompiler.compile(id, bookPropertiesPatchNode);
+        Optional<RawBook> patchedBook = serverSidePatch.isPresent()
+                ? repository.updateRawBook(serverSidePatch.get(), expectedVersions)
+                : patchInMemory(id, bookPropertiesPatchNode, expectedVersions);
 
-        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id");
+        RawBook book = patchedBook.orElseThrow(() -> failedWrite(id));
+        return ResponseEntity.ok()
+                .eTag(book.getVersion())
+                .body(book);
     }
 
     @DeleteMapping("/{id}")
-    public void deleteBookById(@PathVariable Integer id) {
-        if (repository.existsById(id)) {
-            repository.deleteById(id);
-            return;
+    public void deleteBookById(@PathVariable Integer id,
+                               @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        if (!repository.deleteBook(id, ETags.parseIfMatch(ifMatch))) {
+            throw failedWrite(id);
+        }
+    }
+
+    /**
+     * Merges the patch into the stored book in memory and writes it back only if the book did not change in between.
+     * Without an If-Match header the version read is the expected one, so a concurrent write is retried instead of lost.
+     */
+    private Optional<RawBook> patchInMemory(Integer id, JsonNode bookPropertiesPatchNode, List<byte[]> expectedVersions)
+            throws JsonProcessingException {
+        JSONObject bookProperties = new JSONObject();
+        bookProperties.put("book", new JSONObject(bookPropertiesPatchNode.toString()));
+        JsonNode bookJsonNode = JacksonUtil.toJsonNode(bookProperties.toString());
+
+        for (int attempt = 0; attempt < MAX_PATCH_ATTEMPTS; attempt++) {
+            Optional<RawBook> storedBook = repository.findRawBookById(id);
+            if (!storedBook.isPresent()) {
+                return Optional.empty();
+            }
+
+            BookJson book = BookJson.builder()
+                    .id(id)
+                    .book(objectMapper.readValue(storedBook.get().getJson(), Book.class))
+                    .build();
+            BookJson updatedBook = JsonMergePatchUtils.mergePatch(book, bookJsonNode, BookJson.class);
+            List<byte[]> versions = expectedVersions != null
+                    ? expectedVersions
+                    : Collections.singletonList(ETags.toRowVersion(storedBook.get().getVersion()));
+            Optional<RawBook> patchedBook = repository.replaceRawBook(
+                    id, objectMapper.writeValueAsString(updatedBook.getBook()), versions);
+            if (patchedBook.isPresent() || expectedVersions != null) {
+                return patchedBook;
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.CONFLICT, "The book kept changing while patching it, please retry");
+    }
+
+    private Optional<RawBook> findRawBookById(Integer id, Projection projection) {
+        return singleFlight.run("book-by-id", Arrays.asList(id, projection), () -> repository.findRawBookById(id, projection));
+    }
+
+    private int pageLimit(BookQuery query) {
+        int limit = query.getLimit() != null ? query.getLimit() : defaultPageLimit;
+        if (limit > maxPageLimit) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max page limit is " + maxPageLimit);
+        }
+        return limit;
+    }
+
+    /**
+     * Tells apart a conditional write that found no book from one that found a book with another version. Nothing was
+     * written, so the check reads a replica, which may answer 404 for a book created just before.
+     */
+    private ResponseStatusException failedWrite(Integer id) {
+        if (ReplicaRouting.onReplica(() -> repository.findVersionById(id)).isPresent()) {
+            return new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "The book has changed since the provided ETag");
         }
-        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id");
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id");
     }
 }
@@ -0,0 +1,98 @@
+package irish.franklin.springmssqljson;
+
+import irish.franklin.springmssqljson.models.AggregateBucket;
+import irish.franklin.springmssqljson.models.BookChange;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.models.BookVersion;
+import irish.franklin.springmssqljson.models.ChangeWindow;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.Aggregation;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.query.CompiledQuery;
+import irish.franklin.springmssqljson.query.Projection;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+public interface BookLibraryRepositoryCustom {
+    List<BookJson> findBooks(BookQuery query);
+
+    /**
+     * Inserts new books in one transaction with ids from the sequence, on the shard of each id when sharded.
+     * Books on different shards are not inserted atomically.
+     *
+     * @return the books with their ids, in the order they were given
+     */
+    List<BookJson> createBooks(List<BookJson> books);
+
+    Optional<RawBook> findRawBookById(Integer id);
+
+    /**
+     * A book with only the paths of the projection, projected by the database.
+     */
+    Optional<RawBook> findRawBookById(Integer id, Projection projection);
+
+    List<RawBook> findRawBooks(BookQuery query);
+
+    /**
+     * The version of a book, read without its document.
+     */
+    Optional<String> findVersionById(Integer id);
+
+    /**
+     * The ids and versions of the books matching the query, read without their documents.
+     */
+    List<BookVersion> findBookVersions(BookQuery query);
+
+    /**
+     * The buckets of an aggregation of the books matching the query, computed by the database.
+     */
+    List<AggregateBucket> aggregateBooks(BookQuery query, Aggregation aggregation);
+
+    /**
+     * Passes each matching book to the consumer as it is read from the JDBC result set,
+     * without holding the results in memory or in the persistence context.
+     */
+    void streamRawBooks(BookQuery query, Consumer<RawBook> consumer);
+
+    /**
+     * The window of changes a read since the token can return.
+     * Rowversions are per database, so there is no window when books are sharded.
+     *
+     * @param since the rowversion of the change token, {@code null} for all books
+     */
+    ChangeWindow openChangeWindow(byte[] since);
+
+    /**
+     * Passes the books written and deleted in the window to the consumer in rowversion order as they are read.
+     *
+     * @param since the rowversion of the change token, {@code null} for all books without deletes
+     */
+    void streamChanges(byte[] since, byte[] until, Consumer<BookChange> consumer);
+
+    /**
+     * Runs an UPDATE compiled with an OUTPUT clause of the updated id, document and version that ends with its
+     * {@code WHERE id = :id} condition, e.g. by the {@link irish.franklin.springmssqljson.query.MergePatchCompiler}.
+     *
+     * @param expectedVersions the rowversions the book may have, {@code null} for any
+     * @return the updated book, empty when the book does not exist or has another version
+     */
+    Optional<RawBook> updateRawBook(CompiledQuery update, List<byte[]> expectedVersions);
+
+    /**
+     * Replaces the document of a book when its rowversion is one of the expected versions.
+     *
+     * @param expectedVersions the rowversions the book may have, {@code null} for any
+     * @return the updated book, empty when the book does not exist or has another version
+     */
+    Optional<RawBook> replaceRawBook(Integer id, String json, List<byte[]> expectedVersions);
+
+    /**
+     * Deletes a book when its rowversion is one of the expected versions.
+     *
+     * @param expectedVersions the rowversions the book may have, {@code null} for any
+     * @return whether the book was deleted
+     */
+    boolean deleteBook(Integer id, List<byte[]> expectedVersions);
+}
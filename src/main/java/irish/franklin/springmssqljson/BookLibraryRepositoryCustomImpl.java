@@ -0,0 +1,380 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import irish.franklin.springmssqljson.bulkhead.ScanBulkhead;
+import irish.franklin.springmssqljson.bulkhead.ScanBulkheadProperties;
+import irish.franklin.springmssqljson.models.AggregateBucket;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookChange;
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.models.BookVersion;
+import irish.franklin.springmssqljson.models.ChangeWindow;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.Aggregation;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.query.BookQueryCompiler;
+import irish.franklin.springmssqljson.query.BookStatements;
+import irish.franklin.springmssqljson.query.CompiledQuery;
+import irish.franklin.springmssqljson.query.Projection;
+import irish.franklin.springmssqljson.query.ResultColumns;
+import irish.franklin.springmssqljson.sharding.BookShards;
+import irish.franklin.springmssqljson.utils.ETags;
+import lombok.RequiredArgsConstructor;
+import org.hibernate.annotations.QueryHints;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Searches BOOK_LIBRARY by JSON field filters compiled by {@link BookQueryCompiler}.
+ * The raw reads go straight through JDBC and return the stored JSON text, so they never touch the persistence context.
+ * Entities are only read in read-only transactions, so Hibernate keeps no snapshot of their JSON to dirty check.
+ * The raw reads are marked read-only without starting a transaction, so they can be routed to a read replica, and
+ * join the transaction of a caller that writes.
+ * <p>
+ * Reads and writes by id go to the shard of the id. Searches run on every shard of {@link BookShards} in parallel and
+ * the answers are merged in id order, as one database would have answered them; with one shard they pass through.
+ * Reads that parse every document go through the {@link ScanBulkhead}.
+ */
+@RequiredArgsConstructor
+class BookLibraryRepositoryCustomImpl implements BookLibraryRepositoryCustom {
+    private static final RowMapper<RawBook> RAW_BOOK_MAPPER = (resultSet, rowNum) -> new RawBook(
+            resultSet.getInt("id"), resultSet.getString("book"), ETags.toVersion(resultSet.getBytes("row_version")));
+    private static final RowMapper<BookVersion> BOOK_VERSION_MAPPER = (resultSet, rowNum) -> new BookVersion(
+            resultSet.getInt("id"), ETags.toVersion(resultSet.getBytes("row_version")));
+    private static final RowMapper<AggregateBucket> BUCKET_MAPPER = (resultSet, rowNum) -> AggregateBucket.of(
+            resultSet.getString("bucket"), resultSet.getObject("value"));
+    /** The books read from a shard at a time when streaming the books of every shard in id order */
+    private static final int STREAM_PAGE_SIZE = 500;
+    private static final String INSERT_BOOK = "INSERT INTO BOOK_LIBRARY (id, book) VALUES (:id, :book)";
+
+    private final BookQueryCompiler queryCompiler;
+    private final BookShards shards;
+    private final ScanBulkhead scanBulkhead;
+    private final ScanBulkheadProperties scanBulkheadProperties;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ObjectMapper objectMapper;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /** The rest of the last block of ids taken from the sequence for sharded inserts */
+    private int nextId;
+    private int idLimit;
+
+    @Override
+    @Transactional(readOnly = true)
+    @SuppressWarnings("unchecked")
+    public List<BookJson> findBooks(BookQuery bookQuery) {
+        CompiledQuery compiledQuery = queryCompiler.compile(bookQuery, ResultColumns.ENTITY);
+        if (shards.isSharded()) {
+            // the persistence context only reaches the primary, the entities of every shard are mapped by hand
+            RowMapper<BookJson> entityMapper = (resultSet, rowNum) -> new BookJson(
+                    resultSet.getInt("id"), readBook(resultSet.getString("book")));
+            return scanBulkhead.run(compiledQuery, () -> mergeById(shards.scatter(shard -> shards.get(shard, compiledQuery)
+                    .query(compiledQuery.getSql(), compiledQuery.getParameters(), entityMapper)), BookJson::getId, bookQuery));
+        }
+        Query query = entityManager.createNativeQuery(compiledQuery.getSql(), BookJson.class);
+        // also read-only when called within a transaction that writes
+        query.setHint(QueryHints.READ_ONLY, true);
+        if (compiledQuery.isFullScan() && scanBulkheadProperties.isEnabled()) {
+            // Hibernate only reads the hint as an Integer or a String
+            query.setHint(QueryHints.TIMEOUT_JPA, (int) scanBulkheadProperties.getQueryTimeout().toMillis());
+        }
+        compiledQuery.getParameters().forEach(query::setParameter);
+        return scanBulkhead.run(compiledQuery, () -> query.getResultList());
+    }
+
+    @Override
+    @Transactional
+    public List<BookJson> createBooks(List<BookJson> books) {
+        if (!shards.isSharded()) {
+            // ids come from the pooled sequence and the inserts are sent as JDBC batches at flush
+            books.forEach(entityManager::persist);
+            return books;
+        }
+        List<Integer> ids = allocateIds(books.size());
+        List<List<SqlParameterSource>> insertsByShard = new ArrayList<>();
+        for (int shard = 0; shard < shards.count(); shard++) {
+            insertsByShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < books.size(); i++) {
+            BookJson book = books.get(i);
+            book.setId(ids.get(i));
+            insertsByShard.get(BookShards.shardOf(book.getId(), shards.count())).add(new MapSqlParameterSource()
+                    .addValue("id", book.getId())
+                    .addValue("book", writeBook(book.getBook())));
+        }
+        shards.scatter(shard -> insertsByShard.get(shard).isEmpty() ? null : shards.get(shard)
+                .batchUpdate(INSERT_BOOK, insertsByShard.get(shard).toArray(new SqlParameterSource[0])));
+        books.forEach(book ->
+                eventPublisher.publishEvent(new BookChangedEvent(book.getId(), BookChangedEvent.Change.CREATED)));
+        return books;
+    }
+
+    @Override
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
+    public Optional<RawBook> findRawBookById(Integer id) {
+        return findRawBookById(id, Projection.ALL);
+    }
+
+    @Override
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
+    public Optional<RawBook> findRawBookById(Integer id, Projection projection) {
+        CompiledQuery query = BookStatements.findRawBookById(id, projection);
+        return shards.forId(id).query(query.getSql(), query.getParameters(), RAW_BOOK_MAPPER)
+                .stream()
+                .findFirst();
+    }
+
+    @Override
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
+    public List<RawBook> findRawBooks(BookQuery bookQuery) {
+        CompiledQuery compiledQuery = queryCompiler.compile(bookQuery, ResultColumns.RAW_JSON);
+        return scanBulkhead.run(compiledQuery, () -> mergeById(shards.scatter(shard -> shards.get(shard, compiledQuery)
+                .query(compiledQuery.getSql(), compiledQuery.getParameters(), RAW_BOOK_MAPPER)), RawBook::getId, bookQuery));
+    }
+
+    @Override
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
+    public Optional<String> findVersionById(Integer id) {
+        CompiledQuery query = BookStatements.findVersionById(id);
+        return shards.forId(id).query(query.getSql(), query.getParameters(), BOOK_VERSION_MAPPER)
+                .stream()
+                .findFirst()
+                .map(BookVersion::getVersion);
+    }
+
+    @Override
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
+    public List<BookVersion> findBookVersions(BookQuery bookQuery) {
+        CompiledQuery compiledQuery = queryCompiler.compile(bookQuery, ResultColumns.VERSIONS);
+        return scanBulkhead.run(compiledQuery, () -> mergeById(shards.scatter(shard -> shards.get(shard, compiledQuery)
+                .query(compiledQuery.getSql(), compiledQuery.getParameters(), BOOK_VERSION_MAPPER)), BookVersion::getId, bookQuery));
+    }
+
+    @Override
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
+    public List<AggregateBucket> aggregateBooks(BookQuery bookQuery, Aggregation aggregation) {
+        CompiledQuery compiledQuery = queryCompiler.compileAggregation(bookQuery, aggregation);
+        List<List<AggregateBucket>> answers = scanBulkhead.run(compiledQuery, () -> shards.scatter(shard -> shards.get(shard, compiledQuery)
+                .query(compiledQuery.getSql(), compiledQuery.getParameters(), BUCKET_MAPPER)));
+        if (answers.size() == 1) {
+            return answers.get(0);
+        }
+        // the database groups keys ignoring case, so the same key from two shards is matched the same way; every key
+        // of the first buckets up to the limit is in the first buckets of each shard, so their metrics are complete
+        Map<String, AggregateBucket> buckets = new TreeMap<>(Comparator.nullsFirst(String.CASE_INSENSITIVE_ORDER));
+        for (List<AggregateBucket> answer : answers) {
+            for (AggregateBucket bucket : answer) {
+                buckets.merge(bucket.getKey(), bucket, (merged, other) -> AggregateBucket.of(merged.getKey(),
+                        mergeMetric(aggregation.getMetric(), merged.getValue(), other.getValue())));
+            }
+        }
+        List<AggregateBucket> merged = new ArrayList<>(buckets.values());
+        return bookQuery.getLimit() != null && merged.size() > bookQuery.getLimit()
+                ? new ArrayList<>(merged.subList(0, bookQuery.getLimit()))
+                : merged;
+    }
+
+    @Override
+    @Transactional(readOnly = true, propagation = Propagation.SUPPORTS)
+    public void streamRawBooks(BookQuery bookQuery, Consumer<RawBook> consumer) {
+        if (shards.isSharded() && bookQuery.getLimit() != null) {
+            // at most a page, which is merged in id order like a search
+            findRawBooks(bookQuery).forEach(consumer);
+            return;
+        }
+        CompiledQuery compiledQuery = queryCompiler.compile(bookQuery, ResultColumns.RAW_JSON);
+        // a scan holds its place in the bulkhead until every book was sent, but isn't cancelled after the query timeout
+        scanBulkhead.run(compiledQuery, () -> {
+            if (shards.isSharded()) {
+                streamMergedById(bookQuery, consumer);
+                return;
+            }
+            shards.get(0).query(compiledQuery.getSql(), compiledQuery.getParameters(),
+                    resultSet -> consumer.accept(RAW_BOOK_MAPPER.mapRow(resultSet, 0)));
+        });
+    }
+
+    /**
+     * Streams the books of every shard merged in id order, as a search answers them. Each shard is read a page at a
+     * time after the last id it returned, so at most a page per shard is held in memory and no connection stays open
+     * while the consumer writes.
+     */
+    private void streamMergedById(BookQuery bookQuery, Consumer<RawBook> consumer) {
+        BookQuery pageQuery = bookQuery.withLimit(STREAM_PAGE_SIZE);
+        List<Deque<RawBook>> pages = new ArrayList<>(shards.count());
+        PriorityQueue<Integer> nextShards = new PriorityQueue<>(Comparator.comparing(shard -> pages.get(shard).peekFirst().getId()));
+        for (int shard = 0; shard < shards.count(); shard++) {
+            pages.add(findShardPage(shard, pageQuery));
+            if (!pages.get(shard).isEmpty()) {
+                nextShards.add(shard);
+            }
+        }
+        while (!nextShards.isEmpty()) {
+            int shard = nextShards.poll();
+            Deque<RawBook> page = pages.get(shard);
+            RawBook book = page.pollFirst();
+            consumer.accept(book);
+            if (page.isEmpty()) {
+                pages.set(shard, findShardPage(shard, pageQuery.withAfter(book.getId())));
+            }
+            if (!pages.get(shard).isEmpty()) {
+                nextShards.add(shard);
+            }
+        }
+    }
+
+    private Deque<RawBook> findShardPage(int shard, BookQuery pageQuery) {
+        CompiledQuery compiledQuery = queryCompiler.compile(pageQuery, ResultColumns.RAW_JSON);
+        return new ArrayDeque<>(shards.get(shard, compiledQuery)
+                .query(compiledQuery.getSql(), compiledQuery.getParameters(), RAW_BOOK_MAPPER));
+    }
+
+    @Override
+    public ChangeWindow openChangeWindow(byte[] since) {
+        if (shards.isSharded()) {
+            throw new ResponseStatusException(HttpStatus.NOT_IMPLEMENTED, "Changes can't be followed when books are sharded");
+        }
+        CompiledQuery query = BookStatements.openChangeWindow(since);
+        return shards.get(0).queryForObject(query.getSql(), query.getParameters(), (resultSet, rowNum) ->
+                new ChangeWindow(resultSet.getBytes("until_version"), resultSet.getBoolean("complete")));
+    }
+
+    @Override
+    public void streamChanges(byte[] since, byte[] until, Consumer<BookChange> consumer) {
+        CompiledQuery query = BookStatements.findChanges(since, until);
+        shards.get(0).query(query.getSql(), query.getParameters(),
+                resultSet -> consumer.accept(new BookChange(resultSet.getInt("id"), resultSet.getString("book"))));
+    }
+
+    @Override
+    public Optional<RawBook> updateRawBook(CompiledQuery update, List<byte[]> expectedVersions) {
+        CompiledQuery conditionalUpdate = update.withExpectedVersions(expectedVersions);
+        Optional<RawBook> updatedBook = shards.forId((Integer) update.getParameters().get("id"))
+                .query(conditionalUpdate.getSql(), conditionalUpdate.getParameters(), RAW_BOOK_MAPPER)
+                .stream()
+                .findFirst();
+        updatedBook.ifPresent(book ->
+                eventPublisher.publishEvent(new BookChangedEvent(book.getId(), BookChangedEvent.Change.UPDATED)));
+        return updatedBook;
+    }
+
+    @Override
+    public Optional<RawBook> replaceRawBook(Integer id, String json, List<byte[]> expectedVersions) {
+        return updateRawBook(BookStatements.replaceBook(id, json), expectedVersions);
+    }
+
+    @Override
+    public boolean deleteBook(Integer id, List<byte[]> expectedVersions) {
+        CompiledQuery delete = BookStatements.deleteBook(id).withExpectedVersions(expectedVersions);
+        boolean deleted = shards.forId(id).update(delete.getSql(), delete.getParameters()) > 0;
+        if (deleted) {
+            eventPublisher.publishEvent(new BookChangedEvent(id, BookChangedEvent.Change.DELETED));
+        }
+        return deleted;
+    }
+
+    /**
+     * The answers of the shards as one list in id order, cut to the limit of the query.
+     * Each shard only answered its first books up to the limit, which include its books among the first overall.
+     */
+    private static <T> List<T> mergeById(List<List<T>> answers, Function<T, Integer> id, BookQuery query) {
+        if (answers.size() == 1) {
+            return answers.get(0);
+        }
+        List<T> merged = new ArrayList<>();
+        answers.forEach(merged::addAll);
+        merged.sort(Comparator.comparing(id));
+        return query.getLimit() != null && merged.size() > query.getLimit()
+                ? new ArrayList<>(merged.subList(0, query.getLimit()))
+                : merged;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object mergeMetric(Aggregation.Metric metric, Object value, Object other) {
+        if (value == null || other == null) {
+            return value == null ? other : value;
+        }
+        switch (metric) {
+            case COUNT:
+                return ((Number) value).intValue() + ((Number) other).intValue();
+            case SUM:
+                return new BigDecimal(value.toString()).add(new BigDecimal(other.toString()));
+            default:
+                int comparison = value instanceof String
+                        ? String.CASE_INSENSITIVE_ORDER.compare((String) value, (String) other)
+                        : ((Comparable<Object>) value).compareTo(other);
+                return (metric == Aggregation.Metric.MIN) == (comparison <= 0) ? value : other;
+        }
+    }
+
+    /**
+     * Takes ids from the rest of the last block and further blocks of the sequence on the primary as needed, like
+     * Hibernate's pooled-lo optimizer, so books created through JPA and sharded inserts never share an id.
+     */
+    private List<Integer> allocateIds(int count) {
+        List<Integer> ids = new ArrayList<>(count);
+        synchronized (this) {
+            while (ids.size() < count && nextId < idLimit) {
+                ids.add(nextId++);
+            }
+        }
+        CompiledQuery nextIdBlock = BookStatements.nextIdBlock();
+        while (ids.size() < count) {
+            int id = shards.get(0).queryForObject(nextIdBlock.getSql(), nextIdBlock.getParameters(), Long.class).intValue();
+            int blockLimit = id + BookJson.ID_ALLOCATION_SIZE;
+            while (ids.size() < count && id < blockLimit) {
+                ids.add(id++);
+            }
+            if (id < blockLimit) {
+                synchronized (this) {
+                    nextId = id;
+                    idLimit = blockLimit;
+                }
+            }
+        }
+        return ids;
+    }
+
+    private Book readBook(String json) {
+        try {
+            return objectMapper.readValue(json, Book.class);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String writeBook(Book book) {
+        try {
+            return objectMapper.writeValueAsString(book);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
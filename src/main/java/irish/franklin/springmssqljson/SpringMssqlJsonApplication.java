@@ -2,8 +2,10 @@ package irish.franklin.springmssqljson;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class SpringMssqlJsonApplication {
 
 	public static void main(String[] args) {
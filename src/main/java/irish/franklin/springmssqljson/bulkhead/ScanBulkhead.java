@@ -0,0 +1,135 @@
+package irish.franklin.springmssqljson.bulkhead;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.query.CompiledQuery;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Keeps reads that parse every document, as classified by {@link irish.franklin.springmssqljson.query.BookQueryCompiler},
+ * from taking the whole connection pool when a few arrive at once. At most {@code max-concurrent-scans} run, a bounded
+ * queue waits for them in order and the rest are shed right away: 429 when the queue is full, 503 when the wait is
+ * over. Both answer with Retry-After. Reads that seek an index pass straight through.
+ * <p>
+ * The statements of scans carry a query timeout, so the driver cancels them on the server instead of leaving them
+ * running after the read gave up.
+ */
+@Component
+@Profile("!reactive")
+public class ScanBulkhead {
+    private final ScanBulkheadProperties properties;
+    private final Semaphore running;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Counter admitted;
+    private final Counter queueFull;
+    private final Counter queueWaitOver;
+    private final Counter cancelled;
+
+    public ScanBulkhead(ScanBulkheadProperties properties, MeterRegistry meterRegistry,
+                        @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize) {
+        if (properties.isEnabled() && properties.getMaxConcurrentScans() >= poolSize) {
+            throw new IllegalStateException("book-library.scan-bulkhead.max-concurrent-scans has to be lower than the "
+                    + poolSize + " pooled connections, so reads by id still get one while scans run");
+        }
+        this.properties = properties;
+        this.running = new Semaphore(properties.getMaxConcurrentScans(), true);
+        Gauge.builder("book.scan-bulkhead.queued", queued, AtomicInteger::get)
+                .description("Scans waiting for a running scan to finish")
+                .register(meterRegistry);
+        Gauge.builder("book.scan-bulkhead.running", running, permits -> properties.getMaxConcurrentScans() - permits.availablePermits())
+                .description("Scans running")
+                .register(meterRegistry);
+        admitted = meterRegistry.counter("book.scan-bulkhead.admitted");
+        queueFull = meterRegistry.counter("book.scan-bulkhead.rejected", "reason", "queue-full");
+        queueWaitOver = meterRegistry.counter("book.scan-bulkhead.rejected", "reason", "queue-wait");
+        cancelled = meterRegistry.counter("book.scan-bulkhead.cancelled");
+    }
+
+    public <T> T run(CompiledQuery query, Supplier<T> read) {
+        if (!properties.isEnabled() || !query.isFullScan()) {
+            return read.get();
+        }
+        admit();
+        try {
+            return read.get();
+        } catch (RuntimeException e) {
+            if (isQueryTimeout(e)) {
+                cancelled.increment();
+                throw new ScanRejectedException(HttpStatus.SERVICE_UNAVAILABLE, "The search was cancelled after "
+                        + properties.getQueryTimeout().toMillis() + " ms, filters on indexed paths make it faster",
+                        properties.getRetryAfter());
+            }
+            throw e;
+        } finally {
+            running.release();
+        }
+    }
+
+    public void run(CompiledQuery query, Runnable read) {
+        run(query, () -> {
+            read.run();
+            return null;
+        });
+    }
+
+    private void admit() {
+        // a timed try keeps the order of the queue, an untimed one would let the scan jump it
+        if (tryAcquire(0)) {
+            admitted.increment();
+            return;
+        }
+        if (queued.incrementAndGet() > properties.getMaxQueuedScans()) {
+            queued.decrementAndGet();
+            queueFull.increment();
+            throw new ScanRejectedException(HttpStatus.TOO_MANY_REQUESTS,
+                    "Too many searches without indexed filters, please retry later", properties.getRetryAfter());
+        }
+        boolean acquired;
+        try {
+            acquired = tryAcquire(properties.getMaxQueueWait().toNanos());
+        } finally {
+            queued.decrementAndGet();
+        }
+        if (!acquired) {
+            queueWaitOver.increment();
+            throw new ScanRejectedException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "Searches without indexed filters are busy, please retry later", properties.getRetryAfter());
+        }
+        admitted.increment();
+    }
+
+    private boolean tryAcquire(long timeoutNanos) {
+        try {
+            return running.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean isQueryTimeout(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof QueryTimeoutException || cause instanceof javax.persistence.QueryTimeoutException
+                    || cause instanceof SQLTimeoutException) {
+                return true;
+            }
+            // the SQL Server driver reports a statement it cancelled after the query timeout with this state
+            if (cause instanceof SQLException && "HY008".equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,36 @@
+package irish.franklin.springmssqljson.bulkhead;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.scan-bulkhead")
+public class ScanBulkheadProperties {
+    /** Whether reads that parse every document are limited and time out, reads that seek an index never are */
+    private boolean enabled = false;
+
+    /**
+     * The max amount of scans running at once, each holds a pooled connection. It has to be lower than the pool size,
+     * the rest of the pool is kept for reads by id, reads that seek and writes.
+     */
+    private int maxConcurrentScans = 4;
+
+    /** The max amount of scans waiting for one of the running scans to finish, more are rejected with 429 */
+    private int maxQueuedScans = 16;
+
+    /** How long a scan waits for one of the running scans to finish before it is rejected with 503 */
+    private Duration maxQueueWait = Duration.ofMillis(500);
+
+    /**
+     * How long the statement of a scan may run before the driver cancels it on the server and the read fails with
+     * 503. Streams are not cancelled, they run until all books were sent.
+     */
+    private Duration queryTimeout = Duration.ofSeconds(10);
+
+    /** The Retry-After of rejected and cancelled scans */
+    private Duration retryAfter = Duration.ofSeconds(1);
+}
@@ -0,0 +1,30 @@
+package irish.franklin.springmssqljson.bulkhead;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+
+/**
+ * A scan that was shed to protect the rest of the traffic, answered with a Retry-After header.
+ */
+public class ScanRejectedException extends ResponseStatusException {
+    private final Duration retryAfter;
+
+    public ScanRejectedException(HttpStatus status, String reason, Duration retryAfter) {
+        super(status, reason);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    @Override
+    public HttpHeaders getResponseHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000)));
+        return headers;
+    }
+}
@@ -0,0 +1,121 @@
+package irish.franklin.springmssqljson.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.replica.ReadReplicaProperties;
+import irish.franklin.springmssqljson.replica.ReplicaRouting;
+import lombok.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of books by id and of search results by normalized query, both bounded and evicted by
+ * W-TinyLFU (Caffeine) with a time to live.
+ * <p>
+ * A change to a book evicts it from the by-id tier once the change is committed. Any change can alter the result of
+ * any search, so search results are keyed by a version that every committed change increments; results read before
+ * the change can't be found anymore and age out.
+ * <p>
+ * Loads read where the request reads, from a replica unless the request is pinned to the primary. A replica may not
+ * have caught up with a change for up to the sticky window of {@link ReadReplicaProperties}, so what a load read from a
+ * replica within that window of a change of the book, or of any change for search results, is returned but not cached.
+ */
+@Component
+public class BookCache {
+    private final boolean enabled;
+    private final boolean replicasEnabled;
+    private final long stickyWindowNanos;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong lastChangeNanos;
+    /** When books were last changed, kept for the sticky window */
+    private final Cache<Integer, Long> changeNanosById;
+    private final Cache<Integer, RawBook> booksById;
+    private final Cache<QueryKey, List<RawBook>> queryResults;
+
+    public BookCache(BookCacheProperties properties, ReadReplicaProperties readReplicaProperties, MeterRegistry meterRegistry) {
+        this.enabled = properties.isEnabled();
+        this.replicasEnabled = readReplicaProperties.isEnabled();
+        this.stickyWindowNanos = readReplicaProperties.getStickyWindow().toNanos();
+        // no change yet, as if the last one was a sticky window ago
+        this.lastChangeNanos = new AtomicLong(System.nanoTime() - stickyWindowNanos);
+        this.changeNanosById = Caffeine.newBuilder()
+                .expireAfterWrite(readReplicaProperties.getStickyWindow())
+                .build();
+        this.booksById = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxBooksById())
+                .expireAfterWrite(properties.getTimeToLive())
+                .recordStats()
+                .build();
+        this.queryResults = Caffeine.newBuilder()
+                .maximumWeight(properties.getMaxBooksInQueryResults())
+                .weigher((QueryKey key, List<RawBook> books) -> books.size() + 1)
+                .expireAfterWrite(properties.getTimeToLive())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, booksById, "books.by-id");
+        CaffeineCacheMetrics.monitor(meterRegistry, queryResults, "books.query-results");
+    }
+
+    public Optional<RawBook> findById(Integer id, Function<Integer, Optional<RawBook>> loader) {
+        if (!enabled) {
+            return loader.apply(id);
+        }
+        // books that don't exist are not cached, neither are books that may be older than the last change
+        RawBook[] loaded = new RawBook[1];
+        RawBook cached = booksById.get(id, key -> {
+            loaded[0] = loader.apply(key).orElse(null);
+            return mayHaveMissed(changeNanosById.getIfPresent(key)) ? null : loaded[0];
+        });
+        return Optional.ofNullable(cached != null ? cached : loaded[0]);
+    }
+
+    public List<RawBook> findBooks(BookQuery query, Function<BookQuery, List<RawBook>> loader) {
+        if (!enabled) {
+            return loader.apply(query);
+        }
+        List<List<RawBook>> loaded = new ArrayList<>(1);
+        List<RawBook> cached = queryResults.get(new QueryKey(version.get(), query), key -> {
+            loaded.add(Collections.unmodifiableList(loader.apply(key.getQuery())));
+            return mayHaveMissed(lastChangeNanos.get()) ? null : loaded.get(0);
+        });
+        return cached != null ? cached : loaded.get(0);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookChanged(BookChangedEvent event) {
+        long now = System.nanoTime();
+        lastChangeNanos.set(now);
+        changeNanosById.put(event.getId(), now);
+        version.incrementAndGet();
+        // blocks until a load of the same id that may have read the old book has finished, then evicts it
+        booksById.invalidate(event.getId());
+    }
+
+    /**
+     * Whether a load just now may have read a replica that hasn't caught up with the change at the given time yet.
+     */
+    private boolean mayHaveMissed(Long changeNanos) {
+        return replicasEnabled
+                && !ReplicaRouting.isPrimaryRequired()
+                && changeNanos != null
+                && System.nanoTime() - changeNanos < stickyWindowNanos;
+    }
+
+    @Value
+    private static class QueryKey {
+        long version;
+        BookQuery query;
+    }
+}
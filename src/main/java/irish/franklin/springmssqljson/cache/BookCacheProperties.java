@@ -0,0 +1,23 @@
+package irish.franklin.springmssqljson.cache;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.cache")
+public class BookCacheProperties {
+    private boolean enabled = true;
+
+    /** How long an entry is served before it is read from the database again, even without writes */
+    private Duration timeToLive = Duration.ofMinutes(5);
+
+    /** The max amount of books cached by id */
+    private long maxBooksById = 10_000;
+
+    /** The max amount of books in all cached search results together */
+    private long maxBooksInQueryResults = 50_000;
+}
@@ -0,0 +1,15 @@
+package irish.franklin.springmssqljson.changes;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.changes")
+public class BookChangesProperties {
+    /** How long tombstones of deleted books are kept, older change tokens have to sync all books again */
+    private Duration tombstoneRetention = Duration.ofDays(7);
+}
@@ -0,0 +1,60 @@
+package irish.franklin.springmssqljson.changes;
+
+import irish.franklin.springmssqljson.query.BookStatements;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Deletes the tombstones older than the retention and moves the horizon up to the newest deleted tombstone, so a
+ * change token from before it is answered with 410 instead of silently missing deletes.
+ */
+@Slf4j
+@Component
+@Profile("!reactive")
+// a lazily initialized bean would never be created, so it would never be scheduled
+@Lazy(false)
+@RequiredArgsConstructor
+public class TombstonePruner {
+    private final JdbcTemplate jdbcTemplate;
+    private final BookChangesProperties properties;
+
+    @Scheduled(initialDelayString = "${book-library.changes.prune-delay:PT1H}",
+            fixedDelayString = "${book-library.changes.prune-delay:PT1H}")
+    void pruneInBackground() {
+        int prunedTombstones = prune(properties.getTombstoneRetention());
+        if (prunedTombstones > 0) {
+            log.info("Pruned {} tombstones of deleted books", prunedTombstones);
+        }
+    }
+
+    /**
+     * Deletes the tombstones of books deleted longer than the retention ago, by the clock of the database.
+     *
+     * @return the amount of deleted tombstones
+     */
+    public int prune(Duration retention) {
+        // one batch, so the horizon and the tombstones are changed together
+        return jdbcTemplate.queryForObject("SET NOCOUNT ON;"
+                        + " DECLARE @pruned INT = 0;"
+                        + " DECLARE @horizon BINARY(8) = (SELECT MAX(row_version) FROM " + BookStatements.TOMBSTONES
+                        + " WHERE deleted_at < DATEADD(SECOND, -?, SYSUTCDATETIME()));"
+                        + " IF @horizon IS NOT NULL"
+                        + " BEGIN"
+                        + " BEGIN TRANSACTION;"
+                        + " UPDATE " + BookStatements.TOMBSTONE_HORIZON + " SET pruned_through = @horizon;"
+                        + " DELETE FROM " + BookStatements.TOMBSTONES + " WHERE row_version <= @horizon;"
+                        + " SET @pruned = @@ROWCOUNT;"
+                        + " COMMIT;"
+                        + " END"
+                        + " SELECT @pruned",
+                Integer.class,
+                retention.getSeconds());
+    }
+}
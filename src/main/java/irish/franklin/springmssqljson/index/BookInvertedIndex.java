@@ -0,0 +1,513 @@
+package irish.franklin.springmssqljson.index;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.query.BookStatements;
+import irish.franklin.springmssqljson.query.FilterOperator;
+import irish.franklin.springmssqljson.query.JsonPathFilter;
+import irish.franklin.springmssqljson.query.ValueType;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory inverted index of the scalar values in {@code additionalProperties}: for every path and value, the
+ * ids of the books holding that value at that path, as a compressed bitmap. Equality filters on paths without an
+ * indexed path column resolve to the intersection of those bitmaps, so SQL only reads the candidate books instead of
+ * parsing every document.
+ * <p>
+ * The index only ever narrows down the candidates: SQL still applies every filter to them, so a candidate that no
+ * longer matches is dropped. Values are folded like a case insensitive collation compares them, and values a
+ * collation or JSON_VALUE could match in more than one way (floats, long values) are not indexed and filters on them
+ * scan. Books changed since the index last read them are candidates of every filter until it reads them again, so a
+ * committed write is found right away.
+ * <p>
+ * The index is built at startup by scanning ranges of ids in parallel, and kept up to date from the
+ * {@link BookChangedEvent} of every write, re-reading the changed books every
+ * {@code book-library.inverted-index.refresh-delay}.
+ */
+@Slf4j
+@Component
+@Profile("!reactive")
+// a lazily initialized bean would never be created, so it would never be built
+@Lazy(false)
+public class BookInvertedIndex {
+    private static final String ROOT_PATH = "additionalProperties";
+    private static final Pattern MEMBER_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]{0,63}");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d*)?([eE][+-]?\\d+)?");
+    private static final Pattern CANONICAL_INTEGER = Pattern.compile("-?[1-9]\\d*|0");
+    // a JsonPath has at most 8 names, additionalProperties is the first
+    private static final int MAX_DEPTH = 7;
+    private static final int BATCH_SIZE = 1000;
+    private static final char TERM_SEPARATOR = '\u0000';
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final InvertedIndexProperties properties;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final List<RoaringBitmap> postings = new ArrayList<>();
+    private int[][] termIdsByBookId = new int[0][];
+    private long entries;
+    /** Books changed since the last refresh */
+    private RoaringBitmap changed = new RoaringBitmap();
+    /** Books changed before the running refresh, they stay candidates until it has indexed them */
+    private RoaringBitmap refreshing = new RoaringBitmap();
+
+    private volatile boolean ready;
+
+    public BookInvertedIndex(JdbcTemplate jdbcTemplate, ObjectMapper objectMapper,
+                             InvertedIndexProperties properties, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.properties = properties;
+        if (properties.isEnabled()) {
+            Gauge.builder("book.inverted-index.entries", this, index -> index.getStats().getEntries())
+                    .description("Path and value entries of the books in the inverted index")
+                    .register(meterRegistry);
+            Gauge.builder("book.inverted-index.terms", this, index -> index.getStats().getTerms())
+                    .description("Distinct paths and values in the inverted index")
+                    .register(meterRegistry);
+            Gauge.builder("book.inverted-index.size", this, index -> index.getStats().getBytes())
+                    .description("Estimated heap used by the inverted index")
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+        }
+    }
+
+    /** Whether the index is built and can resolve filters */
+    public boolean isReady() {
+        return properties.isEnabled() && ready;
+    }
+
+    /**
+     * The ids of the books that may match all filters the index can resolve, without the ids up to {@code after}.
+     * Empty when the index can't resolve any of the filters or they match more than the max candidates.
+     */
+    public Optional<RoaringBitmap> candidates(List<JsonPathFilter> filters, Integer after) {
+        List<JsonPathFilter> resolvable = filters.stream()
+                .filter(this::canResolve)
+                .collect(Collectors.toList());
+        if (!isReady() || resolvable.isEmpty()) {
+            return Optional.empty();
+        }
+        RoaringBitmap candidates = null;
+        lock.readLock().lock();
+        try {
+            for (JsonPathFilter filter : resolvable) {
+                RoaringBitmap matches = new RoaringBitmap();
+                for (String value : filter.getValues()) {
+                    Integer termId = termIds.get(term(filter.getPath().getFieldName(), value));
+                    if (termId != null) {
+                        matches.or(postings.get(termId));
+                    }
+                }
+                if (candidates == null) {
+                    candidates = matches;
+                } else {
+                    candidates.and(matches);
+                }
+            }
+            candidates.or(changed);
+            candidates.or(refreshing);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (after != null && after >= 0) {
+            candidates.remove(0L, after + 1L);
+        }
+        return candidates.getCardinality() > properties.getMaxCandidates() ? Optional.empty() : Optional.of(candidates);
+    }
+
+    /** The ids as a JSON array, for OPENJSON */
+    public static String toJsonArray(RoaringBitmap ids) {
+        StringBuilder json = new StringBuilder(ids.getCardinality() * 8).append('[');
+        ids.forEach((int id) -> json.append(json.length() > 1 ? "," : "").append(id));
+        return json.append(']').toString();
+    }
+
+    private boolean canResolve(JsonPathFilter filter) {
+        return (filter.getOperator() == FilterOperator.EQ || filter.getOperator() == FilterOperator.IN)
+                && filter.getValueType() == ValueType.STRING
+                && filter.getPath().getFieldName().startsWith(ROOT_PATH + ".")
+                && filter.getValues().stream().allMatch(this::isIndexable);
+    }
+
+    /**
+     * Whether JSON_VALUE returns the value as it is for every document holding it. A number other than a plain
+     * integer, e.g. {@code 1.50} or {@code 1e3}, is returned as written in the document, which parsing loses.
+     */
+    private boolean isIndexable(String value) {
+        return value.length() <= properties.getMaxValueLength()
+                && (CANONICAL_INTEGER.matcher(value).matches() || !NUMBER.matcher(value).matches());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void buildInBackground() {
+        if (properties.isEnabled()) {
+            Thread build = new Thread(this::build, "inverted-index-build");
+            build.setDaemon(true);
+            build.start();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    void bookChanged(BookChangedEvent event) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            changed.add(event.getId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the index from scratch, scanning ranges of ids in parallel. Filters scan until it is done.
+     */
+    public synchronized void build() {
+        long start = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            termIds.clear();
+            postings.clear();
+            termIdsByBookId = new int[0][];
+            entries = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Map<String, Object> ids = jdbcTemplate.queryForMap("SELECT MIN(id) AS min_id, MAX(id) AS max_id FROM BOOK_LIBRARY");
+        if (ids.get("min_id") != null) {
+            long minId = ((Number) ids.get("min_id")).longValue();
+            long maxId = ((Number) ids.get("max_id")).longValue();
+            int threads = Math.max(1, properties.getScanThreads());
+            long rangeSize = (maxId - minId) / threads + 1;
+            ExecutorService scanners = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("inverted-index-scan-"));
+            try {
+                List<Future<?>> scans = new ArrayList<>();
+                for (long from = minId; from <= maxId; from += rangeSize) {
+                    long to = Math.min(maxId, from + rangeSize - 1);
+                    long rangeStart = from;
+                    scans.add(scanners.submit(() -> scan(rangeStart, to)));
+                }
+                for (Future<?> scan : scans) {
+                    scan.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while building the inverted index", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Building the inverted index failed", e.getCause());
+            } finally {
+                scanners.shutdownNow();
+            }
+        }
+        ready = true;
+        Stats stats = getStats();
+        log.info("Built the inverted index of {} entries, {} terms, about {} MB, in {} ms",
+                stats.getEntries(), stats.getTerms(), stats.getBytes() / 1_000_000,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void scan(long fromId, long toId) {
+        Map<Integer, List<String>> batch = new HashMap<>();
+        jdbcTemplate.query(selectAdditionalProperties("id BETWEEN ? AND ?"), (RowCallbackHandler) resultSet -> {
+            batch.put(resultSet.getInt("id"), terms(resultSet));
+            if (batch.size() == BATCH_SIZE) {
+                index(batch, Collections.emptyList());
+                batch.clear();
+            }
+        }, fromId, toId);
+        index(batch, Collections.emptyList());
+    }
+
+    @Scheduled(initialDelayString = "${book-library.inverted-index.refresh-delay:PT1S}",
+            fixedDelayString = "${book-library.inverted-index.refresh-delay:PT1S}")
+    void refreshInBackground() {
+        if (isReady()) {
+            refresh();
+        }
+    }
+
+    /**
+     * Reads the books changed since the last refresh again and indexes their committed state.
+     *
+     * @return the amount of changed books
+     */
+    public synchronized int refresh() {
+        RoaringBitmap ids;
+        lock.writeLock().lock();
+        try {
+            refreshing = changed;
+            changed = new RoaringBitmap();
+            ids = refreshing;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            int[] idArray = ids.toArray();
+            for (int from = 0; from < idArray.length; from += BATCH_SIZE) {
+                int[] batchIds = Arrays.copyOfRange(idArray, from, Math.min(from + BATCH_SIZE, idArray.length));
+                Map<Integer, List<String>> batch = new HashMap<>();
+                jdbcTemplate.query(selectAdditionalProperties("id IN (SELECT CAST([value] AS INT) FROM OPENJSON(?))"),
+                        (RowCallbackHandler) resultSet -> batch.put(resultSet.getInt("id"), terms(resultSet)),
+                        toJsonArray(RoaringBitmap.bitmapOf(batchIds)));
+                List<Integer> deletedIds = Arrays.stream(batchIds)
+                        .filter(id -> !batch.containsKey(id))
+                        .boxed()
+                        .collect(Collectors.toList());
+                index(batch, deletedIds);
+            }
+        } catch (RuntimeException e) {
+            lock.writeLock().lock();
+            try {
+                changed.or(refreshing);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                refreshing = new RoaringBitmap();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return ids.getCardinality();
+    }
+
+    private static String selectAdditionalProperties(String condition) {
+        return "SELECT id, JSON_QUERY(book, '$." + ROOT_PATH + "') AS additional_properties FROM "
+                + BookStatements.DOCUMENTS_VIEW + " WHERE " + condition;
+    }
+
+    private List<String> terms(ResultSet resultSet) throws SQLException {
+        String additionalProperties = resultSet.getString("additional_properties");
+        List<String> terms = new ArrayList<>();
+        if (additionalProperties != null) {
+            try {
+                collectTerms(objectMapper.readTree(additionalProperties), ROOT_PATH, 1, terms);
+            } catch (JsonProcessingException e) {
+                log.warn("Not indexing book {}, its additionalProperties are not valid JSON", resultSet.getInt("id"));
+            }
+        }
+        return terms;
+    }
+
+    private void collectTerms(JsonNode node, String path, int depth, List<String> terms) {
+        if (node.isObject()) {
+            if (depth > MAX_DEPTH) {
+                return;
+            }
+            Iterator<Map.Entry<String, JsonNode>> members = node.fields();
+            while (members.hasNext()) {
+                Map.Entry<String, JsonNode> member = members.next();
+                if (MEMBER_NAME.matcher(member.getKey()).matches()) {
+                    collectTerms(member.getValue(), path + "." + member.getKey(), depth + 1, terms);
+                }
+            }
+        } else if (node.isTextual() || node.isBoolean() || node.isIntegralNumber()) {
+            String value = node.asText();
+            if (isIndexable(value)) {
+                terms.add(term(path, value));
+            }
+        }
+    }
+
+    /**
+     * The path and the value folded like a case insensitive collation compares it, which ignores trailing spaces.
+     * Folding more than the collation only adds candidates, which SQL filters out.
+     */
+    private static String term(String path, String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return path + TERM_SEPARATOR + value.substring(0, end).toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+    }
+
+    private void index(Map<Integer, List<String>> books, List<Integer> deletedIds) {
+        lock.writeLock().lock();
+        try {
+            books.forEach(this::replaceTerms);
+            deletedIds.forEach(id -> replaceTerms(id, Collections.emptyList()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void replaceTerms(int bookId, List<String> terms) {
+        if (bookId < 0) {
+            return;
+        }
+        if (bookId < termIdsByBookId.length && termIdsByBookId[bookId] != null) {
+            for (int termId : termIdsByBookId[bookId]) {
+                if (postings.get(termId).checkedRemove(bookId)) {
+                    entries--;
+                }
+            }
+            termIdsByBookId[bookId] = null;
+        }
+        if (terms.isEmpty()) {
+            return;
+        }
+        int[] bookTermIds = new int[terms.size()];
+        int termCount = 0;
+        for (String term : terms) {
+            Integer termId = termIds.get(term);
+            if (termId == null) {
+                termId = postings.size();
+                termIds.put(term, termId);
+                postings.add(new RoaringBitmap());
+            }
+            // false for a path repeated with the same value
+            if (postings.get(termId).checkedAdd(bookId)) {
+                entries++;
+                bookTermIds[termCount++] = termId;
+            }
+        }
+        if (bookId >= termIdsByBookId.length) {
+            termIdsByBookId = Arrays.copyOf(termIdsByBookId, Math.max(bookId + 1, termIdsByBookId.length * 3 / 2));
+        }
+        termIdsByBookId[bookId] = Arrays.copyOf(bookTermIds, termCount);
+    }
+
+    /**
+     * The size of the index. Bitmaps and the per book term ids are measured, the term dictionary is estimated from
+     * the length of the terms.
+     */
+    public Stats getStats() {
+        lock.readLock().lock();
+        try {
+            long bitmapBytes = 0;
+            for (RoaringBitmap posting : postings) {
+                bitmapBytes += posting.getLongSizeInBytes();
+            }
+            long bookTermBytes = 16L + 4L * termIdsByBookId.length;
+            for (int[] bookTermIds : termIdsByBookId) {
+                bookTermBytes += bookTermIds == null ? 0 : 16 + 4L * bookTermIds.length;
+            }
+            long dictionaryBytes = 0;
+            for (String term : termIds.keySet()) {
+                // the string, its map entry, the boxed term id and the bitmap's object and list slot
+                dictionaryBytes += 2L * term.length() + 160;
+            }
+            return new Stats(termIds.size(), entries, bitmapBytes, bookTermBytes, dictionaryBytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compares the books of up to {@code maxTerms} terms, spread over the dictionary, with the books SQL finds by
+     * JSON_VALUE. Missing books would be filters missing results, stale books are only extra candidates.
+     */
+    public ConsistencyReport verify(int maxTerms) {
+        List<String> terms = new ArrayList<>();
+        List<RoaringBitmap> indexed = new ArrayList<>();
+        RoaringBitmap pending;
+        lock.readLock().lock();
+        try {
+            List<String> allTerms = new ArrayList<>(termIds.keySet());
+            Collections.sort(allTerms);
+            int step = Math.max(1, allTerms.size() / Math.max(1, maxTerms));
+            for (int i = 0; i < allTerms.size() && terms.size() < maxTerms; i += step) {
+                terms.add(allTerms.get(i));
+                indexed.add(postings.get(termIds.get(allTerms.get(i))).clone());
+            }
+            pending = RoaringBitmap.or(changed, refreshing);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        long missing = 0;
+        long stale = 0;
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            int separator = term.indexOf(TERM_SEPARATOR);
+            RoaringBitmap found = new RoaringBitmap();
+            jdbcTemplate.query("SELECT id FROM " + BookStatements.DOCUMENTS_VIEW + " WHERE JSON_VALUE(book, ?) = ?",
+                    (RowCallbackHandler) resultSet -> found.add(resultSet.getInt("id")),
+                    "$." + term.substring(0, separator), term.substring(separator + 1));
+            RoaringBitmap candidates = RoaringBitmap.or(indexed.get(i), pending);
+            missing += RoaringBitmap.andNot(found, candidates).getLongCardinality();
+            stale += RoaringBitmap.andNot(RoaringBitmap.andNot(indexed.get(i), found), pending).getLongCardinality();
+        }
+        return new ConsistencyReport(terms.size(), missing, stale);
+    }
+
+    @Value
+    public static class Stats {
+        int terms;
+        long entries;
+        long bitmapBytes;
+        long bookTermBytes;
+        long dictionaryBytes;
+
+        public long getBytes() {
+            return bitmapBytes + bookTermBytes + dictionaryBytes;
+        }
+
+        public long getBytesPerMillionEntries() {
+            return entries == 0 ? 0 : getBytes() * 1_000_000 / entries;
+        }
+    }
+
+    @Value
+    public static class ConsistencyReport {
+        int checkedTerms;
+        /** Books SQL finds that the index doesn't, a filter would miss them */
+        long missingBooks;
+        /** Books the index has that SQL doesn't find, SQL filters them out */
+        long staleBooks;
+
+        public boolean isConsistent() {
+            return missingBooks == 0;
+        }
+    }
+}
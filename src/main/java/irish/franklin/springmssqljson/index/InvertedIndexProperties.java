@@ -0,0 +1,22 @@
+package irish.franklin.springmssqljson.index;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.inverted-index")
+public class InvertedIndexProperties {
+    /** Whether equality filters on additionalProperties paths are resolved to ids in memory */
+    private boolean enabled = false;
+
+    /** The threads scanning the table when the index is built at startup, each scans its own range of ids */
+    private int scanThreads = 4;
+
+    /** Longer values are not indexed, filters on them scan like without the index */
+    private int maxValueLength = 256;
+
+    /** Filters matching more books scan like without the index, as sending the ids would cost more than it saves */
+    private int maxCandidates = 50_000;
+}
@@ -0,0 +1,53 @@
+package irish.franklin.springmssqljson.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.config.MeterFilter;
+import irish.franklin.springmssqljson.BookLibraryRepository;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the book repository and the data source to record the book library metrics. None of it is created when
+ * {@code book-library.metrics.enabled} is false, so disabled metrics cost nothing on the request path.
+ * <p>
+ * Requests are timed by Actuator as {@code http.server.requests}, Hibernate statistics are published as
+ * {@code hibernate.*} when {@code hibernate.generate_statistics} is on.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "book-library.metrics.enabled", matchIfMissing = true)
+public class BookMetricsConfiguration {
+
+    @Bean
+    static BeanPostProcessor bookRepositoryMetricsPostProcessor(ObjectProvider<MeterRegistry> meterRegistry,
+                                                                ObjectProvider<BookMetricsProperties> properties) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof BookLibraryRepository && bean instanceof Advised) {
+                    ((Advised) bean).addAdvice(0, new RepositoryMetricsInterceptor(meterRegistry, properties.getObject()));
+                } else if (bean instanceof DataSource && !(bean instanceof StatementCountingDataSource)) {
+                    return new StatementCountingDataSource((DataSource) bean);
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    StatementCountFilter statementCountFilter(MeterRegistry meterRegistry) {
+        return new StatementCountFilter(meterRegistry);
+    }
+
+    @Bean
+    MeterFilter maxQueryShapesMeterFilter(BookMetricsProperties properties) {
+        return MeterFilter.maximumAllowableTags("book.repository", "shape", properties.getMaxQueryShapes(), MeterFilter.deny());
+    }
+}
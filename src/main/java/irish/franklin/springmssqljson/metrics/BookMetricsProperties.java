@@ -0,0 +1,21 @@
+package irish.franklin.springmssqljson.metrics;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.metrics")
+public class BookMetricsProperties {
+    /** Without metrics the repository and data source are not wrapped at all */
+    private boolean enabled = true;
+
+    /** Repository calls taking at least this long are logged with their query shape */
+    private Duration slowQueryThreshold = Duration.ofMillis(500);
+
+    /** The max amount of distinct query shapes tagged, calls with further shapes are not recorded */
+    private int maxQueryShapes = 200;
+}
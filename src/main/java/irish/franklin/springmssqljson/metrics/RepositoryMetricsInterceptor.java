@@ -0,0 +1,128 @@
+package irish.franklin.springmssqljson.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import irish.franklin.springmssqljson.models.BookChange;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.BookQuery;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Times every call of the book repository, tagged by method and by the shape of its {@link BookQuery}, and records
+ * how many rows it returned and how large their JSON documents were. Streamed rows are counted by wrapping the
+ * consumer they are passed to.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class RepositoryMetricsInterceptor implements MethodInterceptor {
+    static final String CALLS = "book.repository.calls";
+    static final String ROWS = "book.repository.rows";
+    static final String DOCUMENT_SIZE = "book.repository.document.size";
+
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+    private final BookMetricsProperties properties;
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        String shape = "none";
+        Object[] arguments = invocation.getArguments();
+        Rows rows = new Rows();
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i] instanceof BookQuery) {
+                shape = ((BookQuery) arguments[i]).getShape();
+            } else if (arguments[i] instanceof Consumer) {
+                arguments[i] = rows.counting((Consumer<?>) arguments[i]);
+            }
+        }
+
+        long start = System.nanoTime();
+        String exception = "none";
+        try {
+            Object result = invocation.proceed();
+            rows.add(result);
+            return result;
+        } catch (Throwable e) {
+            exception = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            record(invocation.getMethod().getName(), shape, exception, System.nanoTime() - start, rows);
+        }
+    }
+
+    private void record(String method, String shape, String exception, long durationNanos, Rows rows) {
+        MeterRegistry registry = meterRegistry.getObject();
+        Tags tags = Tags.of("method", method, "shape", shape);
+        Timer.builder(CALLS)
+                .description("Calls of the book repository")
+                .tags(tags)
+                .tag("exception", exception)
+                .register(registry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+        if (rows.returned) {
+            DistributionSummary.builder(ROWS)
+                    .description("Rows returned by a call of the book repository")
+                    .tags(tags)
+                    .register(registry)
+                    .record(rows.count);
+        }
+        if (rows.documentBytes > 0) {
+            DistributionSummary.builder(DOCUMENT_SIZE)
+                    .description("Size of the JSON documents returned by a call of the book repository")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(registry)
+                    .record(rows.documentBytes);
+        }
+
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        if (durationMillis >= properties.getSlowQueryThreshold().toMillis()) {
+            log.warn("Slow book repository call {} with query shape [{}] took {} ms and returned {} rows",
+                    method, shape, durationMillis, rows.returned ? rows.count : "no");
+        }
+    }
+
+    private static class Rows {
+        boolean returned;
+        long count;
+        long documentBytes;
+
+        <T> Consumer<T> counting(Consumer<T> consumer) {
+            returned = true;
+            return row -> {
+                addRow(row);
+                consumer.accept(row);
+            };
+        }
+
+        void add(Object result) {
+            if (result instanceof Collection) {
+                returned = true;
+                ((Collection<?>) result).forEach(this::addRow);
+            } else if (result instanceof Optional) {
+                returned = true;
+                ((Optional<?>) result).ifPresent(this::addRow);
+            }
+        }
+
+        private void addRow(Object row) {
+            count++;
+            if (row instanceof RawBook) {
+                // JSON text is almost all ASCII, so its length is close enough to the size in bytes
+                documentBytes += ((RawBook) row).getJson().length();
+            } else if (row instanceof BookChange && !((BookChange) row).isDeleted()) {
+                documentBytes += ((BookChange) row).getJson().length();
+            }
+        }
+    }
+}
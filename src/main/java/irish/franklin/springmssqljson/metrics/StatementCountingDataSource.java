@@ -0,0 +1,83 @@
+package irish.franklin.springmssqljson.metrics;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Counts the statements executed on the current thread between {@link #startCounting()} and {@link #stopCounting()},
+ * e.g. during a request. A JDBC batch counts as one statement since it is one round trip.
+ */
+class StatementCountingDataSource extends DelegatingDataSource {
+    private static final ThreadLocal<int[]> STATEMENT_COUNT = new ThreadLocal<>();
+
+    StatementCountingDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    static void startCounting() {
+        STATEMENT_COUNT.set(new int[1]);
+    }
+
+    static int stopCounting() {
+        int[] count = STATEMENT_COUNT.get();
+        STATEMENT_COUNT.remove();
+        return count != null ? count[0] : 0;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return countingConnection(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return countingConnection(super.getConnection(username, password));
+    }
+
+    private static Connection countingConnection(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(StatementCountingDataSource.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    Object result = invoke(connection, method, args);
+                    if (result instanceof CallableStatement) {
+                        return countingStatement(result, CallableStatement.class);
+                    } else if (result instanceof PreparedStatement) {
+                        return countingStatement(result, PreparedStatement.class);
+                    } else if (result instanceof Statement) {
+                        return countingStatement(result, Statement.class);
+                    }
+                    return result;
+                });
+    }
+
+    private static Object countingStatement(Object statement, Class<?> statementType) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getName().startsWith("execute")) {
+                int[] count = STATEMENT_COUNT.get();
+                if (count != null) {
+                    count[0]++;
+                }
+            }
+            return invoke(statement, method, args);
+        };
+        return Proxy.newProxyInstance(StatementCountingDataSource.class.getClassLoader(),
+                new Class<?>[]{statementType}, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package irish.franklin.springmssqljson.models;
+
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+/**
+ * One group of an aggregation: the value at the grouped path, {@code null} for books without it, and its metric.
+ */
+@Value
+public class AggregateBucket {
+    String key;
+    Object value;
+
+    /**
+     * Converts the metric as read by JDBC or R2DBC, so numbers don't carry the scale of the DECIMAL they were cast to.
+     */
+    public static AggregateBucket of(String key, Object value) {
+        if (value instanceof BigDecimal) {
+            BigDecimal number = ((BigDecimal) value).stripTrailingZeros();
+            value = number.scale() < 0 ? number.setScale(0) : number;
+        } else if (value instanceof Timestamp) {
+            value = ((Timestamp) value).toLocalDateTime();
+        }
+        return new AggregateBucket(key, value);
+    }
+}
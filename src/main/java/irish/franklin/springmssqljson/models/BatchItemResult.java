@@ -0,0 +1,29 @@
+package irish.franklin.springmssqljson.models;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+
+/**
+ * The outcome of one book in a batch create, {@code index} is its position in the request.
+ */
+@Value
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItemResult {
+    int index;
+    int status;
+    Book book;
+    String error;
+
+    public static BatchItemResult created(int index, Book book) {
+        return new BatchItemResult(index, HttpStatus.CREATED.value(), book, null);
+    }
+
+    public static BatchItemResult failed(int index, HttpStatus status, String error) {
+        return new BatchItemResult(index, status.value(), null, error);
+    }
+
+    public boolean isCreated() {
+        return status == HttpStatus.CREATED.value();
+    }
+}
@@ -0,0 +1,40 @@
+package irish.franklin.springmssqljson.models;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import lombok.Value;
+
+import java.io.IOException;
+
+/**
+ * A book created, updated or deleted since a change token. A written book is the stored document as is, like a
+ * {@link RawBook}, and a deleted book is a tombstone without document: {@code {"id":1,"deleted":true}}.
+ */
+@Value
+@JsonSerialize(using = BookChange.Serializer.class)
+public class BookChange {
+    Integer id;
+
+    /** The document with the id spliced in, {@code null} for a deleted book */
+    String json;
+
+    public boolean isDeleted() {
+        return json == null;
+    }
+
+    static class Serializer extends JsonSerializer<BookChange> {
+        @Override
+        public void serialize(BookChange change, JsonGenerator generator, SerializerProvider serializers) throws IOException {
+            if (change.isDeleted()) {
+                generator.writeStartObject();
+                generator.writeNumberField("id", change.getId());
+                generator.writeBooleanField("deleted", true);
+                generator.writeEndObject();
+            } else {
+                generator.writeRawValue(change.getJson());
+            }
+        }
+    }
+}
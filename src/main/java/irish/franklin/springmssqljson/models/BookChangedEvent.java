@@ -0,0 +1,15 @@
+package irish.franklin.springmssqljson.models;
+
+import lombok.Value;
+
+/**
+ * Published whenever a book is created, updated or deleted. Listeners that keep derived state should use
+ * {@code @TransactionalEventListener(fallbackExecution = true)} so they only see committed changes.
+ */
+@Value
+public class BookChangedEvent {
+    public enum Change { CREATED, UPDATED, DELETED }
+
+    Integer id;
+    Change change;
+}
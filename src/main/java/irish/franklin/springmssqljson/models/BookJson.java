@@ -1,17 +1,23 @@
 package irish.franklin.springmssqljson.models;
 
 import com.vladmihalcea.hibernate.type.json.JsonStringType;
+import irish.franklin.springmssqljson.query.BookStatements;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.ColumnTransformer;
+import org.hibernate.annotations.SQLDelete;
+import org.hibernate.annotations.SQLUpdate;
 import org.hibernate.annotations.Type;
 import org.hibernate.annotations.TypeDef;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 
@@ -21,17 +27,27 @@ import javax.validation.constraints.NotNull;
 @NoArgsConstructor
 @Table(name = "BOOK_LIBRARY")
 @Entity
+@EntityListeners(BookJsonListener.class)
+// an updated row is stored as text, like every write, until the storage migration runs again
+@SQLUpdate(sql = "UPDATE BOOK_LIBRARY SET book = ?, book_codec = 0, book_gz = NULL WHERE id = ?")
+// leaves a tombstone for the changes endpoint, like the deletes of the repository
+@SQLDelete(sql = BookStatements.DELETE_WITH_TOMBSTONE + "?")
 @TypeDef(
         name = "json",
         typeClass = JsonStringType.class
 )
 public class BookJson {
+    /** Ids are allocated from the sequence in blocks of this size, so inserts don't need a round trip per id */
+    public static final int ID_ALLOCATION_SIZE = 50;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "book_library_seq")
+    @SequenceGenerator(name = "book_library_seq", sequenceName = "BOOK_LIBRARY_SEQ", allocationSize = ID_ALLOCATION_SIZE)
     private Integer id;
 
     @NotNull
     @Type( type = "json" )
+    @ColumnTransformer(read = "dbo.BOOK_DOCUMENT(book_codec, book, book_gz)")
     Book book;
 
     public Book getBook() {
@@ -0,0 +1,31 @@
+package irish.franklin.springmssqljson.models;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * Publishes a {@link BookChangedEvent} for every write made through JPA. Writes made with native SQL publish their own.
+ */
+@RequiredArgsConstructor
+public class BookJsonListener {
+    private final ApplicationEventPublisher eventPublisher;
+
+    @PostPersist
+    void created(BookJson bookJson) {
+        eventPublisher.publishEvent(new BookChangedEvent(bookJson.getId(), BookChangedEvent.Change.CREATED));
+    }
+
+    @PostUpdate
+    void updated(BookJson bookJson) {
+        eventPublisher.publishEvent(new BookChangedEvent(bookJson.getId(), BookChangedEvent.Change.UPDATED));
+    }
+
+    @PostRemove
+    void deleted(BookJson bookJson) {
+        eventPublisher.publishEvent(new BookChangedEvent(bookJson.getId(), BookChangedEvent.Change.DELETED));
+    }
+}
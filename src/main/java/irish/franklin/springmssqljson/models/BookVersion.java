@@ -0,0 +1,12 @@
+package irish.franklin.springmssqljson.models;
+
+import lombok.Value;
+
+/**
+ * The id and rowversion of a book, without its document.
+ */
+@Value
+public class BookVersion {
+    Integer id;
+    String version;
+}
@@ -0,0 +1,33 @@
+package irish.franklin.springmssqljson.models;
+
+import irish.franklin.springmssqljson.utils.ETags;
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.regex.Pattern;
+
+/**
+ * The changes a read of the changes since a token can return: those before {@code until}, which is also the token of
+ * the next read. A change token is a rowversion in hex.
+ */
+@Value
+public class ChangeWindow {
+    private static final Pattern TOKEN = Pattern.compile("[0-9A-Fa-f]{16}");
+
+    byte[] until;
+
+    /** Whether every delete since the token still has its tombstone */
+    boolean complete;
+
+    public String getNextToken() {
+        return ETags.toVersion(until);
+    }
+
+    public static byte[] parseToken(String token) {
+        if (!TOKEN.matcher(token).matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid change token: " + token);
+        }
+        return ETags.toRowVersion(token);
+    }
+}
@@ -0,0 +1,33 @@
+package irish.franklin.springmssqljson.models;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import lombok.Value;
+
+import java.io.IOException;
+
+/**
+ * A book document exactly as it is stored, with the id already spliced in by the database.
+ * It is written to responses as is, so reads never parse the JSON into a {@link Book}.
+ * The version is the rowversion of the book in hex.
+ */
+@Value
+@JsonSerialize(using = RawBook.Serializer.class)
+public class RawBook {
+    Integer id;
+    String json;
+    String version;
+
+    public BookVersion toBookVersion() {
+        return new BookVersion(id, version);
+    }
+
+    static class Serializer extends JsonSerializer<RawBook> {
+        @Override
+        public void serialize(RawBook rawBook, JsonGenerator generator, SerializerProvider serializers) throws IOException {
+            generator.writeRawValue(rawBook.getJson());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package irish.franklin.springmssqljson.patch;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.BookLibraryRepository;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.replica.ReplicaRouting;
+import irish.franklin.springmssqljson.utils.ETags;
+import irish.franklin.springmssqljson.utils.JsonMergePatchUtils;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces bursts of merge patches to the same book into one read-merge-write.
+ * <p>
+ * The first patch of a book waits for the window, then it and every patch of the book that arrived meanwhile are
+ * applied to the stored book one after the other, in the order they arrived, and the result is written once. Merge
+ * patches can't always be composed into a single patch, so they are applied to the book rather than to each other,
+ * which gives the same book as writing them one by one. Every caller gets the written book, or the error of its own
+ * patch if that patch couldn't be applied, in which case the book is written without it.
+ * <p>
+ * At most one write per book is in flight, patches that arrive while it is written wait for the next write, so
+ * patches of a book are written in the order they arrived. Writes are conditional on the version read, a concurrent
+ * write that isn't coalesced makes the whole batch be applied again to the new version.
+ */
+@Slf4j
+@Component
+@Profile("!reactive")
+public class PatchCoalescer {
+    static final String PATCHES = "book.patch.coalescing.patches";
+    static final String WRITES = "book.patch.coalescing.writes";
+    static final String PATCHES_PER_WRITE = "book.patch.coalescing.patches.per.write";
+    static final String REJECTED = "book.patch.coalescing.rejected";
+    static final String QUEUED = "book.patch.coalescing.queued";
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final BookLibraryRepository repository;
+    private final ObjectMapper objectMapper;
+    private final PatchCoalescingProperties properties;
+    private final ScheduledExecutorService writers;
+    private final ConcurrentMap<Integer, BookPatches> patchesById = new ConcurrentHashMap<>();
+    private final AtomicInteger queuedPatches = new AtomicInteger();
+    private final Counter patches;
+    private final Counter writes;
+    private final Counter rejected;
+    private final DistributionSummary patchesPerWrite;
+
+    public PatchCoalescer(BookLibraryRepository repository, ObjectMapper objectMapper,
+                          PatchCoalescingProperties properties, MeterRegistry meterRegistry) {
+        this.repository = repository;
+        this.objectMapper = objectMapper;
+        this.properties = properties;
+        this.writers = properties.isEnabled()
+                ? Executors.newScheduledThreadPool(properties.getWriterThreads(), new CustomizableThreadFactory("patch-coalescer-"))
+                : null;
+        this.patches = Counter.builder(PATCHES)
+                .description("Merge patches submitted for coalescing")
+                .register(meterRegistry);
+        this.writes = Counter.builder(WRITES)
+                .description("Writes of coalesced merge patches, patches divided by writes is the coalescing ratio")
+                .register(meterRegistry);
+        this.rejected = Counter.builder(REJECTED)
+                .description("Merge patches rejected because too many patches were queued")
+                .register(meterRegistry);
+        this.patchesPerWrite = DistributionSummary.builder(PATCHES_PER_WRITE)
+                .description("Merge patches applied by one write")
+                .register(meterRegistry);
+        Gauge.builder(QUEUED, queuedPatches, AtomicInteger::get)
+                .description("Merge patches waiting to be written")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * Waits for the patch to be written together with the other patches of the book in the window.
+     *
+     * @return the book as written, which may include patches that arrived after this one
+     */
+    public RawBook patch(Integer id, JsonNode patch) {
+        try {
+            return submit(id, patch).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ResponseStatusException) {
+                throw (ResponseStatusException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public CompletableFuture<RawBook> submit(Integer id, JsonNode patch) {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Patch coalescing is disabled");
+        }
+        if (queuedPatches.incrementAndGet() > properties.getMaxQueuedPatches()) {
+            queuedPatches.decrementAndGet();
+            rejected.increment();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many patches are waiting to be written, please retry");
+        }
+        patches.increment();
+        PendingPatch pendingPatch = new PendingPatch(patch);
+        while (true) {
+            BookPatches bookPatches = patchesById.computeIfAbsent(id, BookPatches::new);
+            synchronized (bookPatches) {
+                // lost a race with the last write of the book removing it, the next attempt creates a new one
+                if (bookPatches.removed) {
+                    continue;
+                }
+                bookPatches.pending.add(pendingPatch);
+                if (!bookPatches.scheduled) {
+                    bookPatches.scheduled = true;
+                    writers.schedule(() -> write(bookPatches), properties.getWindow().toNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+            return pendingPatch.result;
+        }
+    }
+
+    private void write(BookPatches bookPatches) {
+        List<PendingPatch> batch = new ArrayList<>();
+        synchronized (bookPatches) {
+            while (!bookPatches.pending.isEmpty() && batch.size() < properties.getMaxPatchesPerWrite()) {
+                batch.add(bookPatches.pending.poll());
+            }
+        }
+        queuedPatches.addAndGet(-batch.size());
+        try {
+            // the book is read from the primary, a lagging replica would fail every conditional write
+            ReplicaRouting.onPrimary(() -> write(bookPatches.id, batch));
+        } catch (RuntimeException e) {
+            log.warn("Writing {} coalesced patches of book {} failed", batch.size(), bookPatches.id, e);
+            batch.forEach(pendingPatch -> pendingPatch.result.completeExceptionally(e));
+        }
+        synchronized (bookPatches) {
+            if (!bookPatches.pending.isEmpty()) {
+                // the patches that arrived during the write have waited long enough
+                writers.execute(() -> write(bookPatches));
+            } else {
+                bookPatches.removed = true;
+                patchesById.remove(bookPatches.id, bookPatches);
+            }
+        }
+    }
+
+    private void write(Integer id, List<PendingPatch> batch) {
+        for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            Optional<RawBook> storedBook = repository.findRawBookById(id);
+            if (!storedBook.isPresent()) {
+                ResponseStatusException notFound = new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id");
+                batch.forEach(pendingPatch -> pendingPatch.result.completeExceptionally(notFound));
+                return;
+            }
+
+            Book book = readBook(storedBook.get());
+            List<PendingPatch> applied = new ArrayList<>();
+            List<PendingPatch> failed = new ArrayList<>();
+            for (PendingPatch pendingPatch : batch) {
+                try {
+                    Book patchedBook = JsonMergePatchUtils.mergePatch(book, pendingPatch.patch, Book.class);
+                    // the tree is mapped without the setters, so a patch that removes a required field isn't refused
+                    if (patchedBook.getName() == null || patchedBook.getDescription() == null) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A book needs a name and a description");
+                    }
+                    book = patchedBook;
+                    applied.add(pendingPatch);
+                } catch (ResponseStatusException e) {
+                    pendingPatch.error = e;
+                    failed.add(pendingPatch);
+                }
+            }
+
+            Optional<RawBook> writtenBook = applied.isEmpty()
+                    ? storedBook
+                    : repository.replaceRawBook(id, writeBook(book),
+                            Collections.singletonList(ETags.toRowVersion(storedBook.get().getVersion())));
+            if (writtenBook.isPresent()) {
+                if (!applied.isEmpty()) {
+                    writes.increment();
+                    patchesPerWrite.record(applied.size());
+                }
+                applied.forEach(pendingPatch -> pendingPatch.result.complete(writtenBook.get()));
+                failed.forEach(pendingPatch -> pendingPatch.result.completeExceptionally(pendingPatch.error));
+                return;
+            }
+        }
+        ResponseStatusException conflict = new ResponseStatusException(HttpStatus.CONFLICT, "The book kept changing while patching it, please retry");
+        batch.forEach(pendingPatch -> pendingPatch.result.completeExceptionally(conflict));
+    }
+
+    private Book readBook(RawBook rawBook) {
+        try {
+            return objectMapper.readValue(rawBook.getJson(), Book.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Stored book " + rawBook.getId() + " is not a valid book", e);
+        }
+    }
+
+    private String writeBook(Book book) {
+        try {
+            return objectMapper.writeValueAsString(book);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Patched book " + book.getId() + " can't be written", e);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (writers != null) {
+            writers.shutdown();
+        }
+    }
+
+    /**
+     * The patches of a book waiting for its next write, guarded by its own monitor.
+     */
+    private static class BookPatches {
+        private final Integer id;
+        private final Deque<PendingPatch> pending = new ArrayDeque<>();
+        /** Whether a write is scheduled or running, it writes the pending patches when it's done */
+        private boolean scheduled;
+        /** Whether it was removed from patchesById, patches added to it now would never be written */
+        private boolean removed;
+
+        BookPatches(Integer id) {
+            this.id = id;
+        }
+    }
+
+    private static class PendingPatch {
+        private final JsonNode patch;
+        private final CompletableFuture<RawBook> result = new CompletableFuture<>();
+        private ResponseStatusException error;
+
+        PendingPatch(JsonNode patch) {
+            this.patch = patch;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package irish.franklin.springmssqljson.patch;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.patch-coalescing")
+public class PatchCoalescingProperties {
+    /** Whether merge patches without If-Match are coalesced per book */
+    private boolean enabled = false;
+
+    /** How long the first patch of a book waits for more patches of the same book before they are written */
+    private Duration window = Duration.ofMillis(10);
+
+    /** The max amount of patches waiting for all books together, more are rejected with 503 */
+    private int maxQueuedPatches = 10_000;
+
+    /** The max amount of patches merged into one write, the rest go into the next write */
+    private int maxPatchesPerWrite = 100;
+
+    /** The threads that write coalesced patches, each write holds a pooled connection */
+    private int writerThreads = 4;
+}
@@ -0,0 +1,84 @@
+package irish.franklin.springmssqljson.query;
+
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Groups books by the value at a JSON path and computes a metric per group, parsed from the {@code groupBy} and
+ * {@code metric} params, e.g. {@code groupBy=language&metric=count} or
+ * {@code groupBy=language&metric=max(additionalProperties.yearPublished)}.
+ * <p>
+ * Metric values are compared as numbers unless a value type follows the metric, e.g.
+ * {@code metric=min(additionalProperties.published):date}.
+ */
+@Value
+public class Aggregation {
+    public static final String GROUP_BY_PARAM = "groupBy";
+    public static final String METRIC_PARAM = "metric";
+    private static final Pattern METRIC_GRAMMAR = Pattern.compile("([a-z]+)(?:\\(([^)]*)\\))?(?::([a-z]+))?", Pattern.CASE_INSENSITIVE);
+
+    JsonPath groupBy;
+    Metric metric;
+
+    /** The path the metric is computed over, {@code null} when counting books */
+    JsonPath metricPath;
+
+    ValueType valueType;
+
+    public enum Metric {
+        COUNT,
+        MIN,
+        MAX,
+        SUM
+    }
+
+    public static Aggregation fromQueryParams(String groupBy, String metric) {
+        if (groupBy == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The " + GROUP_BY_PARAM + " param is required");
+        }
+        Matcher matcher = METRIC_GRAMMAR.matcher(metric == null ? "count" : metric);
+        if (!matcher.matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid metric: " + metric);
+        }
+        Metric function = parseMetric(matcher.group(1));
+        JsonPath metricPath = matcher.group(2) != null ? JsonPath.of(matcher.group(2)) : null;
+        ValueType valueType = matcher.group(3) != null ? ValueType.fromQueryParam(matcher.group(3)) : ValueType.NUMBER;
+        if (metricPath == null && function != Metric.COUNT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The " + metric + " metric needs a path, e.g. "
+                    + function.name().toLowerCase(Locale.ROOT) + "(additionalProperties.yearPublished)");
+        }
+        if (function == Metric.SUM && valueType != ValueType.NUMBER) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Only numbers can be summed");
+        }
+        return new Aggregation(JsonPath.of(groupBy), function, metricPath, valueType);
+    }
+
+    private static Metric parseMetric(String metric) {
+        for (Metric function : Metric.values()) {
+            if (function.name().equalsIgnoreCase(metric)) {
+                return function;
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown metric: " + metric);
+    }
+
+    /**
+     * The aggregate over the {@code metric_value} column of the grouped rows.
+     */
+    String getAggregateSql() {
+        if (metricPath == null) {
+            return "COUNT(*)";
+        }
+        return metric.name() + "(metric_value)";
+    }
+
+    /** The metric and value type without the paths, which are bound as parameters */
+    String getShape() {
+        return metric + (metricPath != null ? "(" + valueType + ")" : "");
+    }
+}
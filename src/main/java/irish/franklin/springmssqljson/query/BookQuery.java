@@ -0,0 +1,110 @@
+package irish.franklin.springmssqljson.query;
+
+import lombok.Value;
+import lombok.With;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Filters on the book document parsed from query params. A param key is a JSON path optionally followed by an
+ * operator and a value type, e.g. {@code language=English}, {@code language:ne=English},
+ * {@code language:in=English,Spanish} or {@code additionalProperties.yearPublished:gte:number=2000}.
+ * Filters are kept sorted so the same filters in a different order produce the same query.
+ * <p>
+ * The {@code after} and {@code limit} params are not filters, they page through the results in id order, and the
+ * {@code fields} param sets the {@link Projection} of the returned books.
+ */
+@Value
+@With
+public class BookQuery {
+    public static final int MAX_FILTERS = 16;
+    public static final int MAX_IN_VALUES = 64;
+    public static final String AFTER_PARAM = "after";
+    public static final String LIMIT_PARAM = "limit";
+
+    List<JsonPathFilter> filters;
+
+    /** Only books with a greater id are returned */
+    Integer after;
+
+    /** The max amount of books returned, {@code null} for all of them */
+    Integer limit;
+
+    /** The paths of the returned books */
+    Projection projection;
+
+    public static BookQuery fromQueryParams(Map<String, String> queryParamMap) {
+        if (queryParamMap.size() > MAX_FILTERS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max amount of query params that can be used is " + MAX_FILTERS);
+        }
+        List<JsonPathFilter> filters = new ArrayList<>();
+        Integer after = null;
+        Integer limit = null;
+        Projection projection = Projection.ALL;
+        for (Map.Entry<String, String> queryParam : queryParamMap.entrySet()) {
+            if (AFTER_PARAM.equals(queryParam.getKey())) {
+                after = parseInteger(AFTER_PARAM, queryParam.getValue(), Integer.MIN_VALUE);
+            } else if (LIMIT_PARAM.equals(queryParam.getKey())) {
+                limit = parseInteger(LIMIT_PARAM, queryParam.getValue(), 1);
+            } else if (Projection.FIELDS_PARAM.equals(queryParam.getKey())) {
+                projection = Projection.fromQueryParam(queryParam.getValue());
+            } else {
+                filters.add(parseFilter(queryParam.getKey(), queryParam.getValue()));
+            }
+        }
+        Collections.sort(filters);
+        return new BookQuery(Collections.unmodifiableList(filters), after, limit, projection);
+    }
+
+    /**
+     * The filtered paths and operators without their values, e.g. {@code language:eq,name:in}, or {@code all}
+     * without filters. Queries with the same shape only differ in their values.
+     */
+    public String getShape() {
+        if (filters.isEmpty()) {
+            return "all";
+        }
+        return filters.stream()
+                .map(filter -> filter.getPath() + ":" + filter.getOperator().name().toLowerCase(Locale.ROOT))
+                .collect(Collectors.joining(","));
+    }
+
+    private static Integer parseInteger(String param, String value, int min) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the bad request below
+        }
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid value for " + param + ": " + value);
+    }
+
+    private static JsonPathFilter parseFilter(String key, String value) {
+        String[] keyParts = key.split(":", -1);
+        if (keyParts.length > 3) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid filter: " + key);
+        }
+        JsonPath path = JsonPath.of(keyParts[0]);
+        FilterOperator operator = keyParts.length > 1 ? FilterOperator.fromQueryParam(keyParts[1]) : FilterOperator.EQ;
+        ValueType valueType = keyParts.length > 2 ? ValueType.fromQueryParam(keyParts[2]) : ValueType.STRING;
+
+        List<String> values = operator == FilterOperator.IN
+                ? Arrays.asList(value.split(","))
+                : Collections.singletonList(value);
+        if (values.size() > MAX_IN_VALUES) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max amount of values for an in filter is " + MAX_IN_VALUES);
+        }
+        values.forEach(valueType::toParameter);
+        return new JsonPathFilter(path, operator, valueType, Collections.unmodifiableList(values));
+    }
+}
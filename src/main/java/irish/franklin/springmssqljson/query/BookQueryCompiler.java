@@ -0,0 +1,259 @@
+package irish.franklin.springmssqljson.query;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import irish.franklin.springmssqljson.index.BookInvertedIndex;
+import irish.franklin.springmssqljson.schema.IndexedJsonPaths;
+import irish.franklin.springmssqljson.schema.IndexedJsonPaths.IndexedJsonPath;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Compiles a {@link BookQuery} into one parameterized native query against the BOOK_LIBRARY documents view.
+ * <p>
+ * The SQL only depends on the shape of the query (which paths are indexed, the operators, value types and the
+ * number of in values), never on the values or the unindexed paths, which are bound as parameters. Compiled SQL is
+ * cached by shape so repeated shapes skip building the SQL and SQL Server can reuse the plan of the prepared statement.
+ * <p>
+ * When the {@link BookInvertedIndex} can resolve filters that would otherwise scan, the ids it resolved them to are
+ * bound as one JSON array parameter, so the filters are only applied to those books.
+ */
+@Component
+public class BookQueryCompiler {
+    private final IndexedJsonPaths indexedJsonPaths;
+    private final ObjectProvider<BookInvertedIndex> invertedIndex;
+    /** Bounded, so shapes that stop being used are evicted for the shapes of new queries */
+    private final Cache<String, String> sqlByShape;
+
+    public BookQueryCompiler(IndexedJsonPaths indexedJsonPaths, ObjectProvider<BookInvertedIndex> invertedIndex,
+                             @Value("${book-library.query.statement-cache-size:256}") int statementCacheSize) {
+        this.indexedJsonPaths = indexedJsonPaths;
+        this.invertedIndex = invertedIndex;
+        this.sqlByShape = Caffeine.newBuilder()
+                .maximumSize(statementCacheSize)
+                .build();
+    }
+
+    public CompiledQuery compile(BookQuery query, ResultColumns resultColumns) {
+        List<FilterShape> shapes = filterShapes(query);
+        Optional<String> indexedIds = indexedIds(query, shapes);
+        String shapeKey = resultColumns.name() + ';'
+                + (query.getLimit() != null ? "top;" : "")
+                + (query.getAfter() != null ? "after;" : "")
+                + (indexedIds.isPresent() ? "ids;" : "")
+                + (resultColumns == ResultColumns.RAW_JSON ? query.getProjection() + ";" : "")
+                + shapesKey(shapes);
+        String sql = cachedSql(shapeKey, () -> buildSql(query, resultColumns, shapes, indexedIds.isPresent()));
+        boolean fullScan = !seeks(shapes, indexedIds) && (!shapes.isEmpty() || query.getLimit() == null);
+        return new CompiledQuery(sql, bindParameters(query, shapes, indexedIds), fullScan);
+    }
+
+    /**
+     * Compiles the buckets of an aggregation of the books matching the query, ordered by their key. The key is read
+     * from the indexed path column when the grouped path is indexed, so SQL Server can group the index instead of
+     * parsing every document.
+     */
+    public CompiledQuery compileAggregation(BookQuery query, Aggregation aggregation) {
+        List<FilterShape> shapes = filterShapes(query);
+        Optional<String> indexedIds = indexedIds(query, shapes);
+        Optional<IndexedJsonPath> indexedGroupBy = indexedJsonPaths.find(aggregation.getGroupBy().getFieldName());
+        String shapeKey = "AGGREGATION;"
+                + (query.getLimit() != null ? "top;" : "")
+                + (indexedIds.isPresent() ? "ids;" : "")
+                + indexedGroupBy.map(IndexedJsonPath::getColumnName).orElse("group") + ';'
+                + aggregation.getShape() + ';'
+                + shapesKey(shapes);
+        String sql = cachedSql(shapeKey, () -> buildAggregationSql(query, aggregation, indexedGroupBy, shapes, indexedIds.isPresent()));
+
+        Map<String, Object> parameters = bindParameters(query, shapes, indexedIds);
+        if (!indexedGroupBy.isPresent()) {
+            parameters.put("groupByPath", aggregation.getGroupBy().getSqlPath());
+        }
+        if (aggregation.getMetricPath() != null) {
+            parameters.put("metricPath", aggregation.getMetricPath().getSqlPath());
+        }
+        // without filters an indexed group key is counted from its index, anything else reads every document
+        boolean indexOnly = shapes.isEmpty() && indexedGroupBy.isPresent() && aggregation.getMetricPath() == null;
+        return new CompiledQuery(sql, parameters, !seeks(shapes, indexedIds) && !indexOnly);
+    }
+
+    /**
+     * Whether a filter seeks an indexed path column or the inverted index resolved the query to ids. A query that
+     * doesn't seek parses every document when it filters, without filters it only reads the first books by id.
+     */
+    private static boolean seeks(List<FilterShape> shapes, Optional<String> indexedIds) {
+        return indexedIds.isPresent() || shapes.stream().anyMatch(shape -> shape.indexedColumn != null);
+    }
+
+    private List<FilterShape> filterShapes(BookQuery query) {
+        List<FilterShape> shapes = new ArrayList<>();
+        for (JsonPathFilter filter : query.getFilters()) {
+            shapes.add(FilterShape.of(filter, indexedJsonPaths));
+        }
+        return shapes;
+    }
+
+    /**
+     * The ids the inverted index resolved the filters without an indexed path column to, as a JSON array.
+     */
+    private Optional<String> indexedIds(BookQuery query, List<FilterShape> shapes) {
+        BookInvertedIndex index = invertedIndex.getIfAvailable();
+        if (index == null || !index.isReady()) {
+            return Optional.empty();
+        }
+        // filters on an indexed path column already seek
+        List<JsonPathFilter> scanningFilters = new ArrayList<>();
+        for (int i = 0; i < shapes.size(); i++) {
+            if (shapes.get(i).indexedColumn == null) {
+                scanningFilters.add(query.getFilters().get(i));
+            }
+        }
+        return index.candidates(scanningFilters, query.getAfter()).map(BookInvertedIndex::toJsonArray);
+    }
+
+    private static String shapesKey(List<FilterShape> shapes) {
+        StringBuilder shapesKey = new StringBuilder();
+        shapes.forEach(shape -> shapesKey.append(shape).append(';'));
+        return shapesKey.toString();
+    }
+
+    private String cachedSql(String shapeKey, Supplier<String> sqlBuilder) {
+        return sqlByShape.get(shapeKey, key -> sqlBuilder.get());
+    }
+
+    private static String buildSql(BookQuery query, ResultColumns resultColumns, List<FilterShape> shapes, boolean indexedIds) {
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(query.getLimit() != null ? "TOP (:limit) " : "")
+                .append(resultColumns == ResultColumns.RAW_JSON
+                        ? query.getProjection().getRawJsonSelectList()
+                        : resultColumns.getSelectList())
+                .append(" FROM ").append(BookStatements.DOCUMENTS_VIEW);
+        appendConditions(sql, query, shapes, indexedIds);
+        if (query.getLimit() != null || query.getAfter() != null) {
+            sql.append(" ORDER BY id");
+        }
+        return sql.toString();
+    }
+
+    private static String buildAggregationSql(BookQuery query, Aggregation aggregation,
+                                              Optional<IndexedJsonPath> indexedGroupBy, List<FilterShape> shapes,
+                                              boolean indexedIds) {
+        String metricValue = aggregation.getMetric() == Aggregation.Metric.COUNT
+                ? "JSON_VALUE(book, :metricPath)"
+                : aggregation.getValueType().castJsonValue("JSON_VALUE(book, :metricPath)");
+        // grouped in an outer query, so the group key is one column whether it is a path parameter or not
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(query.getLimit() != null ? "TOP (:limit) " : "")
+                .append("bucket, ").append(aggregation.getAggregateSql()).append(" AS value FROM (SELECT ")
+                .append(indexedGroupBy.map(IndexedJsonPath::getColumnName).orElse("JSON_VALUE(book, :groupByPath)"))
+                .append(" AS bucket")
+                .append(aggregation.getMetricPath() != null ? ", " + metricValue + " AS metric_value" : "")
+                .append(" FROM ").append(BookStatements.DOCUMENTS_VIEW);
+        appendConditions(sql, query, shapes, indexedIds);
+        return sql.append(") books GROUP BY bucket ORDER BY bucket").toString();
+    }
+
+    private static void appendConditions(StringBuilder sql, BookQuery query, List<FilterShape> shapes, boolean indexedIds) {
+        String keyword = " WHERE ";
+        if (indexedIds) {
+            sql.append(keyword).append("id IN (SELECT CAST([value] AS INT) FROM OPENJSON(:indexedIds))");
+            keyword = " AND ";
+        }
+        for (int i = 0; i < shapes.size(); i++) {
+            sql.append(keyword);
+            shapes.get(i).appendPredicate(sql, i);
+            keyword = " AND ";
+        }
+        if (query.getAfter() != null) {
+            sql.append(keyword).append("id > :after");
+        }
+    }
+
+    private static Map<String, Object> bindParameters(BookQuery query, List<FilterShape> shapes, Optional<String> indexedIds) {
+        Map<String, Object> parameters = new HashMap<>();
+        indexedIds.ifPresent(ids -> parameters.put("indexedIds", ids));
+        if (query.getLimit() != null) {
+            parameters.put("limit", query.getLimit());
+        }
+        if (query.getAfter() != null) {
+            parameters.put("after", query.getAfter());
+        }
+        List<JsonPathFilter> filters = query.getFilters();
+        for (int i = 0; i < filters.size(); i++) {
+            JsonPathFilter filter = filters.get(i);
+            parameters.put(pathParameter(i), filter.getPath().getSqlPath());
+            if (filter.getOperator() == FilterOperator.IN) {
+                List<String> values = filter.getValues();
+                // pad with the last value so lists of a similar length share a shape
+                for (int j = 0; j < shapes.get(i).valueCount; j++) {
+                    String value = values.get(Math.min(j, values.size() - 1));
+                    parameters.put(valueParameter(i) + "_" + j, filter.getValueType().toParameter(value));
+                }
+            } else {
+                parameters.put(valueParameter(i), filter.getValueType().toParameter(filter.getValues().get(0)));
+            }
+        }
+        return parameters;
+    }
+
+    private static String pathParameter(int filterIndex) {
+        return "path" + filterIndex;
+    }
+
+    private static String valueParameter(int filterIndex) {
+        return "value" + filterIndex;
+    }
+
+    @lombok.Value
+    private static class FilterShape {
+        String indexedColumn;
+        FilterOperator operator;
+        ValueType valueType;
+        int valueCount;
+
+        static FilterShape of(JsonPathFilter filter, IndexedJsonPaths indexedJsonPaths) {
+            FilterOperator operator = filter.getOperator();
+            boolean seekable = filter.getValueType() == ValueType.STRING
+                    && (operator == FilterOperator.EQ || operator == FilterOperator.IN);
+            Optional<IndexedJsonPath> indexedPath = seekable ? indexedJsonPaths.find(filter.getPath().getFieldName()) : Optional.empty();
+            int valueCount = operator == FilterOperator.IN ? Integer.highestOneBit(filter.getValues().size() * 2 - 1) : 1;
+            return new FilterShape(
+                    indexedPath.map(IndexedJsonPath::getColumnName).orElse(null),
+                    operator,
+                    filter.getValueType(),
+                    valueCount);
+        }
+
+        void appendPredicate(StringBuilder sql, int filterIndex) {
+            String jsonValue = valueType.castJsonValue("JSON_VALUE(book, :" + pathParameter(filterIndex) + ")");
+            String value = operator == FilterOperator.IN ? inList(filterIndex) : ":" + valueParameter(filterIndex);
+            if (operator == FilterOperator.NE) {
+                // books without the field count as not equal
+                sql.append('(').append(jsonValue).append(" <> ").append(value)
+                        .append(" OR ").append(jsonValue).append(" IS NULL)");
+                return;
+            }
+            if (indexedColumn != null) {
+                // the computed column is capped at 450 characters, so JSON_VALUE rechecks the (already seeked) rows
+                sql.append(indexedColumn).append(' ').append(operator.getSqlOperator()).append(' ').append(value).append(" AND ");
+            }
+            sql.append(jsonValue).append(' ').append(operator.getSqlOperator()).append(' ').append(value);
+        }
+
+        private String inList(int filterIndex) {
+            StringBuilder inList = new StringBuilder("(");
+            for (int j = 0; j < valueCount; j++) {
+                inList.append(j == 0 ? ":" : ", :").append(valueParameter(filterIndex)).append('_').append(j);
+            }
+            return inList.append(')').toString();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package irish.franklin.springmssqljson.query;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The fixed statements on BOOK_LIBRARY, shared by the JDBC and the R2DBC repository.
+ * Reads and writes return the id, the document with the id spliced in and the rowversion.
+ * Reads go through {@link #DOCUMENTS_VIEW}, so they see the document whatever codec it is stored with.
+ */
+public final class BookStatements {
+    /**
+     * The view of BOOK_LIBRARY with the document as JSON text whatever codec its row is stored with,
+     * so reads can use JSON_VALUE on {@code book} and the indexed path columns as before.
+     */
+    public static final String DOCUMENTS_VIEW = "BOOK_LIBRARY_DOCUMENTS";
+
+    /** The ids and rowversions of deleted books, so the changes since a token can include the deletes */
+    public static final String TOMBSTONES = "BOOK_LIBRARY_TOMBSTONES";
+
+    /** The rowversion up to which tombstones were pruned, a change token before it may have missed deletes */
+    public static final String TOMBSTONE_HORIZON = "BOOK_LIBRARY_TOMBSTONE_HORIZON";
+
+    /** Deletes the book with the id bound as {@code ?} or {@code :id} and leaves a tombstone in the same statement */
+    public static final String DELETE_WITH_TOMBSTONE = "DELETE FROM BOOK_LIBRARY OUTPUT deleted.id INTO " + TOMBSTONES + " (id) WHERE id = ";
+
+    /** The document of a BOOK_LIBRARY row as JSON text, {@code book} only holds the indexed paths of gzip rows */
+    public static final String DOCUMENT = "CASE WHEN book_codec = 1 THEN CAST(DECOMPRESS(book_gz) AS NVARCHAR(MAX)) ELSE book END";
+
+    /** Appended to a SET clause that writes {@code book}, a written row is stored as text until it is migrated again */
+    static final String STORED_AS_TEXT = ", book_codec = 0, book_gz = NULL";
+
+    static final String OUTPUT_RAW_BOOK =
+            " OUTPUT inserted.id, JSON_MODIFY(inserted.book, '$.id', inserted.id) AS book, inserted.row_version";
+
+    private BookStatements(){
+        //private constructor to prevent public initialization
+    }
+
+    public static CompiledQuery findRawBookById(Integer id) {
+        return findRawBookById(id, Projection.ALL);
+    }
+
+    public static CompiledQuery findRawBookById(Integer id, Projection projection) {
+        return new CompiledQuery(
+                "SELECT " + projection.getRawJsonSelectList() + " FROM " + DOCUMENTS_VIEW + " WHERE id = :id",
+                Collections.singletonMap("id", id));
+    }
+
+    public static CompiledQuery findVersionById(Integer id) {
+        return new CompiledQuery("SELECT id, row_version FROM BOOK_LIBRARY WHERE id = :id",
+                Collections.singletonMap("id", id));
+    }
+
+    public static CompiledQuery replaceBook(Integer id, String json) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("id", id);
+        parameters.put("book", json);
+        return new CompiledQuery("UPDATE BOOK_LIBRARY SET book = :book" + STORED_AS_TEXT + OUTPUT_RAW_BOOK + " WHERE id = :id", parameters);
+    }
+
+    public static CompiledQuery deleteBook(Integer id) {
+        return new CompiledQuery(DELETE_WITH_TOMBSTONE + ":id", Collections.singletonMap("id", id));
+    }
+
+    /**
+     * The rowversion the changes read now end before, and whether the tombstones since the token were all kept.
+     * Rows below MIN_ACTIVE_ROWVERSION are committed, so a change still in flight is read with the next token.
+     *
+     * @param since the rowversion of the change token, {@code null} for all books
+     */
+    public static CompiledQuery openChangeWindow(byte[] since) {
+        if (since == null) {
+            // a full sync reads every book and needs no tombstones, so it is always complete
+            return new CompiledQuery("SELECT MIN_ACTIVE_ROWVERSION() AS until_version, 1 AS complete", Collections.emptyMap());
+        }
+        return new CompiledQuery("SELECT MIN_ACTIVE_ROWVERSION() AS until_version,"
+                + " CASE WHEN EXISTS (SELECT 1 FROM " + TOMBSTONE_HORIZON + " WHERE pruned_through >= :since) THEN 0 ELSE 1 END AS complete",
+                Collections.singletonMap("since", since));
+    }
+
+    /**
+     * The books written and deleted from {@code since} up to {@code until} in rowversion order, deleted books have no
+     * document. Without {@code since} every book is read and no deletes.
+     */
+    public static CompiledQuery findChanges(byte[] since, byte[] until) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("until", until);
+        if (since == null) {
+            return new CompiledQuery("SELECT id, JSON_MODIFY(book, '$.id', id) AS book, row_version FROM " + DOCUMENTS_VIEW
+                    + " WHERE row_version < :until ORDER BY row_version", parameters);
+        }
+        parameters.put("since", since);
+        return new CompiledQuery("SELECT id, book, row_version FROM ("
+                + "SELECT id, JSON_MODIFY(book, '$.id', id) AS book, row_version FROM " + DOCUMENTS_VIEW
+                + " WHERE row_version >= :since AND row_version < :until"
+                + " UNION ALL SELECT id, NULL, row_version FROM " + TOMBSTONES
+                + " WHERE row_version >= :since AND row_version < :until"
+                + ") changes ORDER BY row_version", parameters);
+    }
+
+    /**
+     * The first id of the next block of ids, the block has {@code BookJson.ID_ALLOCATION_SIZE} ids like the
+     * blocks Hibernate's pooled-lo optimizer takes from the sequence.
+     */
+    public static CompiledQuery nextIdBlock() {
+        return new CompiledQuery("SELECT NEXT VALUE FOR BOOK_LIBRARY_SEQ AS id", Collections.emptyMap());
+    }
+}
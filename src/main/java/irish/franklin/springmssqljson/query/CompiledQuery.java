@@ -0,0 +1,40 @@
+package irish.franklin.springmssqljson.query;
+
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Value
+@AllArgsConstructor
+public class CompiledQuery {
+    String sql;
+    Map<String, Object> parameters;
+
+    /** Whether the query parses every document instead of seeking an index, see {@link BookQueryCompiler} */
+    boolean fullScan;
+
+    public CompiledQuery(String sql, Map<String, Object> parameters) {
+        this(sql, parameters, false);
+    }
+
+    /**
+     * Limits a statement that ends with its WHERE clause to books with one of the expected rowversions.
+     *
+     * @param expectedVersions the rowversions the book may have, {@code null} for any
+     */
+    public CompiledQuery withExpectedVersions(List<byte[]> expectedVersions) {
+        if (expectedVersions == null) {
+            return this;
+        }
+        if (expectedVersions.isEmpty()) {
+            // only weak or malformed entity tags, which never match
+            return new CompiledQuery(sql + " AND 1 = 0", parameters, fullScan);
+        }
+        Map<String, Object> versionParameters = new HashMap<>(parameters);
+        versionParameters.put("expectedVersions", expectedVersions);
+        return new CompiledQuery(sql + " AND row_version IN (:expectedVersions)", versionParameters, fullScan);
+    }
+}
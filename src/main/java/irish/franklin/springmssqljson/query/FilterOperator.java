@@ -0,0 +1,37 @@
+package irish.franklin.springmssqljson.query;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+public enum FilterOperator {
+    EQ("="),
+    NE("<>"),
+    IN("IN"),
+    GT(">"),
+    GTE(">="),
+    LT("<"),
+    LTE("<=");
+
+    private final String sqlOperator;
+
+    FilterOperator(String sqlOperator) {
+        this.sqlOperator = sqlOperator;
+    }
+
+    public String getSqlOperator() {
+        return sqlOperator;
+    }
+
+    public boolean isRange() {
+        return this == GT || this == GTE || this == LT || this == LTE;
+    }
+
+    static FilterOperator fromQueryParam(String operator) {
+        for (FilterOperator filterOperator : values()) {
+            if (filterOperator.name().equalsIgnoreCase(operator)) {
+                return filterOperator;
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown filter operator: " + operator);
+    }
+}
@@ -0,0 +1,47 @@
+package irish.franklin.springmssqljson.query;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.regex.Pattern;
+
+/**
+ * A dot separated path into the book document, e.g. {@code additionalProperties.yearPublished}.
+ * Only plain identifiers are accepted so a path can never break out of the JSON_VALUE path argument.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class JsonPath implements Comparable<JsonPath> {
+    private static final Pattern GRAMMAR = Pattern.compile("[A-Za-z_][A-Za-z0-9_]{0,63}(\\.[A-Za-z_][A-Za-z0-9_]{0,63}){0,7}");
+
+    String fieldName;
+
+    public static boolean isValid(String fieldName) {
+        return fieldName != null && GRAMMAR.matcher(fieldName).matches();
+    }
+
+    public static JsonPath of(String fieldName) {
+        if (!isValid(fieldName)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid JSON path: " + fieldName);
+        }
+        return new JsonPath(fieldName);
+    }
+
+    /** The SQL Server JSON path expression, e.g. {@code $.additionalProperties.yearPublished}. */
+    public String getSqlPath() {
+        return "$." + fieldName;
+    }
+
+    @Override
+    public int compareTo(JsonPath other) {
+        return fieldName.compareTo(other.fieldName);
+    }
+
+    @Override
+    public String toString() {
+        return fieldName;
+    }
+}
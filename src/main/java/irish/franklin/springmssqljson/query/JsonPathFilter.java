@@ -0,0 +1,23 @@
+package irish.franklin.springmssqljson.query;
+
+import lombok.Value;
+
+import java.util.List;
+
+@Value
+public class JsonPathFilter implements Comparable<JsonPathFilter> {
+    JsonPath path;
+    FilterOperator operator;
+    ValueType valueType;
+    List<String> values;
+
+    @Override
+    public int compareTo(JsonPathFilter other) {
+        int byPath = path.compareTo(other.path);
+        if (byPath != 0) {
+            return byPath;
+        }
+        int byOperator = operator.compareTo(other.operator);
+        return byOperator != 0 ? byOperator : valueType.compareTo(other.valueType);
+    }
+}
@@ -0,0 +1,150 @@
+package irish.franklin.springmssqljson.query;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import irish.franklin.springmssqljson.models.Book;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles an RFC 7386 merge patch into a single {@code UPDATE ... SET book = JSON_MODIFY(...) OUTPUT ...} statement,
+ * so a patch costs one round trip and returns the updated document.
+ * <p>
+ * Patch members become JSON_MODIFY calls: null removes the member, scalars and arrays replace it. An object value is
+ * merged into the stored member when that is an object and replaces it (without its null members) otherwise, which
+ * is decided in SQL from the stored document. Patches the in-memory merge would reject or coerce differently, like
+ * unknown or null required book properties, are not compiled so they fall back to the in-memory merge.
+ */
+@Component
+public class MergePatchCompiler {
+    private static final Pattern MEMBER_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]{0,63}");
+    private static final int MAX_DEPTH = 8;
+    // the @NonNull properties of Book, their setters reject null so the in-memory merge answers with a bad request
+    private static final Set<String> REQUIRED_BOOK_PROPERTIES = new HashSet<>(Arrays.asList("name", "description"));
+
+    private final Set<String> bookProperties = new HashSet<>();
+    private final Set<String> textBookProperties = new HashSet<>();
+
+    public MergePatchCompiler(ObjectMapper objectMapper) {
+        for (BeanPropertyDefinition property : objectMapper.getSerializationConfig()
+                .introspect(objectMapper.constructType(Book.class))
+                .findProperties()) {
+            bookProperties.add(property.getName());
+            if (property.getRawPrimaryType() == String.class) {
+                textBookProperties.add(property.getName());
+            }
+        }
+    }
+
+    public Optional<CompiledQuery> compile(Integer id, JsonNode patch) {
+        if (!patch.isObject()) {
+            return Optional.empty();
+        }
+        Iterator<Map.Entry<String, JsonNode>> members = patch.fields();
+        while (members.hasNext()) {
+            Map.Entry<String, JsonNode> member = members.next();
+            String name = member.getKey();
+            JsonNode value = member.getValue();
+            boolean supported = bookProperties.contains(name)
+                    && !(value.isNull() && REQUIRED_BOOK_PROPERTIES.contains(name))
+                    && !(textBookProperties.contains(name) && value.isContainerNode());
+            if (!supported) {
+                return Optional.empty();
+            }
+        }
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("id", id);
+        Optional<String> document = modify(BookStatements.DOCUMENT, "$", patch, parameters, 0);
+        return document.map(sql -> new CompiledQuery(
+                "UPDATE BOOK_LIBRARY SET book = " + sql + BookStatements.STORED_AS_TEXT + BookStatements.OUTPUT_RAW_BOOK
+                        + " WHERE id = :id",
+                parameters));
+    }
+
+    /**
+     * Applies the members of an object patch to the JSON text of {@code target}, which is the object stored at {@code path}.
+     */
+    private Optional<String> modify(String target, String path, JsonNode patch, Map<String, Object> parameters, int depth) {
+        if (depth >= MAX_DEPTH) {
+            return Optional.empty();
+        }
+        String document = target;
+        Iterator<Map.Entry<String, JsonNode>> members = patch.fields();
+        while (members.hasNext()) {
+            Map.Entry<String, JsonNode> member = members.next();
+            if (!MEMBER_NAME.matcher(member.getKey()).matches()) {
+                return Optional.empty();
+            }
+            String memberPath = path + "." + member.getKey();
+            String relativePath = "$." + member.getKey();
+            JsonNode value = member.getValue();
+
+            String newValue;
+            if (value.isNull()) {
+                newValue = "NULL";
+            } else if (value.isObject()) {
+                // member patches only touch their own member, so they can start from the stored member instead of the
+                // document modified so far, which keeps the statement linear in the size of the patch
+                String storedMember = "JSON_QUERY(" + BookStatements.DOCUMENT + ", '" + memberPath + "')";
+                Optional<String> merged = modify(storedMember, memberPath, value, parameters, depth + 1);
+                if (!merged.isPresent()) {
+                    return Optional.empty();
+                }
+                String replacement = bind(parameters, withoutNulls(value.deepCopy()).toString());
+                newValue = "JSON_QUERY(CASE WHEN " + storedMember + " LIKE '{%' THEN " + merged.get() + " ELSE " + replacement + " END)";
+            } else if (value.isArray()) {
+                newValue = "JSON_QUERY(" + bind(parameters, value.toString()) + ")";
+            } else if (depth == 0 && textBookProperties.contains(member.getKey())) {
+                // the in-memory merge coerces scalars of text properties to strings
+                newValue = bind(parameters, value.asText());
+            } else {
+                newValue = bind(parameters, scalarParameter(value));
+            }
+            document = "JSON_MODIFY(" + document + ", '" + relativePath + "', " + newValue + ")";
+        }
+        return Optional.of(document);
+    }
+
+    private static String bind(Map<String, Object> parameters, Object value) {
+        String name = "value" + parameters.size();
+        parameters.put(name, value);
+        return ":" + name;
+    }
+
+    private static Object scalarParameter(JsonNode value) {
+        if (value.isBoolean()) {
+            return value.booleanValue();
+        }
+        if (value.canConvertToLong() && value.isIntegralNumber()) {
+            return value.longValue();
+        }
+        if (value.isNumber()) {
+            return value.decimalValue();
+        }
+        return value.asText();
+    }
+
+    private static ObjectNode withoutNulls(ObjectNode node) {
+        Iterator<Map.Entry<String, JsonNode>> members = node.fields();
+        while (members.hasNext()) {
+            JsonNode value = members.next().getValue();
+            if (value.isNull()) {
+                members.remove();
+            } else if (value.isObject()) {
+                withoutNulls((ObjectNode) value);
+            }
+        }
+        return node;
+    }
+}
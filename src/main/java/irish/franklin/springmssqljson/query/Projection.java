@@ -0,0 +1,123 @@
+package irish.franklin.springmssqljson.query;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * The paths of the book document a read returns, parsed from a {@code fields} param such as
+ * {@code name,language,additionalProperties.yearPublished}. The id is always returned.
+ * <p>
+ * The projected document is built in SQL from the members at those paths, so the rest of the document never leaves
+ * the database. OPENJSON keeps the JSON type of each member, and a member or object that isn't in the document is left
+ * out instead of being returned as null.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class Projection {
+    public static final String FIELDS_PARAM = "fields";
+    public static final int MAX_FIELDS = 32;
+
+    /** The whole document */
+    public static final Projection ALL = new Projection(true, Collections.emptyList());
+
+    /** Whether the whole document is returned */
+    boolean all;
+
+    /** Sorted, without the id and without paths that are inside another projected path */
+    List<JsonPath> paths;
+
+    public static Projection fromQueryParam(String fields) {
+        if (fields == null) {
+            return ALL;
+        }
+        TreeSet<JsonPath> paths = new TreeSet<>();
+        for (String field : fields.split(",", -1)) {
+            paths.add(JsonPath.of(field.trim()));
+        }
+        if (paths.size() > MAX_FIELDS) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max amount of fields that can be used is " + MAX_FIELDS);
+        }
+        // sorted, so a path comes right after the paths it is inside of
+        List<JsonPath> outermostPaths = new ArrayList<>();
+        for (JsonPath path : paths) {
+            boolean inside = outermostPaths.stream()
+                    .anyMatch(outer -> path.getFieldName().startsWith(outer.getFieldName() + "."));
+            if (!inside && !"id".equals(path.getFieldName())) {
+                outermostPaths.add(path);
+            }
+        }
+        return new Projection(false, Collections.unmodifiableList(outermostPaths));
+    }
+
+    /**
+     * The id, the document or its projection with the id spliced in as {@code book}, and the rowversion.
+     */
+    String getRawJsonSelectList() {
+        if (all) {
+            return "id, JSON_MODIFY(book, '$.id', id) AS book, row_version";
+        }
+        Member root = new Member();
+        paths.forEach(path -> root.add(path, 0));
+        return "id, CONCAT(N'{\"id\":', id" + root.membersSql("") + ", N'}') AS book, row_version";
+    }
+
+    @Override
+    public String toString() {
+        return all ? "*" : paths.stream().map(JsonPath::toString).collect(Collectors.joining(","));
+    }
+
+    /**
+     * A member of the projected document, either a projected path or an object of projected members.
+     */
+    private static class Member {
+        private final Map<String, Member> members = new TreeMap<>();
+        private JsonPath path;
+
+        void add(JsonPath path, int depth) {
+            String[] names = path.getFieldName().split("\\.");
+            Member member = members.computeIfAbsent(names[depth], name -> new Member());
+            if (depth == names.length - 1) {
+                member.path = path;
+            } else {
+                member.add(path, depth + 1);
+            }
+        }
+
+        /** The members, each with a leading comma, e.g. {@code , N',"name":' + (...)} */
+        String membersSql(String parentPath) {
+            StringBuilder sql = new StringBuilder();
+            members.forEach((name, member) -> {
+                // + yields null for a missing value, which CONCAT turns into an empty string
+                sql.append(", N',\"").append(name).append("\":' + ");
+                if (member.path != null) {
+                    sql.append(memberValue(parentPath, name));
+                } else {
+                    // STUFF drops the leading comma and yields null for an object without members
+                    sql.append("N'{' + STUFF(CONCAT(N''")
+                            .append(member.membersSql(parentPath + "." + name))
+                            .append("), 1, 1, N'') + N'}'");
+                }
+            });
+            return sql.toString();
+        }
+
+        private static String memberValue(String parentPath, String name) {
+            String parent = parentPath.isEmpty() ? "book" : "JSON_QUERY(book, '$" + parentPath + "')";
+            return "(SELECT TOP (1) CASE [type] WHEN 0 THEN N'null'"
+                    + " WHEN 1 THEN N'\"' + STRING_ESCAPE([value], 'json') + N'\"'"
+                    + " ELSE [value] END"
+                    + " FROM OPENJSON(" + parent + ") WHERE [key] = N'" + name + "')";
+        }
+    }
+}
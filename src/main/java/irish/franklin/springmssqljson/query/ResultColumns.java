@@ -0,0 +1,28 @@
+package irish.franklin.springmssqljson.query;
+
+/**
+ * The columns a compiled query selects.
+ */
+public enum ResultColumns {
+    /** The stored document, for mapping to the entity */
+    ENTITY("id, book"),
+
+    /**
+     * The stored document with the id spliced in, ready to be written to a response, and its rowversion.
+     * The document is projected to the {@link Projection} of the query.
+     */
+    RAW_JSON(Projection.ALL.getRawJsonSelectList()),
+
+    /** Only the id and rowversion, to check whether books changed without reading them */
+    VERSIONS("id, row_version");
+
+    private final String selectList;
+
+    ResultColumns(String selectList) {
+        this.selectList = selectList;
+    }
+
+    String getSelectList() {
+        return selectList;
+    }
+}
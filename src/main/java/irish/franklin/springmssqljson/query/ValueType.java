@@ -0,0 +1,56 @@
+package irish.franklin.springmssqljson.query;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * How the text returned by JSON_VALUE is compared. Strings compare with the column collation,
+ * numbers and dates are converted with TRY_CAST so documents holding other values simply don't match.
+ */
+public enum ValueType {
+    STRING(null),
+    NUMBER("DECIMAL(38, 10)"),
+    DATE("DATETIME2");
+
+    private final String sqlType;
+
+    ValueType(String sqlType) {
+        this.sqlType = sqlType;
+    }
+
+    String castJsonValue(String jsonValueExpression) {
+        return sqlType == null ? jsonValueExpression : "TRY_CAST(" + jsonValueExpression + " AS " + sqlType + ")";
+    }
+
+    Object toParameter(String value) {
+        try {
+            switch (this) {
+                case NUMBER:
+                    return new BigDecimal(value);
+                case DATE:
+                    return value.length() == 10
+                            ? Timestamp.valueOf(LocalDate.parse(value).atStartOfDay())
+                            : Timestamp.valueOf(LocalDateTime.parse(value));
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Value " + value + " is not a valid " + name().toLowerCase());
+        }
+    }
+
+    static ValueType fromQueryParam(String type) {
+        for (ValueType valueType : values()) {
+            if (valueType.name().equalsIgnoreCase(type)) {
+                return valueType;
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown value type: " + type);
+    }
+}
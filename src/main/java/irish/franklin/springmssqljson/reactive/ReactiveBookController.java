@@ -0,0 +1,301 @@
+package irish.franklin.springmssqljson.reactive;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import irish.franklin.springmssqljson.models.AggregateBucket;
+import irish.franklin.springmssqljson.models.BatchItemResult;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookChange;
+import irish.franklin.springmssqljson.models.ChangeWindow;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.Aggregation;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.query.CompiledQuery;
+import irish.franklin.springmssqljson.query.MergePatchCompiler;
+import irish.franklin.springmssqljson.query.Projection;
+import irish.franklin.springmssqljson.utils.ETags;
+import irish.franklin.springmssqljson.utils.JsonMergePatchUtils;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.validation.Valid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * The WebFlux variant of {@code BookController}, active with the {@code reactive} profile. It keeps the same
+ * contract on top of {@link ReactiveBookRepository}, so no request holds a thread while SQL Server scans documents.
+ */
+@RestController
+@RequestMapping("/api/v1/book")
+@Profile("reactive")
+@RequiredArgsConstructor
+@Validated
+public class ReactiveBookController {
+    static final String NDJSON = "application/x-ndjson";
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    static final String CHANGE_TOKEN_HEADER = "X-Change-Token";
+    private static final int MAX_PATCH_ATTEMPTS = 3;
+
+    private final ReactiveBookRepository repository;
+    private final ObjectMapper objectMapper;
+    private final MergePatchCompiler mergePatchCompiler;
+
+    @Value("${book-library.pagination.default-limit:500}")
+    private int defaultPageLimit;
+
+    @Value("${book-library.pagination.max-limit:5000}")
+    private int maxPageLimit;
+
+    @Value("${book-library.batch.max-size:1000}")
+    private int maxBatchSize;
+
+    @GetMapping("/{id}")
+    public Mono<ResponseEntity<RawBook>> getBookById(@PathVariable Integer id,
+                                                     @RequestParam(value = Projection.FIELDS_PARAM, required = false) String fields,
+                                                     ServerWebExchange exchange) {
+        Projection projection = Projection.fromQueryParam(fields);
+        // revalidating only reads the version of the book
+        Mono<Boolean> notModified = exchange.getRequest().getHeaders().getIfNoneMatch().isEmpty()
+                ? Mono.just(false)
+                : repository.findVersionById(id)
+                        .map(version -> exchange.checkNotModified(ETags.ofProjection(version, projection)))
+                        .defaultIfEmpty(false);
+
+        return notModified.flatMap(unchanged -> unchanged
+                ? Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).<RawBook>build())
+                : repository.findRawBookById(id, projection)
+                        .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id")))
+                        .map(book -> ResponseEntity.ok()
+                                .eTag(ETags.ofProjection(book.getVersion(), projection))
+                                .body(book)));
+    }
+
+    @GetMapping
+    public Mono<ResponseEntity<List<RawBook>>> getBooksByQueryParams(@RequestParam Map<String,String> queryParamMap,
+                                                                     ServerWebExchange exchange){
+        BookQuery query = BookQuery.fromQueryParams(queryParamMap);
+        int limit = pageLimit(query);
+
+        // one extra row tells us whether there is a next page
+        BookQuery pageQuery = query.withLimit(limit + 1);
+        Mono<Boolean> notModified = exchange.getRequest().getHeaders().getIfNoneMatch().isEmpty()
+                ? Mono.just(false)
+                : repository.findBookVersions(pageQuery).collectList().map(versions -> exchange.checkNotModified(
+                        ETags.ofProjection(ETags.ofBooks(versions), query.getProjection())));
+
+        return notModified.flatMap(unchanged -> unchanged
+                ? Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).<List<RawBook>>build())
+                : repository.findRawBooks(pageQuery).collectList().map(foundBooks -> page(foundBooks, query, limit, exchange)));
+    }
+
+    private ResponseEntity<List<RawBook>> page(List<RawBook> foundBooks, BookQuery query, int limit, ServerWebExchange exchange) {
+        HttpHeaders headers = new HttpHeaders();
+        String pageTag = ETags.ofBooks(foundBooks.stream().map(RawBook::toBookVersion).collect(Collectors.toList()));
+        headers.setETag('"' + ETags.ofProjection(pageTag, query.getProjection()) + '"');
+        if (foundBooks.size() > limit) {
+            foundBooks = foundBooks.subList(0, limit);
+            Integer nextCursor = foundBooks.get(limit - 1).getId();
+            String nextPage = UriComponentsBuilder.fromHttpRequest(exchange.getRequest())
+                    .replaceQueryParam(BookQuery.AFTER_PARAM, nextCursor)
+                    .replaceQueryParam(BookQuery.LIMIT_PARAM, limit)
+                    .toUriString();
+            headers.set(NEXT_CURSOR_HEADER, nextCursor.toString());
+            headers.set(HttpHeaders.LINK, "<" + nextPage + ">; rel=\"next\"");
+        }
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(foundBooks);
+    }
+
+    /**
+     * Streams every matching book, a book is only read from the database when the client is ready to receive it.
+     */
+    @GetMapping(produces = NDJSON)
+    public Flux<RawBook> streamBooksByQueryParams(@RequestParam Map<String,String> queryParamMap){
+        return repository.findRawBooks(BookQuery.fromQueryParams(queryParamMap));
+    }
+
+    /**
+     * Streams the books written and deleted since the token, a change is only read when the client can take it.
+     */
+    @GetMapping("/changes")
+    public Mono<ResponseEntity<Flux<BookChange>>> streamChanges(@RequestParam(value = "since", required = false) String since) {
+        byte[] sinceVersion = since != null ? ChangeWindow.parseToken(since) : null;
+        return repository.openChangeWindow(sinceVersion).flatMap(window -> window.isComplete()
+                ? Mono.just(ResponseEntity.ok()
+                        .contentType(MediaType.parseMediaType(NDJSON))
+                        .header(CHANGE_TOKEN_HEADER, window.getNextToken())
+                        .body(repository.findChanges(sinceVersion, window.getUntil())))
+                : Mono.error(new ResponseStatusException(HttpStatus.GONE,
+                        "Deletes before the change token are not kept anymore, sync all books without a token")));
+    }
+
+    @GetMapping("/aggregate")
+    public Mono<List<AggregateBucket>> aggregateBooks(@RequestParam Map<String,String> queryParamMap) {
+        Map<String, String> filterParams = new HashMap<>(queryParamMap);
+        Aggregation aggregation = Aggregation.fromQueryParams(
+                filterParams.remove(Aggregation.GROUP_BY_PARAM), filterParams.remove(Aggregation.METRIC_PARAM));
+        BookQuery query = BookQuery.fromQueryParams(filterParams);
+        if (query.getAfter() != null || !query.getProjection().isAll()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Aggregations can't be paged or projected");
+        }
+        int limit = pageLimit(query);
+
+        // one extra bucket tells us whether there are more
+        return repository.aggregateBooks(query.withLimit(limit + 1), aggregation)
+                .collectList()
+                .flatMap(buckets -> buckets.size() > limit
+                        ? Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                                "There are more than " + limit + " groups, add filters or raise the limit"))
+                        : Mono.just(buckets));
+    }
+
+    @PostMapping
+    @ResponseStatus(HttpStatus.CREATED)
+    public Mono<Book> createNewBook(@Valid @RequestBody Book book) {
+        if (book.getId() != null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Book Ids are auto generated");
+        }
+        return repository.createBooks(Collections.singletonList(book))
+                .map(createdBooks -> createdBooks.get(0));
+    }
+
+    @PostMapping("/batch")
+    public Mono<ResponseEntity<List<BatchItemResult>>> createNewBooks(@RequestBody List<JsonNode> bookNodes) {
+        if (bookNodes.size() > maxBatchSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max amount of books in a batch is " + maxBatchSize);
+        }
+
+        BatchItemResult[] results = new BatchItemResult[bookNodes.size()];
+        List<Integer> indexesToSave = new ArrayList<>();
+        List<Book> booksToSave = new ArrayList<>();
+        for (int i = 0; i < bookNodes.size(); i++) {
+            try {
+                Book book = objectMapper.treeToValue(bookNodes.get(i), Book.class);
+                if (book == null) {
+                    results[i] = BatchItemResult.failed(i, HttpStatus.BAD_REQUEST, "Invalid book");
+                } else if (book.getId() != null) {
+                    results[i] = BatchItemResult.failed(i, HttpStatus.BAD_REQUEST, "Book Ids are auto generated");
+                } else {
+                    indexesToSave.add(i);
+                    booksToSave.add(book);
+                }
+            } catch (JsonProcessingException e) {
+                results[i] = BatchItemResult.failed(i, HttpStatus.BAD_REQUEST, "Invalid book: " + e.getOriginalMessage());
+            }
+        }
+
+        return repository.createBooks(booksToSave).map(savedBooks -> {
+            for (int i = 0; i < savedBooks.size(); i++) {
+                results[indexesToSave.get(i)] = BatchItemResult.created(indexesToSave.get(i), savedBooks.get(i));
+            }
+            boolean allCreated = savedBooks.size() == results.length;
+            return ResponseEntity.status(allCreated ? HttpStatus.CREATED : HttpStatus.MULTI_STATUS)
+                    .body(Arrays.asList(results));
+        });
+    }
+
+    @PatchMapping(path = "/{id}", consumes = "application/merge-patch+json")
+    public Mono<ResponseEntity<RawBook>> patchBook(@PathVariable("id") Integer id,
+                                                   @RequestBody JsonNode bookPropertiesPatchNode,
+                                                   @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+
+        if (bookPropertiesPatchNode.has("id")) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cannot update Id");
+        }
+
+        List<byte[]> expectedVersions = ETags.parseIfMatch(ifMatch);
+        Optional<CompiledQuery> serverSidePatch = mergePatchCompiler.compile(id, bookPropertiesPatchNode);
+        Mono<RawBook> patchedBook = serverSidePatch.isPresent()
+                ? repository.updateRawBook(serverSidePatch.get(), expectedVersions)
+                : patchInMemory(id, bookPropertiesPatchNode, expectedVersions, 1);
+
+        return patchedBook
+                .switchIfEmpty(Mono.defer(() -> failedWrite(id)))
+                .map(book -> ResponseEntity.ok()
+                        .eTag(book.getVersion())
+                        .body(book));
+    }
+
+    @DeleteMapping("/{id}")
+    public Mono<Void> deleteBookById(@PathVariable Integer id,
+                                     @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        return repository.deleteBook(id, ETags.parseIfMatch(ifMatch))
+                .flatMap(deleted -> deleted ? Mono.<Void>empty() : failedWrite(id).then());
+    }
+
+    /**
+     * Merges the patch into the stored book in memory and writes it back only if the book did not change in between.
+     * Without an If-Match header the version read is the expected one, so a concurrent write is retried instead of lost.
+     */
+    private Mono<RawBook> patchInMemory(Integer id, JsonNode bookPropertiesPatchNode, List<byte[]> expectedVersions, int attempt) {
+        return repository.findRawBookById(id).flatMap(storedBook -> {
+            String patchedJson;
+            try {
+                Book book = objectMapper.readValue(storedBook.getJson(), Book.class);
+                patchedJson = objectMapper.writeValueAsString(
+                        JsonMergePatchUtils.mergePatch(book, bookPropertiesPatchNode, Book.class));
+            } catch (JsonProcessingException e) {
+                return Mono.error(e);
+            }
+            List<byte[]> versions = expectedVersions != null
+                    ? expectedVersions
+                    : Collections.singletonList(ETags.toRowVersion(storedBook.getVersion()));
+            Mono<RawBook> patchedBook = repository.replaceRawBook(id, patchedJson, versions);
+            if (expectedVersions != null) {
+                return patchedBook;
+            }
+            return patchedBook.switchIfEmpty(Mono.defer(() -> attempt < MAX_PATCH_ATTEMPTS
+                    ? patchInMemory(id, bookPropertiesPatchNode, null, attempt + 1)
+                    : Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "The book kept changing while patching it, please retry"))));
+        });
+    }
+
+    /**
+     * Tells apart a conditional write that found no book from one that found a book with another version.
+     */
+    private <T> Mono<T> failedWrite(Integer id) {
+        return repository.findVersionById(id)
+                .map(version -> new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "The book has changed since the provided ETag"))
+                .defaultIfEmpty(new ResponseStatusException(HttpStatus.NOT_FOUND, "No book found for provided Id"))
+                .flatMap(Mono::error);
+    }
+
+    private int pageLimit(BookQuery query) {
+        int limit = query.getLimit() != null ? query.getLimit() : defaultPageLimit;
+        if (limit > maxPageLimit) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The max page limit is " + maxPageLimit);
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,229 @@
+package irish.franklin.springmssqljson.reactive;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.r2dbc.spi.Row;
+import irish.franklin.springmssqljson.models.AggregateBucket;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookChange;
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.models.BookVersion;
+import irish.franklin.springmssqljson.models.ChangeWindow;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.Aggregation;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.query.BookQueryCompiler;
+import irish.franklin.springmssqljson.query.BookStatements;
+import irish.franklin.springmssqljson.query.CompiledQuery;
+import irish.franklin.springmssqljson.query.Projection;
+import irish.franklin.springmssqljson.query.ResultColumns;
+import irish.franklin.springmssqljson.utils.ETags;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The non-blocking counterpart of {@code BookLibraryRepository}. It runs the same SQL, compiled by the same
+ * {@link BookQueryCompiler} and {@link BookStatements}, through R2DBC, and searches emit rows as the driver reads
+ * them so a slow subscriber slows down reading instead of buffering the results.
+ */
+@Repository
+@Profile("reactive")
+@RequiredArgsConstructor
+public class ReactiveBookRepository {
+    // rows per INSERT, keeps the bind parameters far below the 2100 SQL Server allows
+    private static final int ROWS_PER_INSERT = 100;
+
+    private final DatabaseClient databaseClient;
+    private final BookQueryCompiler queryCompiler;
+    private final TransactionalOperator transactionalOperator;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ObjectMapper objectMapper;
+
+    // the unused ids of the last block taken from the sequence
+    private int nextId;
+    private int idLimit;
+
+    public Mono<RawBook> findRawBookById(Integer id) {
+        return findRawBookById(id, Projection.ALL);
+    }
+
+    public Mono<RawBook> findRawBookById(Integer id, Projection projection) {
+        return execute(BookStatements.findRawBookById(id, projection))
+                .map((row, metadata) -> rawBook(row))
+                .first();
+    }
+
+    public Mono<String> findVersionById(Integer id) {
+        return execute(BookStatements.findVersionById(id))
+                .map((row, metadata) -> bookVersion(row).getVersion())
+                .first();
+    }
+
+    public Flux<RawBook> findRawBooks(BookQuery bookQuery) {
+        return execute(queryCompiler.compile(bookQuery, ResultColumns.RAW_JSON))
+                .map((row, metadata) -> rawBook(row))
+                .all();
+    }
+
+    public Flux<BookVersion> findBookVersions(BookQuery bookQuery) {
+        return execute(queryCompiler.compile(bookQuery, ResultColumns.VERSIONS))
+                .map((row, metadata) -> bookVersion(row))
+                .all();
+    }
+
+    public Mono<ChangeWindow> openChangeWindow(byte[] since) {
+        return execute(BookStatements.openChangeWindow(since))
+                .map((row, metadata) -> new ChangeWindow(row.get("until_version", byte[].class), row.get("complete", Integer.class) == 1))
+                .one();
+    }
+
+    public Flux<BookChange> findChanges(byte[] since, byte[] until) {
+        return execute(BookStatements.findChanges(since, until))
+                .map((row, metadata) -> new BookChange(row.get("id", Integer.class), row.get("book", String.class)))
+                .all();
+    }
+
+    public Flux<AggregateBucket> aggregateBooks(BookQuery bookQuery, Aggregation aggregation) {
+        return execute(queryCompiler.compileAggregation(bookQuery, aggregation))
+                .map((row, metadata) -> AggregateBucket.of(row.get("bucket", String.class), row.get("value")))
+                .all();
+    }
+
+    /**
+     * Inserts the books in one transaction with ids from the same sequence blocks the JPA repository uses.
+     */
+    public Mono<List<Book>> createBooks(List<Book> books) {
+        if (books.isEmpty()) {
+            return Mono.just(books);
+        }
+        return allocateIds(books.size())
+                .flatMap(ids -> {
+                    for (int i = 0; i < books.size(); i++) {
+                        books.get(i).setId(ids.get(i));
+                    }
+                    List<Mono<Integer>> inserts = new ArrayList<>();
+                    for (int offset = 0; offset < books.size(); offset += ROWS_PER_INSERT) {
+                        inserts.add(insert(books.subList(offset, Math.min(offset + ROWS_PER_INSERT, books.size()))));
+                    }
+                    return Flux.concat(inserts)
+                            .then()
+                            .as(transactionalOperator::transactional);
+                })
+                .doOnSuccess(inserted -> books.forEach(book ->
+                        eventPublisher.publishEvent(new BookChangedEvent(book.getId(), BookChangedEvent.Change.CREATED))))
+                .thenReturn(books);
+    }
+
+    public Mono<RawBook> updateRawBook(CompiledQuery update, List<byte[]> expectedVersions) {
+        return execute(update.withExpectedVersions(expectedVersions))
+                .map((row, metadata) -> rawBook(row))
+                .first()
+                .doOnNext(book ->
+                        eventPublisher.publishEvent(new BookChangedEvent(book.getId(), BookChangedEvent.Change.UPDATED)));
+    }
+
+    public Mono<RawBook> replaceRawBook(Integer id, String json, List<byte[]> expectedVersions) {
+        return updateRawBook(BookStatements.replaceBook(id, json), expectedVersions);
+    }
+
+    public Mono<Boolean> deleteBook(Integer id, List<byte[]> expectedVersions) {
+        return execute(BookStatements.deleteBook(id).withExpectedVersions(expectedVersions))
+                .fetch()
+                .rowsUpdated()
+                .map(rows -> rows > 0)
+                .doOnNext(deleted -> {
+                    if (deleted) {
+                        eventPublisher.publishEvent(new BookChangedEvent(id, BookChangedEvent.Change.DELETED));
+                    }
+                });
+    }
+
+    private Mono<Integer> insert(List<Book> books) {
+        StringBuilder sql = new StringBuilder("INSERT INTO BOOK_LIBRARY (id, book) VALUES ");
+        Map<String, Object> parameters = new HashMap<>();
+        for (int i = 0; i < books.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append("(:id").append(i).append(", :book").append(i).append(')');
+            parameters.put("id" + i, books.get(i).getId());
+            try {
+                parameters.put("book" + i, objectMapper.writeValueAsString(books.get(i)));
+            } catch (JsonProcessingException e) {
+                return Mono.error(e);
+            }
+        }
+        return execute(new CompiledQuery(sql.toString(), parameters)).fetch().rowsUpdated();
+    }
+
+    /**
+     * Takes ids from the rest of the last block and further blocks of the sequence as needed, like Hibernate's
+     * pooled-lo optimizer, so books created through either stack never share an id.
+     */
+    private Mono<List<Integer>> allocateIds(int count) {
+        List<Integer> ids = new ArrayList<>(count);
+        synchronized (this) {
+            while (ids.size() < count && nextId < idLimit) {
+                ids.add(nextId++);
+            }
+        }
+        int blocks = (count - ids.size() + BookJson.ID_ALLOCATION_SIZE - 1) / BookJson.ID_ALLOCATION_SIZE;
+        return Flux.range(0, blocks)
+                .concatMap(block -> execute(BookStatements.nextIdBlock())
+                        .map((row, metadata) -> row.get("id", Long.class))
+                        .first())
+                .collectList()
+                .map(blockStarts -> {
+                    for (Long blockStart : blockStarts) {
+                        int blockLimit = blockStart.intValue() + BookJson.ID_ALLOCATION_SIZE;
+                        int id = blockStart.intValue();
+                        while (ids.size() < count && id < blockLimit) {
+                            ids.add(id++);
+                        }
+                        // only the last block can have ids left, every block before it was used up
+                        if (id < blockLimit) {
+                            synchronized (this) {
+                                nextId = id;
+                                idLimit = blockLimit;
+                            }
+                        }
+                    }
+                    return ids;
+                });
+    }
+
+    private DatabaseClient.GenericExecuteSpec execute(CompiledQuery query) {
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(query.getSql());
+        for (Map.Entry<String, Object> parameter : query.getParameters().entrySet()) {
+            Object value = parameter.getValue();
+            if (value == null) {
+                spec = spec.bindNull(parameter.getKey(), String.class);
+            } else if (value instanceof Timestamp) {
+                // R2DBC drivers bind java.time types only
+                spec = spec.bind(parameter.getKey(), ((Timestamp) value).toLocalDateTime());
+            } else {
+                spec = spec.bind(parameter.getKey(), value);
+            }
+        }
+        return spec;
+    }
+
+    private static RawBook rawBook(Row row) {
+        return new RawBook(row.get("id", Integer.class), row.get("book", String.class),
+                ETags.toVersion(row.get("row_version", byte[].class)));
+    }
+
+    private static BookVersion bookVersion(Row row) {
+        return new BookVersion(row.get("id", Integer.class), ETags.toVersion(row.get("row_version", byte[].class)));
+    }
+}
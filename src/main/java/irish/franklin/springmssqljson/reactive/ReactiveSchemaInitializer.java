@@ -0,0 +1,32 @@
+package irish.franklin.springmssqljson.reactive;
+
+import irish.franklin.springmssqljson.schema.BookLibrarySchema;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Adds the {@link BookLibrarySchema} to BOOK_LIBRARY, which has to exist already since there is no Hibernate to
+ * create it. Blocking is fine here, it happens once before the server starts.
+ */
+@Component
+@Profile("reactive")
+// runs at startup even with lazy initialization, the first query needs the schema
+@Lazy(false)
+@RequiredArgsConstructor
+public class ReactiveSchemaInitializer {
+    private final DatabaseClient databaseClient;
+    private final BookLibrarySchema schema;
+
+    @PostConstruct
+    void initializeSchema() {
+        Flux.fromIterable(schema.statements())
+                .concatMap(statement -> databaseClient.sql(statement).then())
+                .blockLast();
+    }
+}
@@ -0,0 +1,32 @@
+package irish.franklin.springmssqljson.replica;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+ * Replaces the auto-configured data source with one that routes read-only transactions to the replicas when
+ * {@code book-library.read-replicas.enabled} is set. Hibernate, the JDBC templates and the transaction manager all
+ * use it, so only the repository reads marked read-only leave the primary.
+ */
+@Configuration(proxyBeanMethods = false)
+@Profile("!reactive")
+@ConditionalOnProperty(prefix = "book-library.read-replicas", name = "enabled", havingValue = "true")
+public class ReadReplicaConfiguration {
+
+    @Bean
+    DataSource dataSource(ReplicaTargets targets) {
+        return new LazyConnectionDataSourceProxy(new ReplicaRoutingDataSource(targets));
+    }
+
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    ReadYourWritesFilter readYourWritesFilter(ReadReplicaProperties properties) {
+        return new ReadYourWritesFilter(properties);
+    }
+}
@@ -0,0 +1,40 @@
+package irish.franklin.springmssqljson.replica;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.read-replicas")
+public class ReadReplicaProperties {
+    /** Whether read-only transactions are sent to the replicas instead of the primary datasource */
+    private boolean enabled = false;
+
+    /** The readable secondaries, taken in turn while they are healthy */
+    private List<Replica> replicas = new ArrayList<>();
+
+    /**
+     * How long after a write a client that sends the {@code X-Primary-Until} header back reads from the primary,
+     * it should be longer than the replicas lag behind
+     */
+    private Duration stickyWindow = Duration.ofSeconds(2);
+
+    /** How long getting a connection from a replica may take before the read fails over to another target */
+    private Duration connectionTimeout = Duration.ofSeconds(2);
+
+    @Data
+    public static class Replica {
+        /** The JDBC url, {@code ApplicationIntent=ReadOnly} is added when it is missing */
+        private String url;
+        private String username;
+        private String password;
+
+        /** The max amount of connections to this replica */
+        private int maxPoolSize = 10;
+    }
+}
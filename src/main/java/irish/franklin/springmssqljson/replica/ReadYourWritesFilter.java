@@ -0,0 +1,62 @@
+package irish.franklin.springmssqljson.replica;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Keeps reads consistent with writes while replicas lag behind. Write requests read from the primary, e.g. the book
+ * a merge patch is applied to, and answer with an {@value #PRIMARY_UNTIL_HEADER} header. Reads that send it back
+ * before it passes read from the primary too, so a client sees its own writes.
+ * <p>
+ * Streaming response bodies are written after the request thread returned and read from a replica regardless.
+ */
+@RequiredArgsConstructor
+class ReadYourWritesFilter extends OncePerRequestFilter {
+    static final String PRIMARY_UNTIL_HEADER = "X-Primary-Until";
+
+    private final ReadReplicaProperties properties;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long now = System.currentTimeMillis();
+        long stickyWindow = properties.getStickyWindow().toMillis();
+        boolean write = !HttpMethod.GET.matches(request.getMethod()) && !HttpMethod.HEAD.matches(request.getMethod());
+        if (write) {
+            response.setHeader(PRIMARY_UNTIL_HEADER, Long.toString(now + stickyWindow));
+        }
+        if (!write && !isSticky(request.getHeader(PRIMARY_UNTIL_HEADER), now, stickyWindow)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        ReplicaRouting.pinToPrimary();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ReplicaRouting.unpin();
+        }
+    }
+
+    /**
+     * Whether a header sent back by the client still pins its reads, a time further ahead than one sticky window
+     * was not handed out by us and is ignored.
+     */
+    private static boolean isSticky(String primaryUntil, long now, long stickyWindow) {
+        if (primaryUntil == null) {
+            return false;
+        }
+        try {
+            long until = Long.parseLong(primaryUntil.trim());
+            return until > now && until <= now + stickyWindow;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
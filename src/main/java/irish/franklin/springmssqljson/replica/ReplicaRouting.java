@@ -0,0 +1,63 @@
+package irish.franklin.springmssqljson.replica;
+
+import java.util.function.Supplier;
+
+/**
+ * Pins the reads of the current thread to the primary, for reads that must see the writes made just before them.
+ * Outside of it only read-only transactions go to a replica.
+ */
+public final class ReplicaRouting {
+    private static final ThreadLocal<Boolean> PRIMARY_REQUIRED = new ThreadLocal<>();
+
+    private ReplicaRouting(){
+        //private constructor to prevent public initialization
+    }
+
+    public static boolean isPrimaryRequired() {
+        return Boolean.TRUE.equals(PRIMARY_REQUIRED.get());
+    }
+
+    public static <T> T onPrimary(Supplier<T> work) {
+        if (isPrimaryRequired()) {
+            return work.get();
+        }
+        pinToPrimary();
+        try {
+            return work.get();
+        } finally {
+            unpin();
+        }
+    }
+
+    /** Pins the thread to the primary until {@link #unpin()}, for work that throws checked exceptions */
+    static void pinToPrimary() {
+        PRIMARY_REQUIRED.set(Boolean.TRUE);
+    }
+
+    static void unpin() {
+        PRIMARY_REQUIRED.remove();
+    }
+
+    public static void onPrimary(Runnable work) {
+        onPrimary(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Lets read-only transactions go to a replica even when the thread is pinned to the primary, for reads that may
+     * lag behind the writes, e.g. whether a book a write didn't find exists.
+     */
+    public static <T> T onReplica(Supplier<T> work) {
+        if (!isPrimaryRequired()) {
+            return work.get();
+        }
+        unpin();
+        try {
+            return work.get();
+        } finally {
+            pinToPrimary();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package irish.franklin.springmssqljson.replica;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Hands out connections of a healthy replica in read-only transactions and of the primary otherwise, or when the
+ * thread is pinned to the primary by {@link ReplicaRouting}. A read fails over to the next replica and finally to
+ * the primary when a replica can't hand out a connection.
+ * <p>
+ * It has to sit behind a {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}, as the
+ * transaction manager takes its connection before the transaction is marked read-only.
+ */
+@RequiredArgsConstructor
+class ReplicaRoutingDataSource extends AbstractDataSource {
+    private final ReplicaTargets targets;
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (TransactionSynchronizationManager.isCurrentTransactionReadOnly() && !ReplicaRouting.isPrimaryRequired()) {
+            for (ReplicaTargets.Replica replica : targets.healthyReplicasInTurn()) {
+                try {
+                    return replica.getConnection();
+                } catch (SQLException | RuntimeException e) {
+                    // logged and counted by the replica, the next one is tried
+                }
+            }
+        }
+        return targets.primaryConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return targets.primaryConnection(username, password);
+    }
+}
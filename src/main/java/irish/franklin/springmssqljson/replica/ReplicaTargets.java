@@ -0,0 +1,174 @@
+package irish.franklin.springmssqljson.replica;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection pools reads are routed between: the primary, configured by {@code spring.datasource} like the
+ * auto-configured pool it replaces, and the replicas. Each pool publishes the {@code hikaricp.*} metrics tagged with
+ * its name, {@code primary} or {@code replica-1} and so on, which include how long connections are waited for and used.
+ * <p>
+ * A replica that fails to hand out a connection is skipped until the next health check can use it again.
+ */
+@Slf4j
+@Component
+@Profile("!reactive")
+@ConditionalOnProperty(prefix = "book-library.read-replicas", name = "enabled", havingValue = "true")
+// a lazily initialized bean would never be created, so it would never be scheduled
+@Lazy(false)
+public class ReplicaTargets {
+    private final HikariDataSource primary;
+    private final Counter primaryConnections;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public ReplicaTargets(ReadReplicaProperties properties, DataSourceProperties dataSourceProperties,
+                          Environment environment, MeterRegistry meterRegistry) {
+        primary = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        Binder.get(environment).bind("spring.datasource.hikari", Bindable.ofInstance(primary));
+        primary.setPoolName("primary");
+        primary.setMetricRegistry(meterRegistry);
+        primaryConnections = connections(meterRegistry, "primary");
+
+        for (ReadReplicaProperties.Replica replica : properties.getReplicas()) {
+            String name = "replica-" + (replicas.size() + 1);
+            HikariDataSource dataSource = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    .url(readOnlyIntent(replica.getUrl()))
+                    .username(replica.getUsername())
+                    .password(replica.getPassword())
+                    .build();
+            dataSource.setPoolName(name);
+            dataSource.setMaximumPoolSize(replica.getMaxPoolSize());
+            dataSource.setConnectionTimeout(properties.getConnectionTimeout().toMillis());
+            dataSource.setReadOnly(true);
+            dataSource.setMetricRegistry(meterRegistry);
+            replicas.add(new Replica(name, dataSource, connections(meterRegistry, name),
+                    meterRegistry.counter("book.datasource.failovers", "target", name)));
+        }
+        for (Replica replica : replicas) {
+            Gauge.builder("book.datasource.healthy", replica, target -> target.healthy ? 1 : 0)
+                    .tag("target", replica.name)
+                    .description("Whether reads are routed to the replica")
+                    .register(meterRegistry);
+        }
+        log.info("Routing read-only transactions to {} replicas", replicas.size());
+    }
+
+    private static Counter connections(MeterRegistry meterRegistry, String target) {
+        return Counter.builder("book.datasource.connections")
+                .tag("target", target)
+                .description("Connections handed out by the routing data source")
+                .register(meterRegistry);
+    }
+
+    private static String readOnlyIntent(String url) {
+        return url.toLowerCase(Locale.ROOT).contains("applicationintent=") ? url : url + ";applicationIntent=ReadOnly";
+    }
+
+    Connection primaryConnection() throws SQLException {
+        primaryConnections.increment();
+        return primary.getConnection();
+    }
+
+    Connection primaryConnection(String username, String password) throws SQLException {
+        primaryConnections.increment();
+        return primary.getConnection(username, password);
+    }
+
+    /**
+     * The healthy replicas, starting with the one whose turn it is, so reads are spread evenly.
+     */
+    List<Replica> healthyReplicasInTurn() {
+        if (replicas.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int first = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        List<Replica> healthy = new ArrayList<>(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((first + i) % replicas.size());
+            if (replica.healthy) {
+                healthy.add(replica);
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Checks every replica with a fresh connection, so a replica that failed is used again once it is back.
+     */
+    @Scheduled(fixedDelayString = "${book-library.read-replicas.health-check-delay:PT5S}")
+    public void checkHealth() {
+        for (Replica replica : replicas) {
+            boolean healthy;
+            try (Connection connection = replica.dataSource.getConnection()) {
+                healthy = connection.isValid((int) Math.max(1, replica.dataSource.getConnectionTimeout() / 1000));
+            } catch (SQLException | RuntimeException e) {
+                healthy = false;
+            }
+            if (healthy != replica.healthy) {
+                log.info("Replica {} is {}", replica.name, healthy ? "healthy again" : "unhealthy");
+            }
+            replica.healthy = healthy;
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        replicas.forEach(replica -> replica.dataSource.close());
+        primary.close();
+    }
+
+    static class Replica {
+        private final String name;
+        private final HikariDataSource dataSource;
+        private final Counter connections;
+        private final Counter failovers;
+        private volatile boolean healthy = true;
+
+        Replica(String name, HikariDataSource dataSource, Counter connections, Counter failovers) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.connections = connections;
+            this.failovers = failovers;
+        }
+
+        Connection getConnection() throws SQLException {
+            try {
+                Connection connection = dataSource.getConnection();
+                connections.increment();
+                return connection;
+            } catch (SQLException | RuntimeException e) {
+                // the pool throws a runtime exception when it can't be started
+                if (healthy) {
+                    log.warn("Replica {} failed to hand out a connection, reading elsewhere until it is healthy again", name, e);
+                }
+                healthy = false;
+                failovers.increment();
+                throw e;
+            }
+        }
+    }
+}
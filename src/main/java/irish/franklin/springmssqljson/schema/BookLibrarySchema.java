@@ -0,0 +1,116 @@
+package irish.franklin.springmssqljson.schema;
+
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.query.BookStatements;
+import irish.franklin.springmssqljson.schema.IndexedJsonPaths.IndexedJsonPath;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The schema objects that Hibernate does not know about on BOOK_LIBRARY.
+ * Every statement is idempotent so it is safe to run against an existing database on every startup.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class BookLibrarySchema {
+    private final IndexedJsonPaths indexedJsonPaths;
+
+    public List<String> statements() {
+        List<String> statements = new ArrayList<>();
+        statements.add(idSequence());
+        statements.add(rowVersionColumn());
+        statements.addAll(storageColumns());
+        statements.addAll(changeTracking());
+        if (indexedJsonPaths.isManageSchema()) {
+            for (IndexedJsonPath path : indexedJsonPaths.all()) {
+                log.info("Ensuring computed column {} and index {} for {}", path.getColumnName(), path.getIndexName(), path.getJsonPath());
+                statements.addAll(indexedPathColumn(path));
+            }
+        }
+        statements.add(documentFunction());
+        statements.add(documentsView());
+        return statements;
+    }
+
+    private String idSequence() {
+        // databases created before ids were pooled continue after the highest existing id
+        return "IF OBJECT_ID('BOOK_LIBRARY_SEQ', 'SO') IS NULL"
+                + " BEGIN"
+                + " DECLARE @start BIGINT = (SELECT ISNULL(MAX(id), 0) + 1 FROM BOOK_LIBRARY);"
+                + " DECLARE @sql NVARCHAR(200) = N'CREATE SEQUENCE BOOK_LIBRARY_SEQ START WITH ' + CAST(@start AS NVARCHAR(20))"
+                + " + N' INCREMENT BY " + BookJson.ID_ALLOCATION_SIZE + "';"
+                + " EXEC sp_executesql @sql;"
+                + " END";
+    }
+
+    private String rowVersionColumn() {
+        // not mapped on BookJson, a database generated version would cost a select after every insert
+        return "IF COL_LENGTH('BOOK_LIBRARY', 'row_version') IS NULL"
+                + " ALTER TABLE BOOK_LIBRARY ADD row_version ROWVERSION";
+    }
+
+    private List<String> storageColumns() {
+        List<String> statements = new ArrayList<>();
+        statements.add("IF COL_LENGTH('BOOK_LIBRARY', 'book_codec') IS NULL"
+                + " ALTER TABLE BOOK_LIBRARY ADD book_codec TINYINT NOT NULL CONSTRAINT DF_BOOK_LIBRARY_CODEC DEFAULT 0,"
+                + " book_gz VARBINARY(MAX) NULL");
+        // the storage migration finds the rows to migrate through this index
+        statements.add("IF NOT EXISTS (SELECT 1 FROM sys.indexes"
+                + " WHERE name = 'IX_BOOK_LIBRARY_CODEC' AND object_id = OBJECT_ID('BOOK_LIBRARY'))"
+                + " CREATE NONCLUSTERED INDEX IX_BOOK_LIBRARY_CODEC ON BOOK_LIBRARY (book_codec)");
+        return statements;
+    }
+
+    private List<String> changeTracking() {
+        List<String> statements = new ArrayList<>();
+        // the changes since a token seek this index instead of scanning the documents
+        statements.add("IF NOT EXISTS (SELECT 1 FROM sys.indexes"
+                + " WHERE name = 'IX_BOOK_LIBRARY_ROW_VERSION' AND object_id = OBJECT_ID('BOOK_LIBRARY'))"
+                + " CREATE NONCLUSTERED INDEX IX_BOOK_LIBRARY_ROW_VERSION ON BOOK_LIBRARY (row_version)");
+        statements.add("IF OBJECT_ID('" + BookStatements.TOMBSTONES + "', 'U') IS NULL"
+                + " CREATE TABLE " + BookStatements.TOMBSTONES + " (id INT NOT NULL, row_version ROWVERSION NOT NULL,"
+                + " deleted_at DATETIME2 NOT NULL CONSTRAINT DF_BOOK_LIBRARY_TOMBSTONES_DELETED_AT DEFAULT SYSUTCDATETIME(),"
+                + " CONSTRAINT PK_BOOK_LIBRARY_TOMBSTONES PRIMARY KEY (row_version))");
+        statements.add("IF OBJECT_ID('" + BookStatements.TOMBSTONE_HORIZON + "', 'U') IS NULL"
+                + " BEGIN"
+                + " CREATE TABLE " + BookStatements.TOMBSTONE_HORIZON + " (pruned_through BINARY(8) NOT NULL);"
+                + " INSERT INTO " + BookStatements.TOMBSTONE_HORIZON + " (pruned_through) VALUES (0x0000000000000000);"
+                + " END");
+        return statements;
+    }
+
+    /**
+     * The document expression as a function for {@code BookJson}, Hibernate can't read the expression itself from a
+     * column transformer because it would prefix its type names like columns.
+     */
+    private String documentFunction() {
+        return "CREATE OR ALTER FUNCTION dbo.BOOK_DOCUMENT(@book_codec TINYINT, @book NVARCHAR(MAX), @book_gz VARBINARY(MAX))"
+                + " RETURNS NVARCHAR(MAX) AS BEGIN RETURN"
+                + " CASE WHEN @book_codec = 1 THEN CAST(DECOMPRESS(@book_gz) AS NVARCHAR(MAX)) ELSE @book END"
+                + " END";
+    }
+
+    private String documentsView() {
+        StringBuilder columns = new StringBuilder("id, " + BookStatements.DOCUMENT + " AS book, row_version");
+        indexedJsonPaths.all().forEach(path -> columns.append(", ").append(path.getColumnName()));
+        return "CREATE OR ALTER VIEW " + BookStatements.DOCUMENTS_VIEW + " AS SELECT " + columns + " FROM BOOK_LIBRARY";
+    }
+
+    private List<String> indexedPathColumn(IndexedJsonPath path) {
+        List<String> statements = new ArrayList<>();
+        // NVARCHAR(450) keeps the key under the 900 byte index limit, the repository rechecks JSON_VALUE for longer values
+        statements.add("IF COL_LENGTH('BOOK_LIBRARY', '" + path.getColumnName() + "') IS NULL"
+                + " ALTER TABLE BOOK_LIBRARY ADD " + path.getColumnName()
+                + " AS CAST(JSON_VALUE(book, '" + path.getJsonPath() + "') AS NVARCHAR(450)) PERSISTED");
+        statements.add("IF NOT EXISTS (SELECT 1 FROM sys.indexes"
+                + " WHERE name = '" + path.getIndexName() + "' AND object_id = OBJECT_ID('BOOK_LIBRARY'))"
+                + " CREATE NONCLUSTERED INDEX " + path.getIndexName()
+                + " ON BOOK_LIBRARY (" + path.getColumnName() + ")");
+        return statements;
+    }
+}
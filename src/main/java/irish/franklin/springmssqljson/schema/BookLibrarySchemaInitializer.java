@@ -0,0 +1,29 @@
+package irish.franklin.springmssqljson.schema;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Adds the {@link BookLibrarySchema} to BOOK_LIBRARY once Hibernate has created or validated the table.
+ */
+@Component
+@Profile("!reactive")
+// runs at startup even with lazy initialization, the first query needs the schema
+@Lazy(false)
+@DependsOn("entityManagerFactory")
+@RequiredArgsConstructor
+public class BookLibrarySchemaInitializer {
+    private final JdbcTemplate jdbcTemplate;
+    private final BookLibrarySchema schema;
+
+    @PostConstruct
+    void initializeSchema() {
+        schema.statements().forEach(jdbcTemplate::execute);
+    }
+}
@@ -0,0 +1,82 @@
+package irish.franklin.springmssqljson.schema;
+
+import irish.franklin.springmssqljson.query.JsonPath;
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.Value;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Registry of "hot" JSON paths that get a persisted computed column and a nonclustered index on BOOK_LIBRARY.
+ * Paths are configured the same way they are queried, e.g. {@code language} or {@code additionalProperties.yearPublished}.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.json-index")
+public class IndexedJsonPaths {
+    private static final int MAX_IDENTIFIER_LENGTH = 128;
+
+    private List<String> paths = new ArrayList<>();
+
+    /** When false the computed columns and indexes are expected to be managed outside of the application. */
+    private boolean manageSchema = true;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<String, IndexedJsonPath> pathsByFieldName = Collections.emptyMap();
+
+    @PostConstruct
+    void registerPaths() {
+        Map<String, IndexedJsonPath> registered = new LinkedHashMap<>();
+        Map<String, String> fieldNamesByColumn = new LinkedHashMap<>();
+        for (String path : paths) {
+            String fieldName = path.startsWith("$.") ? path.substring(2) : path;
+            if (!JsonPath.isValid(fieldName)) {
+                throw new IllegalStateException("Invalid indexed JSON path: " + path);
+            }
+            IndexedJsonPath indexedPath = IndexedJsonPath.of(fieldName);
+            if (indexedPath.getIndexName().length() > MAX_IDENTIFIER_LENGTH) {
+                throw new IllegalStateException("Indexed JSON path is too long: " + path);
+            }
+            String clash = fieldNamesByColumn.put(indexedPath.getColumnName(), fieldName);
+            if (clash != null && !clash.equals(fieldName)) {
+                throw new IllegalStateException("Indexed JSON paths " + clash + " and " + fieldName + " map to the same column");
+            }
+            registered.put(fieldName, indexedPath);
+        }
+        pathsByFieldName = Collections.unmodifiableMap(registered);
+    }
+
+    public Optional<IndexedJsonPath> find(String fieldName) {
+        return Optional.ofNullable(pathsByFieldName.get(fieldName));
+    }
+
+    public Collection<IndexedJsonPath> all() {
+        return pathsByFieldName.values();
+    }
+
+    @Value
+    public static class IndexedJsonPath {
+        String fieldName;
+        String jsonPath;
+        String columnName;
+        String indexName;
+
+        static IndexedJsonPath of(String fieldName) {
+            String columnName = "jv_" + fieldName.replace(".", "__");
+            return new IndexedJsonPath(fieldName, "$." + fieldName, columnName, "IX_BOOK_LIBRARY_" + columnName);
+        }
+    }
+}
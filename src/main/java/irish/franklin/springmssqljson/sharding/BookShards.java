@@ -0,0 +1,205 @@
+package irish.franklin.springmssqljson.sharding;
+
+import com.zaxxer.hikari.HikariDataSource;
+import irish.franklin.springmssqljson.bulkhead.ScanBulkheadProperties;
+import irish.franklin.springmssqljson.index.InvertedIndexProperties;
+import irish.franklin.springmssqljson.query.CompiledQuery;
+import irish.franklin.springmssqljson.schema.BookLibrarySchema;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * The databases BOOK_LIBRARY is spread over when {@code book-library.sharding.enabled} is set: the primary datasource
+ * is shard 0 and every configured shard follows it. A book lives on the shard picked by a hash of its id, so reads and
+ * writes by id go to one shard, while searches ask every shard in parallel on a bounded pool and merge the answers.
+ * <p>
+ * Without sharding there is one shard, the primary, and {@link #scatter} runs on the caller's thread.
+ */
+@Slf4j
+@Component
+@Profile("!reactive")
+// runs at startup even with lazy initialization, the first query needs the schema on every shard
+@Lazy(false)
+public class BookShards {
+    private static final String CREATE_TABLE = "IF OBJECT_ID('BOOK_LIBRARY', 'U') IS NULL"
+            + " CREATE TABLE BOOK_LIBRARY (id INT NOT NULL PRIMARY KEY, book NVARCHAR(MAX) NOT NULL)";
+
+    private final ShardingProperties properties;
+    private final BookLibrarySchema schema;
+    private final List<NamedParameterJdbcTemplate> shards = new ArrayList<>();
+    /** The same shards with the query timeout of scans, so the driver cancels a scan that runs too long */
+    private final List<NamedParameterJdbcTemplate> scanShards = new ArrayList<>();
+    private final List<HikariDataSource> shardDataSources = new ArrayList<>();
+    private final ThreadPoolExecutor searchExecutor;
+
+    public BookShards(ShardingProperties properties, NamedParameterJdbcTemplate jdbcTemplate, BookLibrarySchema schema,
+                      InvertedIndexProperties invertedIndexProperties, ScanBulkheadProperties scanBulkheadProperties) {
+        this.properties = properties;
+        this.schema = schema;
+        shards.add(jdbcTemplate);
+        scanShards.add(scanTemplate(jdbcTemplate, scanBulkheadProperties));
+        if (!properties.isEnabled() || properties.getShards().isEmpty()) {
+            searchExecutor = null;
+            return;
+        }
+        if (invertedIndexProperties.isEnabled()) {
+            // the index only reads the primary, it would leave out the books of every other shard
+            throw new IllegalStateException("book-library.inverted-index can't be enabled together with book-library.sharding");
+        }
+        for (ShardingProperties.Shard shard : properties.getShards()) {
+            HikariDataSource dataSource = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    .url(shard.getUrl())
+                    .username(shard.getUsername())
+                    .password(shard.getPassword())
+                    .build();
+            dataSource.setPoolName("book-shard-" + shards.size());
+            dataSource.setMaximumPoolSize(shard.getMaxPoolSize());
+            shardDataSources.add(dataSource);
+            NamedParameterJdbcTemplate shardTemplate = new NamedParameterJdbcTemplate(dataSource);
+            shards.add(shardTemplate);
+            scanShards.add(scanTemplate(shardTemplate, scanBulkheadProperties));
+        }
+        AtomicInteger threads = new AtomicInteger();
+        searchExecutor = new ThreadPoolExecutor(properties.getSearchThreads(), properties.getSearchThreads(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(properties.getMaxQueuedQueries()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "book-shard-search-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        log.info("Spreading books over {} shards", shards.size());
+    }
+
+    private static NamedParameterJdbcTemplate scanTemplate(NamedParameterJdbcTemplate shardTemplate,
+                                                           ScanBulkheadProperties scanBulkheadProperties) {
+        if (!scanBulkheadProperties.isEnabled()) {
+            return shardTemplate;
+        }
+        JdbcTemplate scanTemplate = new JdbcTemplate(shardTemplate.getJdbcTemplate().getDataSource());
+        scanTemplate.setQueryTimeout((int) Math.max(1, (scanBulkheadProperties.getQueryTimeout().toMillis() + 999) / 1000));
+        return new NamedParameterJdbcTemplate(scanTemplate);
+    }
+
+    /**
+     * Adds BOOK_LIBRARY and its {@link BookLibrarySchema} to every shard but the primary, where Hibernate creates the
+     * table and the schema initializer adds the rest.
+     */
+    @PostConstruct
+    void initializeSchema() {
+        for (NamedParameterJdbcTemplate shard : shards.subList(1, shards.size())) {
+            shard.getJdbcTemplate().execute(CREATE_TABLE);
+            schema.statements().forEach(shard.getJdbcTemplate()::execute);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        if (searchExecutor != null) {
+            searchExecutor.shutdownNow();
+        }
+        shardDataSources.forEach(HikariDataSource::close);
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    public int count() {
+        return shards.size();
+    }
+
+    public NamedParameterJdbcTemplate get(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * The shard to run a compiled query on, with the query timeout of scans when the query scans.
+     */
+    public NamedParameterJdbcTemplate get(int shard, CompiledQuery query) {
+        return (query.isFullScan() ? scanShards : shards).get(shard);
+    }
+
+    public NamedParameterJdbcTemplate forId(Integer id) {
+        return shards.get(shardOf(id, shards.size()));
+    }
+
+    /**
+     * The shard of a book, stable as long as the amount of shards doesn't change.
+     */
+    public static int shardOf(int id, int shards) {
+        // the finalizer of murmur3, so the consecutive ids of a sequence block spread evenly over the shards
+        int hash = id;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shards);
+    }
+
+    /**
+     * Runs the query on every shard in parallel and returns the answers in shard order.
+     *
+     * @throws ResponseStatusException 504 when a shard doesn't answer within the shard timeout, 503 when the search
+     *                                 pool has no room for the queries
+     */
+    public <T> List<T> scatter(IntFunction<T> query) {
+        if (!isSharded()) {
+            return Collections.singletonList(query.apply(0));
+        }
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                int shard = i;
+                futures.add(searchExecutor.submit(() -> query.apply(shard)));
+            }
+            long deadline = System.nanoTime() + properties.getShardTimeout().toNanos();
+            List<T> answers = new ArrayList<>(shards.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    answers.add(futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT,
+                            "Shard " + i + " did not answer within " + properties.getShardTimeout().toMillis() + " ms");
+                }
+            }
+            return answers;
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many searches waiting for the shards");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while waiting for the shards");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // frees the search threads of shards that are still busy once the answer can't be used
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+}
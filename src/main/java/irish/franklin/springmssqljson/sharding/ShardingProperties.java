@@ -0,0 +1,42 @@
+package irish.franklin.springmssqljson.sharding;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.sharding")
+public class ShardingProperties {
+    /** Whether books are spread over the primary datasource and the shards by a hash of their id */
+    private boolean enabled = false;
+
+    /**
+     * The databases after the primary datasource, which is always shard 0. Adding or removing a shard moves most
+     * books to another shard, so the amount of shards can't change without moving the books.
+     */
+    private List<Shard> shards = new ArrayList<>();
+
+    /** The threads that query the shards in parallel for searches, each query holds a connection of its shard */
+    private int searchThreads = 8;
+
+    /** The max amount of shard queries waiting for a search thread, more are rejected with 503 */
+    private int maxQueuedQueries = 1000;
+
+    /** How long a search waits for every shard to answer before it fails with 504 */
+    private Duration shardTimeout = Duration.ofSeconds(10);
+
+    @Data
+    public static class Shard {
+        private String url;
+        private String username;
+        private String password;
+
+        /** The max amount of connections to this shard */
+        private int maxPoolSize = 10;
+    }
+}
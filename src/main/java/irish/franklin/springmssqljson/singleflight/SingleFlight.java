@@ -0,0 +1,138 @@
+package irish.franklin.springmssqljson.singleflight;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.replica.ReplicaRouting;
+import lombok.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lets identical reads that arrive while one of them is running wait for its answer instead of running the same
+ * query again. Nothing is kept once the read has answered, every read that arrives after it runs anew.
+ * <p>
+ * The waiting reads get the same answer, or the same exception, as the read that ran. A read that gives up waiting
+ * only stops waiting; when the read that runs is interrupted before it has an answer, one of the waiting reads runs
+ * again. Like the search results of {@link irish.franklin.springmssqljson.cache.BookCache}, reads are keyed by a
+ * version that every committed change increments, so a read that arrives after a change never waits for one that
+ * started before it. Reads pinned to the primary only wait for reads pinned to the primary.
+ */
+@Component
+@Profile("!reactive")
+public class SingleFlight {
+    /** Answers the waiting reads when the read that ran was interrupted, so they run it again */
+    private static final Object ABANDONED = new Object();
+
+    private final boolean enabled;
+    private final MeterRegistry meterRegistry;
+    private final AtomicLong version = new AtomicLong();
+    private final Map<FlightKey, CompletableFuture<Object>> flights = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public SingleFlight(SingleFlightProperties properties, MeterRegistry meterRegistry) {
+        this.enabled = properties.isEnabled();
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("book.single-flight.in-flight", flights, Map::size)
+                .description("Reads running that identical reads can wait for")
+                .register(meterRegistry);
+        Gauge.builder("book.single-flight.waiting", waiting, AtomicInteger::get)
+                .description("Reads waiting for an identical read to answer")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs the read, unless an identical read is already running, then returns its answer or throws its exception.
+     * Answers are shared between threads, so they must not be changed.
+     *
+     * @param read names the read in the metrics, reads of different names never wait for each other
+     * @param key  the arguments of the read, with equals and hashCode
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(String read, Object key, Supplier<T> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        FlightKey flightKey = new FlightKey(read, version.get(), ReplicaRouting.isPrimaryRequired(), key);
+        while (true) {
+            CompletableFuture<Object> flight = new CompletableFuture<>();
+            CompletableFuture<Object> running = flights.putIfAbsent(flightKey, flight);
+            if (running == null) {
+                return (T) lead(flightKey, flight, loader);
+            }
+            Object answer = await(read, running);
+            if (answer != ABANDONED) {
+                return (T) answer;
+            }
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookChanged(BookChangedEvent event) {
+        version.incrementAndGet();
+    }
+
+    private Object lead(FlightKey flightKey, CompletableFuture<Object> flight, Supplier<?> loader) {
+        reads(flightKey.getRead(), "led").increment();
+        try {
+            Object answer = loader.get();
+            flight.complete(answer);
+            return answer;
+        } catch (RuntimeException e) {
+            // a read that was cancelled has no answer for the others, a read that failed has
+            if (!Thread.currentThread().isInterrupted()) {
+                flight.completeExceptionally(e);
+            }
+            throw e;
+        } finally {
+            flight.complete(ABANDONED);
+            flights.remove(flightKey, flight);
+        }
+    }
+
+    private Object await(String read, CompletableFuture<Object> flight) {
+        waiting.incrementAndGet();
+        try {
+            Object answer = flight.get();
+            if (answer != ABANDONED) {
+                reads(read, "joined").increment();
+            }
+            return answer;
+        } catch (ExecutionException e) {
+            reads(read, "joined").increment();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while waiting for an identical read");
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private Counter reads(String read, String outcome) {
+        return meterRegistry.counter("book.single-flight.reads", "read", read, "outcome", outcome);
+    }
+
+    @Value
+    private static class FlightKey {
+        String read;
+        long version;
+        boolean primary;
+        Object key;
+    }
+}
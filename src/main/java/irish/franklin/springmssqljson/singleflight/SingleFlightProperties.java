@@ -0,0 +1,13 @@
+package irish.franklin.springmssqljson.singleflight;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.single-flight")
+public class SingleFlightProperties {
+    /** Whether identical reads that arrive while one of them is running wait for its answer instead of running too */
+    private boolean enabled = true;
+}
@@ -0,0 +1,19 @@
+package irish.franklin.springmssqljson.startup;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.startup")
+public class StartupProperties {
+    /** Whether the connection pool, the JSON mapper and the endpoints are warmed up before the app reports ready */
+    private boolean warmUp = false;
+
+    /** The amount of connections opened by the warm-up */
+    private int warmUpConnections = 10;
+
+    /** Exits once warmed up, for the training run that records the classes of the AppCDS archive */
+    private boolean exitAfterWarmUp = false;
+}
@@ -0,0 +1,116 @@
+package irish.franklin.springmssqljson.startup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.utils.JsonMergePatchUtils;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Does the work a first request would otherwise pay for before the app reports ready: opening pooled connections,
+ * building the Jackson serializers of the book models and, since lazily initialized beans are only created when first
+ * used, calling the read endpoints once through the server.
+ * <p>
+ * Readiness is only reported after the {@link ApplicationReadyEvent} listeners ran, so no traffic is routed to the
+ * app while it warms up.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class StartupWarmUp {
+    private static final String SAMPLE_BOOK = "{\"id\":1,\"name\":\"Warm-up\",\"description\":\"Warm-up\","
+            + "\"language\":\"English\",\"additionalProperties\":{\"yearPublished\":2020}}";
+
+    private final StartupProperties properties;
+    private final ObjectMapper objectMapper;
+    private final ObjectProvider<DataSource> dataSource;
+
+    @EventListener
+    public void onApplicationReady(ApplicationReadyEvent event) {
+        if (!properties.isWarmUp()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            warmUpConnectionPool();
+            warmUpJsonMapper();
+            warmUpEndpoints(event.getApplicationContext());
+            log.info("Warmed up in {} ms", (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            // a cold app still works, it is only slower to answer its first requests
+            log.warn("Warm-up failed", e);
+        }
+
+        if (properties.isExitAfterWarmUp()) {
+            System.exit(SpringApplication.exit(event.getApplicationContext()));
+        }
+    }
+
+    private void warmUpConnectionPool() throws SQLException {
+        // the reactive variant has no JDBC data source, its R2DBC pool is warmed up by the endpoints
+        DataSource pool = dataSource.getIfAvailable();
+        if (pool == null) {
+            return;
+        }
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < properties.getWarmUpConnections(); i++) {
+                connections.add(pool.getConnection());
+            }
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private void warmUpJsonMapper() throws IOException {
+        Book book = objectMapper.readValue(SAMPLE_BOOK, Book.class);
+        objectMapper.writeValueAsString(book);
+        objectMapper.writeValueAsString(new RawBook(book.getId(), SAMPLE_BOOK, "0000000000000000"));
+        JsonNode patch = objectMapper.readTree("{\"language\":\"Spanish\",\"additionalProperties\":{\"yearPublished\":null}}");
+        JsonMergePatchUtils.mergePatch(objectMapper.readTree(SAMPLE_BOOK), patch);
+    }
+
+    private void warmUpEndpoints(ApplicationContext context) throws IOException {
+        if (!(context instanceof WebServerApplicationContext)) {
+            return;
+        }
+        String baseUrl = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort() + "/api/v1/book";
+        get(baseUrl + "?limit=1");
+        // no book has a negative id, the lookup still runs through the cache and the repository
+        get(baseUrl + "/-1");
+    }
+
+    private static void get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                body.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
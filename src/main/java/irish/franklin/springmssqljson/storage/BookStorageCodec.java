@@ -0,0 +1,25 @@
+package irish.franklin.springmssqljson.storage;
+
+/**
+ * How the document of a BOOK_LIBRARY row is stored, recorded per row in {@code book_codec}.
+ */
+public enum BookStorageCodec {
+    /** JSON text in {@code book} */
+    TEXT(0),
+
+    /**
+     * JSON text gzipped by SQL Server's COMPRESS in {@code book_gz}. {@code book} keeps only the indexed paths,
+     * so the persisted computed columns and their indexes stay valid without decompressing anything.
+     */
+    GZIP(1);
+
+    private final int id;
+
+    BookStorageCodec(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+}
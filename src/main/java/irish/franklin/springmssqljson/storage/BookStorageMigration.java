@@ -0,0 +1,91 @@
+package irish.franklin.springmssqljson.storage;
+
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.schema.IndexedJsonPaths;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Migrates BOOK_LIBRARY rows to the configured {@link BookStorageCodec} in batches. Writes always store text, so with
+ * gzip this compresses the rows written since the last run, and with text it decompresses rows left by gzip.
+ * <p>
+ * Migrating a row changes its rowversion, so it is published as an update to evict the cached book.
+ */
+@Slf4j
+@Component
+@Profile("!reactive")
+// a lazily initialized bean would never be created, so it would never be scheduled
+@Lazy(false)
+@RequiredArgsConstructor
+public class BookStorageMigration {
+    private final JdbcTemplate jdbcTemplate;
+    private final IndexedJsonPaths indexedJsonPaths;
+    private final BookStorageProperties properties;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Scheduled(initialDelayString = "${book-library.storage.migration-delay:PT1M}",
+            fixedDelayString = "${book-library.storage.migration-delay:PT1M}")
+    void migrateInBackground() {
+        if (properties.isMigrationEnabled()) {
+            int migratedRows = migrate(properties.getCodec());
+            if (migratedRows > 0) {
+                log.info("Migrated {} books to {} storage", migratedRows, properties.getCodec());
+            }
+        }
+    }
+
+    /**
+     * Migrates every row stored with another codec, one batch per statement.
+     *
+     * @return the amount of migrated rows
+     */
+    public int migrate(BookStorageCodec codec) {
+        String migrateBatch = codec == BookStorageCodec.GZIP ? compressBatch() : decompressBatch();
+        int migratedRows = 0;
+        List<Integer> migratedIds;
+        do {
+            migratedIds = jdbcTemplate.queryForList(migrateBatch, Integer.class);
+            migratedIds.forEach(id -> eventPublisher.publishEvent(new BookChangedEvent(id, BookChangedEvent.Change.UPDATED)));
+            migratedRows += migratedIds.size();
+        } while (migratedIds.size() == properties.getMigrationBatchSize());
+        return migratedRows;
+    }
+
+    private String compressBatch() {
+        // SET expressions all see the row before the update, so book is compressed before it is replaced
+        return "UPDATE TOP (" + properties.getMigrationBatchSize() + ") BOOK_LIBRARY"
+                + " SET book_gz = COMPRESS(book), book = " + indexedPathsOnly() + ", book_codec = " + BookStorageCodec.GZIP.getId()
+                + " OUTPUT inserted.id"
+                + " WHERE book_codec = " + BookStorageCodec.TEXT.getId();
+    }
+
+    private String decompressBatch() {
+        return "UPDATE TOP (" + properties.getMigrationBatchSize() + ") BOOK_LIBRARY"
+                + " SET book = CAST(DECOMPRESS(book_gz) AS NVARCHAR(MAX)), book_gz = NULL, book_codec = " + BookStorageCodec.TEXT.getId()
+                + " OUTPUT inserted.id"
+                + " WHERE book_codec <> " + BookStorageCodec.TEXT.getId();
+    }
+
+    /**
+     * A document of just the indexed paths of {@code book}, FOR JSON PATH nests the dotted aliases like the paths.
+     */
+    private String indexedPathsOnly() {
+        if (indexedJsonPaths.all().isEmpty()) {
+            return "N'{}'";
+        }
+        return "ISNULL((SELECT "
+                + indexedJsonPaths.all().stream()
+                        .map(path -> "JSON_VALUE(book, '" + path.getJsonPath() + "') AS [" + path.getFieldName() + "]")
+                        .collect(Collectors.joining(", "))
+                + " FOR JSON PATH, WITHOUT_ARRAY_WRAPPER), N'{}')";
+    }
+}
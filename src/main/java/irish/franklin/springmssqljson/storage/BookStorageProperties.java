@@ -0,0 +1,19 @@
+package irish.franklin.springmssqljson.storage;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "book-library.storage")
+public class BookStorageProperties {
+    /** The codec rows are migrated to, rows are always written as text and migrated afterwards */
+    private BookStorageCodec codec = BookStorageCodec.TEXT;
+
+    /** Whether rows are migrated to the codec in the background */
+    private boolean migrationEnabled = false;
+
+    /** The max amount of rows migrated by one statement, which keeps the locks it takes short */
+    private int migrationBatchSize = 500;
+}
@@ -0,0 +1,83 @@
+package irish.franklin.springmssqljson.utils;
+
+import irish.franklin.springmssqljson.models.BookVersion;
+import irish.franklin.springmssqljson.query.Projection;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.springframework.util.DigestUtils.md5DigestAsHex;
+
+/**
+ * Converts between the BOOK_LIBRARY rowversion column and entity tags. The version of a book is its rowversion in
+ * hex, which is used as a strong entity tag as is since SQL Server changes it on every write to the row.
+ */
+public class ETags {
+    private static final Pattern STRONG_ETAG = Pattern.compile("\\s*\"([0-9A-Fa-f]{16})\"\\s*");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private ETags(){
+        //private constructor to prevent public initialization
+    }
+
+    public static String toVersion(byte[] rowVersion) {
+        char[] version = new char[rowVersion.length * 2];
+        for (int i = 0; i < rowVersion.length; i++) {
+            version[i * 2] = HEX[(rowVersion[i] >> 4) & 0xF];
+            version[i * 2 + 1] = HEX[rowVersion[i] & 0xF];
+        }
+        return new String(version);
+    }
+
+    public static byte[] toRowVersion(String version) {
+        byte[] rowVersion = new byte[version.length() / 2];
+        for (int i = 0; i < rowVersion.length; i++) {
+            rowVersion[i] = (byte) Integer.parseInt(version.substring(i * 2, i * 2 + 2), 16);
+        }
+        return rowVersion;
+    }
+
+    /**
+     * The entity tag of a list of books, which changes when a book in it changes, is added or is removed.
+     */
+    public static String ofBooks(Collection<BookVersion> bookVersions) {
+        StringBuilder versions = new StringBuilder(bookVersions.size() * 24);
+        for (BookVersion bookVersion : bookVersions) {
+            versions.append(bookVersion.getId()).append(':').append(bookVersion.getVersion()).append(';');
+        }
+        return md5DigestAsHex(versions.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The entity tag of a projection of a book or a list of books. A projection is another representation, so it
+     * gets a tag of its own, which is never a rowversion and so never matches an If-Match header.
+     */
+    public static String ofProjection(String entityTag, Projection projection) {
+        if (projection.isAll()) {
+            return entityTag;
+        }
+        return md5DigestAsHex((entityTag + ';' + projection).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The rowversions an If-Match header accepts, {@code null} when any version is accepted because the header is
+     * missing or {@code *}. Weak and malformed tags never match, so they are left out.
+     */
+    public static List<byte[]> parseIfMatch(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        List<byte[]> rowVersions = new ArrayList<>();
+        for (String etag : ifMatch.split(",")) {
+            Matcher matcher = STRONG_ETAG.matcher(etag);
+            if (matcher.matches()) {
+                rowVersions.add(toRowVersion(matcher.group(1)));
+            }
+        }
+        return rowVersions;
+    }
+}
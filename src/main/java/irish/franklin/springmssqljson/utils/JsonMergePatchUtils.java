@@ -2,32 +2,58 @@ package irish.franklin.springmssqljson.utils;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.fge.jsonpatch.JsonPatchException;
-import com.github.fge.jsonpatch.mergepatch.JsonMergePatch;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
 
 @Slf4j
 public class JsonMergePatchUtils {
+    // ObjectMapper is thread safe once configured, sharing it saves bootstrapping one per patch
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     private JsonMergePatchUtils(){
         //private constructor to prevent public initialization
     }
 
     public static <T> T mergePatch(T currentDbObject, JsonNode patchNode, Class<T> clazz) {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            JsonNode node = mapper.convertValue(currentDbObject, JsonNode.class);
-            JsonMergePatch mergePatch = JsonMergePatch.fromJson(patchNode);
-            node = mergePatch.apply(node);
-            return mapper.treeToValue(node, clazz);
+            JsonNode node = MAPPER.valueToTree(currentDbObject);
+            node = mergePatch(node, patchNode);
+            return MAPPER.treeToValue(node, clazz);
         }
-        catch (IOException | JsonPatchException e) {
+        catch (IOException | IllegalArgumentException e) {
             log.info("Invalid patch request body: {}", e.getMessage());
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid patch request body");
         }
     }
+
+    /**
+     * Applies an RFC 7386 merge patch to {@code target} in place and returns the result, which is {@code target}
+     * itself unless the patch replaces it. Unlike json-patch's {@code JsonMergePatch} neither the target nor the
+     * patch is copied, so values of the patch end up in the result and neither should be used afterwards.
+     */
+    public static JsonNode mergePatch(JsonNode target, JsonNode patch) {
+        if (!patch.isObject()) {
+            return patch;
+        }
+        ObjectNode result = target != null && target.isObject()
+                ? (ObjectNode) target
+                : JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> members = patch.fields();
+        while (members.hasNext()) {
+            Map.Entry<String, JsonNode> member = members.next();
+            if (member.getValue().isNull()) {
+                result.remove(member.getKey());
+            } else {
+                result.set(member.getKey(), mergePatch(result.get(member.getKey()), member.getValue()));
+            }
+        }
+        return result;
+    }
 }
@@ -0,0 +1,90 @@
+package irish.franklin.springmssqljson;
+
+import irish.franklin.springmssqljson.models.Book;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares rows per second of POST /api/v1/book against POST /api/v1/book/batch.
+ * Run with {@code ./gradlew benchmark}, the amount of books is set with {@code -Dbenchmark.books=}.
+ */
+@Slf4j
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureWebTestClient(timeout = "PT5M")
+class BookBatchInsertBenchmark extends MsSqlTestContainerHelper {
+    private static final int BOOKS = Integer.getInteger("benchmark.books", 5000);
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @BeforeEach
+    void setup() {
+        bookLibraryRepository.deleteAllInBatch();
+    }
+
+    private Book book(int i) {
+        return Book.builder()
+                .name("Benchmark Book " + i)
+                .description("Benchmark Book Description " + i)
+                .language(i % 2 == 0 ? "English" : "Spanish")
+                .build();
+    }
+
+    @Test
+    void singleInsertsVersusBatchInserts() {
+        long start = System.nanoTime();
+        for (int i = 0; i < BOOKS; i++) {
+            webTestClient.post()
+                    .uri("/api/v1/book")
+                    .bodyValue(book(i))
+                    .exchange()
+                    .expectStatus()
+                    .isCreated();
+        }
+        double singleRowsPerSecond = rowsPerSecond(start);
+
+        bookLibraryRepository.deleteAllInBatch();
+        start = System.nanoTime();
+        for (int offset = 0; offset < BOOKS; offset += BATCH_SIZE) {
+            List<Book> batch = new ArrayList<>();
+            for (int i = offset; i < Math.min(offset + BATCH_SIZE, BOOKS); i++) {
+                batch.add(book(i));
+            }
+            webTestClient.post()
+                    .uri("/api/v1/book/batch")
+                    .bodyValue(batch)
+                    .exchange()
+                    .expectStatus()
+                    .isCreated();
+        }
+        double batchRowsPerSecond = rowsPerSecond(start);
+
+        log.info("Inserted {} books: single {} rows/s, batch {} rows/s ({}x)",
+                BOOKS,
+                String.format("%.0f", singleRowsPerSecond),
+                String.format("%.0f", batchRowsPerSecond),
+                String.format("%.1f", batchRowsPerSecond / singleRowsPerSecond));
+        assertThat(bookLibraryRepository.count()).isEqualTo(BOOKS);
+    }
+
+    private static double rowsPerSecond(long startNanos) {
+        return BOOKS / (Duration.ofNanos(System.nanoTime() - startNanos).toMillis() / 1000.0);
+    }
+}
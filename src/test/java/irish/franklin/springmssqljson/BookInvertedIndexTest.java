@@ -0,0 +1,129 @@
+package irish.franklin.springmssqljson;
+
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import irish.franklin.springmssqljson.index.BookInvertedIndex;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.query.BookQueryCompiler;
+import irish.franklin.springmssqljson.query.ResultColumns;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {
+        "book-library.inverted-index.enabled=true",
+        "book-library.inverted-index.refresh-delay=PT1H"
+})
+class BookInvertedIndexTest extends MsSqlTestContainerHelper {
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    BookInvertedIndex bookInvertedIndex;
+
+    @Autowired
+    BookQueryCompiler bookQueryCompiler;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setup() {
+        bookLibraryRepository.deleteAll();
+        saveBook("English Book", "English", "{\"yearPublished\": 2020, \"randomAdditionalProp\": \"randomValue\", \"series\": {\"name\": \"First\", \"volume\": 1}}");
+        saveBook("English Book", "English", "{\"yearPublished\": 2019, \"randomAdditionalProp\": \"RandomValue \", \"rating\": 4.5}");
+        saveBook("Spanish Book", "Spanish", "{\"yearPublished\": 2020, \"randomAdditionalProp\": \"otherValue\", \"series\": {\"name\": \"First\", \"volume\": \"1\"}}");
+        saveBook("Untranslated Book", null, null);
+        bookInvertedIndex.build();
+        bookInvertedIndex.refresh();
+    }
+
+    private void saveBook(String name, String language, String additionalProperties) {
+        bookLibraryRepository.save(BookJson.builder()
+                .book(Book.builder()
+                        .name(name)
+                        .description(name + " Description")
+                        .language(language)
+                        .additionalProperties(additionalProperties == null ? null : JacksonUtil.toJsonNode(additionalProperties))
+                        .build())
+                .build());
+    }
+
+    private List<Integer> findIds(Map<String, String> queryParams) {
+        return bookLibraryRepository.findRawBooks(BookQuery.fromQueryParams(queryParams)).stream()
+                .map(book -> book.getId())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private List<Integer> scanIds(String fieldName, String fieldValue) {
+        return jdbcTemplate.queryForList(
+                "SELECT id FROM BOOK_LIBRARY_DOCUMENTS WHERE JSON_VALUE(book, ?) = ? ORDER BY id",
+                Integer.class,
+                "$." + fieldName,
+                fieldValue);
+    }
+
+    @Test
+    void shouldResolveAdditionalPropertiesFiltersToTheSameBooksAsAScan() {
+        Map<String, String> filters = new HashMap<>();
+        filters.put("additionalProperties.randomAdditionalProp", "randomValue");
+        filters.put("additionalProperties.series.volume", "1");
+        filters.put("additionalProperties.series.name", "first");
+        filters.put("additionalProperties.missing", "anything");
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            Map<String, String> queryParams = Collections.singletonMap(filter.getKey(), filter.getValue());
+            assertThat(bookQueryCompiler.compile(BookQuery.fromQueryParams(queryParams), ResultColumns.RAW_JSON).getSql())
+                    .contains("OPENJSON(:indexedIds)");
+            assertThat(findIds(queryParams))
+                    .as(filter.getKey())
+                    .isEqualTo(scanIds(filter.getKey(), filter.getValue()));
+        }
+
+        Map<String, String> twoFilters = new HashMap<>();
+        // yearPublished has an indexed path column, the index only resolves the series name
+        twoFilters.put("additionalProperties.yearPublished", "2020");
+        twoFilters.put("additionalProperties.series.name", "First");
+        assertThat(findIds(twoFilters)).hasSize(2);
+        assertThat(bookInvertedIndex.verify(100).isConsistent()).isTrue();
+    }
+
+    @Test
+    void shouldScanForFiltersTheIndexCannotResolve() {
+        assertThat(bookQueryCompiler.compile(BookQuery.fromQueryParams(Collections.singletonMap("additionalProperties.rating", "4.5")),
+                ResultColumns.RAW_JSON).getSql()).doesNotContain("indexedIds");
+        assertThat(findIds(Collections.singletonMap("additionalProperties.rating", "4.5"))).hasSize(1);
+        assertThat(bookQueryCompiler.compile(BookQuery.fromQueryParams(Collections.singletonMap("additionalProperties.yearPublished:gte:number", "2020")),
+                ResultColumns.RAW_JSON).getSql()).doesNotContain("indexedIds");
+    }
+
+    @Test
+    void shouldFindWrittenBooksBeforeAndAfterTheRefreshAndReportWritesWithoutEvents() {
+        Map<String, String> queryParams = Collections.singletonMap("additionalProperties.randomAdditionalProp", "newValue");
+        saveBook("New Book", "French", "{\"randomAdditionalProp\": \"newValue\"}");
+        Integer patchedId = findIds(Collections.singletonMap("additionalProperties.randomAdditionalProp", "otherValue")).get(0);
+        jdbcTemplate.update("UPDATE BOOK_LIBRARY SET book = JSON_MODIFY(book, '$.additionalProperties.randomAdditionalProp', 'newValue') WHERE id = ?", patchedId);
+        bookLibraryRepository.deleteById(findIds(Collections.singletonMap("additionalProperties.yearPublished", "2019")).get(0));
+        // the native update publishes no event, so the index never reads the patched book again
+        List<Integer> beforeRefresh = findIds(queryParams);
+
+        assertThat(bookInvertedIndex.refresh()).isEqualTo(2);
+
+        assertThat(beforeRefresh).hasSize(1);
+        assertThat(findIds(queryParams)).isEqualTo(beforeRefresh);
+        assertThat(findIds(Collections.singletonMap("additionalProperties.yearPublished", "2019"))).isEmpty();
+        assertThat(bookInvertedIndex.verify(100).getMissingBooks()).isEqualTo(1);
+    }
+}
@@ -2,8 +2,12 @@ package irish.franklin.springmssqljson;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.changes.TombstonePruner;
 import irish.franklin.springmssqljson.models.Book;
 import irish.franklin.springmssqljson.models.BookJson;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
@@ -11,10 +15,17 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
 import org.springframework.test.web.reactive.server.WebTestClient;
 
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 @AutoConfigureWebTestClient
 class BookLibraryControllerTest extends MsSqlTestContainerHelper {
@@ -36,6 +47,12 @@ class BookLibraryControllerTest extends MsSqlTestContainerHelper {
     @Autowired
     private WebTestClient webTestClient;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private TombstonePruner tombstonePruner;
+
     public BookJson saveBook(Book book){
         try{
             BookJson bookJson = BookJson.builder()
@@ -69,6 +86,167 @@ class BookLibraryControllerTest extends MsSqlTestContainerHelper {
             .contains(savedSpanishBookJson.getBook());
     }
 
+    @Test
+    void shouldReturnNextCursorWhenThereAreMoreBooksThanTheLimit(){
+        BookJson savedEnglishBookJson = saveBook(englishBook);
+        BookJson savedSpanishBookJson = saveBook(spanishBook);
+
+        String nextCursor = webTestClient
+            .get()
+            .uri("/api/v1/book?limit=1")
+            .exchange()
+            .expectStatus()
+            .isOk()
+            .expectHeader()
+            .valueEquals(BookController.NEXT_CURSOR_HEADER, savedEnglishBookJson.getId().toString())
+            .expectBodyList(Book.class)
+            .containsExactly(savedEnglishBookJson.getBook())
+            .returnResult()
+            .getResponseHeaders()
+            .getFirst(BookController.NEXT_CURSOR_HEADER);
+
+        webTestClient
+            .get()
+            .uri("/api/v1/book?limit=1&after=" + nextCursor)
+            .exchange()
+            .expectStatus()
+            .isOk()
+            .expectHeader()
+            .doesNotExist(BookController.NEXT_CURSOR_HEADER)
+            .expectBodyList(Book.class)
+            .containsExactly(savedSpanishBookJson.getBook());
+    }
+
+    @Test
+    void shouldReturn400StatusWhenLimitIsInvalid(){
+        webTestClient
+            .get()
+            .uri("/api/v1/book?limit=0")
+            .exchange()
+            .expectStatus()
+            .isBadRequest();
+    }
+
+    @Test
+    void shouldStreamBooksAsNdjson(){
+        BookJson savedEnglishBookJson = saveBook(englishBook);
+        BookJson savedSpanishBookJson = saveBook(spanishBook);
+
+        webTestClient
+            .get()
+            .uri("/api/v1/book")
+            .accept(MediaType.valueOf(BookController.NDJSON))
+            .exchange()
+            .expectStatus()
+            .isOk()
+            .expectBodyList(Book.class)
+            .hasSize(2)
+            .contains(savedEnglishBookJson.getBook())
+            .contains(savedSpanishBookJson.getBook());
+    }
+
+    @Test
+    void shouldStreamOnlyTheBooksChangedSinceTheChangeToken() throws JSONException {
+        BookJson unchangedBook = saveBook(englishBook);
+        BookJson patchedBook = saveBook(spanishBook);
+        BookJson deletedBook = saveBook(englishBook);
+
+        EntityExchangeResult<String> allBooks = changesSince(null);
+        assertThat(changeLines(allBooks)).hasSize(3);
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + patchedBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue("{\"language\": \"Spanish\"}")
+                .exchange()
+                .expectStatus()
+                .isOk();
+        webTestClient.delete()
+                .uri("/api/v1/book/" + deletedBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk();
+        BookJson createdBook = saveBook(spanishBook);
+
+        EntityExchangeResult<String> changes = changesSince(allBooks.getResponseHeaders().getFirst(BookController.CHANGE_TOKEN_HEADER));
+        JSONObject[] changeLines = changeLines(changes);
+        assertThat(changeLines).hasSize(3);
+        assertThat(changeLines[0].getInt("id")).isEqualTo(patchedBook.getId());
+        assertThat(changeLines[0].getString("language")).isEqualTo("Spanish");
+        assertThat(changeLines[1].getInt("id")).isEqualTo(deletedBook.getId());
+        assertThat(changeLines[1].getBoolean("deleted")).isTrue();
+        assertThat(changeLines[2].getInt("id")).isEqualTo(createdBook.getId());
+        assertThat(Arrays.stream(changeLines)).noneMatch(change -> change.optInt("id") == unchangedBook.getId());
+
+        assertThat(changeLines(changesSince(changes.getResponseHeaders().getFirst(BookController.CHANGE_TOKEN_HEADER)))).isEmpty();
+    }
+
+    @Test
+    void shouldReturn410StatusWhenDeletesSinceTheChangeTokenWerePruned() {
+        String token = changesSince(null).getResponseHeaders().getFirst(BookController.CHANGE_TOKEN_HEADER);
+        webTestClient.delete()
+                .uri("/api/v1/book/" + saveBook(englishBook).getId())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        tombstonePruner.prune(Duration.ZERO);
+
+        webTestClient.get()
+                .uri("/api/v1/book/changes?since=" + token)
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.GONE);
+        webTestClient.get()
+                .uri("/api/v1/book/changes?since=not-a-token")
+                .exchange()
+                .expectStatus()
+                .isBadRequest();
+    }
+
+    @Test
+    void shouldStreamAllBooksWithoutAChangeTokenAfterTombstonesWerePruned() throws JSONException {
+        BookJson keptBook = saveBook(englishBook);
+        webTestClient.delete()
+                .uri("/api/v1/book/" + saveBook(spanishBook).getId())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        tombstonePruner.prune(Duration.ZERO);
+
+        EntityExchangeResult<String> allBooks = changesSince(null);
+        JSONObject[] changeLines = changeLines(allBooks);
+        assertThat(changeLines).hasSize(1);
+        assertThat(changeLines[0].getInt("id")).isEqualTo(keptBook.getId());
+        assertThat(changeLines(changesSince(allBooks.getResponseHeaders().getFirst(BookController.CHANGE_TOKEN_HEADER)))).isEmpty();
+    }
+
+    private EntityExchangeResult<String> changesSince(String token) {
+        return webTestClient.get()
+                .uri(token == null ? "/api/v1/book/changes" : "/api/v1/book/changes?since=" + token)
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectHeader()
+                .exists(BookController.CHANGE_TOKEN_HEADER)
+                .expectBody(String.class)
+                .returnResult();
+    }
+
+    private static JSONObject[] changeLines(EntityExchangeResult<String> changes) throws JSONException {
+        String body = changes.getResponseBody();
+        if (body == null || body.isEmpty()) {
+            return new JSONObject[0];
+        }
+        String[] lines = body.split("\n");
+        JSONObject[] changeLines = new JSONObject[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            changeLines[i] = new JSONObject(lines[i]);
+        }
+        return changeLines;
+    }
+
     @Test
     void shouldCreateNewBookAndReturn201Status() {
         webTestClient.post()
@@ -79,6 +257,46 @@ class BookLibraryControllerTest extends MsSqlTestContainerHelper {
                 .isCreated();
     }
 
+    @Test
+    void shouldCreateBatchOfBooksAndReturn201Status() {
+        webTestClient.post()
+                .uri("/api/v1/book/batch")
+                .bodyValue(Arrays.asList(englishBook, spanishBook))
+                .exchange()
+                .expectStatus()
+                .isCreated()
+                .expectBody()
+                .jsonPath("$[0].status").isEqualTo(201)
+                .jsonPath("$[0].book.id").isNumber()
+                .jsonPath("$[0].book.name").isEqualTo(englishBook.getName())
+                .jsonPath("$[1].status").isEqualTo(201)
+                .jsonPath("$[1].book.name").isEqualTo(spanishBook.getName());
+
+        assertThat(bookLibraryRepository.count()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldReturnPerItemStatusWhenSomeBooksInBatchAreInvalid() {
+        Book bookWithId = Book.builder()
+                .id(100)
+                .name("Book")
+                .description("Book description")
+                .build();
+
+        webTestClient.post()
+                .uri("/api/v1/book/batch")
+                .bodyValue(Arrays.asList(englishBook, bookWithId))
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.MULTI_STATUS)
+                .expectBody()
+                .jsonPath("$[0].status").isEqualTo(201)
+                .jsonPath("$[1].status").isEqualTo(400)
+                .jsonPath("$[1].error").isEqualTo("Book Ids are auto generated");
+
+        assertThat(bookLibraryRepository.count()).isEqualTo(1);
+    }
+
     @Test
     void shouldReturn400StatusWhenAttemptingToCreateABookWithAnIdInRequestBody() {
         Book bookWithId = Book.builder()
@@ -182,14 +400,238 @@ class BookLibraryControllerTest extends MsSqlTestContainerHelper {
     }
 
     @Test
-    void shouldThrowBadRequestWhenFindBooksByDynamicJsonWithThreeQueryParams() {
+    void shouldFindAllBooksByThreeJsonPropertiesAnd200Status() throws JSONException {
+        JSONObject additionalProperties = new JSONObject();
+        additionalProperties.put("yearPublished", 2019);
+        additionalProperties.put("randomAdditionalProp", "RandomValue");
+        Book bookWithAdditionalProps = Book.builder()
+                .name("TestBook")
+                .description("Test Json Book Description")
+                .additionalProperties(JacksonUtil.toJsonNode(additionalProperties.toString()))
+                .build();
+        BookJson savedBookWithAdditionalProps = saveBook(bookWithAdditionalProps);
+        BookJson savedEnglishBook = saveBook(englishBook);
+
+        webTestClient.get()
+                .uri("/api/v1/book?additionalProperties.yearPublished=2019&additionalProperties.randomAdditionalProp=RandomValue&name=TestBook")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBodyList(Book.class)
+                .hasSize(1)
+                .contains(savedBookWithAdditionalProps.getBook())
+                .doesNotContain(savedEnglishBook.getBook());
+    }
+
+    @Test
+    void shouldOnlyReturnProjectedFieldsOfFilteredBooks() throws JSONException {
+        JSONObject additionalProperties = new JSONObject();
+        additionalProperties.put("yearPublished", 2020);
+        additionalProperties.put("randomAdditionalProp", "Random \"quoted\" value");
+        additionalProperties.put("nested", new JSONObject().put("inStock", true));
+        BookJson savedBook = saveBook(Book.builder()
+                .name("Projected Book")
+                .description("Test Json Book Description")
+                .language("English")
+                .additionalProperties(JacksonUtil.toJsonNode(additionalProperties.toString()))
+                .build());
+        saveBook(spanishBook);
+
+        webTestClient.get()
+                .uri("/api/v1/book?language=English&fields=name,additionalProperties.yearPublished,"
+                        + "additionalProperties.randomAdditionalProp,additionalProperties.nested,author")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(1)
+                .jsonPath("$[0].id").isEqualTo(savedBook.getId())
+                .jsonPath("$[0].name").isEqualTo("Projected Book")
+                .jsonPath("$[0].additionalProperties.yearPublished").isEqualTo(2020)
+                .jsonPath("$[0].additionalProperties.randomAdditionalProp").isEqualTo("Random \"quoted\" value")
+                .jsonPath("$[0].additionalProperties.nested.inStock").isEqualTo(true)
+                .jsonPath("$[0].description").doesNotExist()
+                .jsonPath("$[0].language").doesNotExist()
+                .jsonPath("$[0].author").doesNotExist();
+    }
+
+    @Test
+    void shouldOnlyReturnProjectedFieldsOfBookById() {
+        BookJson savedEnglishBook = saveBook(englishBook);
+
+        String projectedETag = webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId() + "?fields=language,additionalProperties.yearPublished")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.id").isEqualTo(savedEnglishBook.getId())
+                .jsonPath("$.language").isEqualTo("English")
+                .jsonPath("$.name").doesNotExist()
+                .jsonPath("$.additionalProperties").doesNotExist()
+                .returnResult()
+                .getResponseHeaders()
+                .getETag();
+
+        String eTag = webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .returnResult(String.class)
+                .getResponseHeaders()
+                .getETag();
+        assertThat(projectedETag).isNotEqualTo(eTag);
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId() + "?fields=language,additionalProperties.yearPublished")
+                .header(HttpHeaders.IF_NONE_MATCH, projectedETag)
+                .exchange()
+                .expectStatus()
+                .isNotModified();
+    }
+
+    @Test
+    void shouldThrowBadRequestWhenProjectingAnInvalidJsonPath() {
+        webTestClient.get()
+                .uri("/api/v1/book?fields=name,')")
+                .exchange()
+                .expectStatus()
+                .isBadRequest();
+    }
+
+    @Test
+    void shouldCountBooksPerGroupInTheDatabase() {
+        saveBook(englishBook);
+        saveBook(englishBook);
+        saveBook(spanishBook);
+
+        webTestClient.get()
+                .uri("/api/v1/book/aggregate?groupBy=language")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .json("[{\"key\": null, \"value\": 1}, {\"key\": \"English\", \"value\": 2}]");
+    }
+
+    @Test
+    void shouldAggregateUnindexedGroupsOfFilteredBooks() throws JSONException {
+        for (int yearPublished = 2018; yearPublished <= 2021; yearPublished++) {
+            JSONObject additionalProperties = new JSONObject();
+            additionalProperties.put("yearPublished", yearPublished);
+            additionalProperties.put("genre", yearPublished % 2 == 0 ? "Fiction" : "History");
+            saveBook(Book.builder()
+                    .name("Test Book")
+                    .description("Test Json Book Description")
+                    .additionalProperties(JacksonUtil.toJsonNode(additionalProperties.toString()))
+                    .build());
+        }
+
+        webTestClient.get()
+                .uri("/api/v1/book/aggregate?groupBy=additionalProperties.genre&metric=sum(additionalProperties.yearPublished)"
+                        + "&additionalProperties.yearPublished:gte:number=2019")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .json("[{\"key\": \"Fiction\", \"value\": 2020}, {\"key\": \"History\", \"value\": 4040}]");
+
+        webTestClient.get()
+                .uri("/api/v1/book/aggregate?groupBy=additionalProperties.genre&metric=max(additionalProperties.yearPublished)")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .json("[{\"key\": \"Fiction\", \"value\": 2020}, {\"key\": \"History\", \"value\": 2021}]");
+    }
+
+    @Test
+    void shouldReturn400StatusWhenAggregationIsInvalidOrHasTooManyGroups() {
+        saveBook(englishBook);
+        saveBook(spanishBook);
+
         webTestClient.get()
-                .uri("/api/v1/book?additionalProperties.yearPublished=random&additionalProperties.randomAdditionalProp=RandomValue&name=TestBook")
+                .uri("/api/v1/book/aggregate?metric=count")
+                .exchange()
+                .expectStatus()
+                .isBadRequest();
+        webTestClient.get()
+                .uri("/api/v1/book/aggregate?groupBy=language&metric=sum")
+                .exchange()
+                .expectStatus()
+                .isBadRequest();
+        webTestClient.get()
+                .uri("/api/v1/book/aggregate?groupBy=language&limit=1")
                 .exchange()
                 .expectStatus()
                 .isBadRequest();
     }
 
+    @Test
+    void shouldThrowBadRequestWhenFindBooksByInvalidJsonPath() {
+        webTestClient.get()
+                .uri("/api/v1/book?name') = name OR 1=1 --=TestBook")
+                .exchange()
+                .expectStatus()
+                .isBadRequest();
+    }
+
+    @Test
+    void shouldThrowBadRequestWhenFindBooksByUnknownOperator() {
+        webTestClient.get()
+                .uri("/api/v1/book?name:like=Test")
+                .exchange()
+                .expectStatus()
+                .isBadRequest();
+    }
+
+    @Test
+    void shouldTimeRepositoryCallsByQueryShapeWithoutValues(){
+        saveBook(englishBook);
+
+        webTestClient.get()
+                .uri("/api/v1/book?language=English&name:ne=Other Book")
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        assertThat(meterRegistry.find("book.repository.calls")
+                .tags("method", "findRawBooks", "shape", "language:eq,name:ne")
+                .timer())
+                .isNotNull();
+        DistributionSummary rows = meterRegistry.find("book.repository.rows")
+                .tags("method", "findRawBooks", "shape", "language:eq,name:ne")
+                .summary();
+        assertThat(rows).isNotNull();
+        assertThat(rows.max()).isEqualTo(1);
+        assertThat(meterRegistry.find("book.repository.calls").tagKeys("shape").timers())
+                .allSatisfy(timer -> assertThat(timer.getId().getTag("shape")).doesNotContain("English"));
+    }
+
+    @Test
+    void shouldCountJdbcStatementsPerRequest() throws JSONException {
+        BookJson savedEnglishBook = saveBook(englishBook);
+        double statementsBefore = patchStatements().totalAmount();
+        long patchesBefore = patchStatements().count();
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue(new JSONObject().put("language", "French").toString())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        // the merge patch is applied by a single UPDATE
+        assertThat(patchStatements().count()).isEqualTo(patchesBefore + 1);
+        assertThat(patchStatements().totalAmount()).isEqualTo(statementsBefore + 1);
+    }
+
+    private DistributionSummary patchStatements() {
+        return meterRegistry.summary("http.server.requests.jdbc.statements", "method", "PATCH", "uri", "/api/v1/book/{id}");
+    }
+
     @Test
     void shouldGetBookByValidId(){
         BookJson savedEnglishBook = saveBook(englishBook);
@@ -203,6 +645,82 @@ class BookLibraryControllerTest extends MsSqlTestContainerHelper {
                 .isEqualTo(savedEnglishBook.getBook());
     }
 
+    @Test
+    void shouldReturn304WhenBookHasNotChangedSinceItsETag() throws JSONException {
+        BookJson savedEnglishBook = saveBook(englishBook);
+
+        String eTag = webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .returnResult(String.class)
+                .getResponseHeaders()
+                .getETag();
+        assertThat(eTag).isNotNull();
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus()
+                .isNotModified()
+                .expectBody()
+                .isEmpty();
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue(new JSONObject().put("language", "French").toString())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectHeader()
+                .value(HttpHeaders.ETAG, newETag -> assertThat(newETag).isNotEqualTo(eTag))
+                .expectBody()
+                .jsonPath("$.language").isEqualTo("French");
+    }
+
+    @Test
+    void shouldReturn304WhenSearchResultsHaveNotChangedSinceTheirETag(){
+        saveBook(englishBook);
+        saveBook(spanishBook);
+
+        String eTag = webTestClient.get()
+                .uri("/api/v1/book?language=English")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .returnResult(String.class)
+                .getResponseHeaders()
+                .getETag();
+
+        webTestClient.get()
+                .uri("/api/v1/book?language=English")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus()
+                .isNotModified();
+
+        saveBook(Book.builder().name("Another English Book").description("Another Description").language("English").build());
+
+        webTestClient.get()
+                .uri("/api/v1/book?language=English")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBodyList(Book.class)
+                .hasSize(2);
+    }
+
     @Test
     void shouldReturn404StatusWhenFindBookByIdIsNotInDb(){
         webTestClient.get()
@@ -250,6 +768,142 @@ class BookLibraryControllerTest extends MsSqlTestContainerHelper {
                 .jsonPath("$.name").isEqualTo(englishBook.getName());
     }
 
+    @Test
+    void shouldMergeNestedAdditionalPropertiesAndRemoveNullMembers() throws JSONException {
+        JSONObject additionalProperties = new JSONObject();
+        additionalProperties.put("yearPublished", 2020);
+        additionalProperties.put("randomAdditionalProp", "randomValue");
+        BookJson savedBook = saveBook(Book.builder()
+                .name("Test Book")
+                .description("Test Json Book Description")
+                .language("English")
+                .additionalProperties(JacksonUtil.toJsonNode(additionalProperties.toString()))
+                .build());
+
+        JSONObject additionalPropertiesPatch = new JSONObject();
+        additionalPropertiesPatch
+                .put("yearPublished", 2021)
+                .put("randomAdditionalProp", JSONObject.NULL)
+                .put("tags", new JSONArray().put("fiction").put("classic"))
+                .put("inPrint", true);
+        JSONObject updateBookProperties = new JSONObject();
+        updateBookProperties
+                .put("language", JSONObject.NULL)
+                .put("additionalProperties", additionalPropertiesPatch);
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue(updateBookProperties.toString())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.id").isEqualTo(savedBook.getId())
+                .jsonPath("$.name").isEqualTo("Test Book")
+                .jsonPath("$.language").doesNotExist()
+                .jsonPath("$.additionalProperties.yearPublished").isEqualTo(2021)
+                .jsonPath("$.additionalProperties.randomAdditionalProp").doesNotExist()
+                .jsonPath("$.additionalProperties.tags[1]").isEqualTo("classic")
+                .jsonPath("$.additionalProperties.inPrint").isEqualTo(true);
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.additionalProperties.yearPublished").isEqualTo(2021);
+    }
+
+    @Test
+    void shouldReplaceMissingNestedObjectWithoutNullMembers() throws JSONException {
+        BookJson savedEnglishBook = saveBook(englishBook);
+
+        JSONObject updateBookProperties = new JSONObject();
+        updateBookProperties.put("additionalProperties", new JSONObject()
+                .put("yearPublished", 2021)
+                .put("randomAdditionalProp", JSONObject.NULL));
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue(updateBookProperties.toString())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.additionalProperties.yearPublished").isEqualTo(2021)
+                .jsonPath("$.additionalProperties.randomAdditionalProp").doesNotExist();
+    }
+
+    @Test
+    void shouldReturn400StatusWhenPatchRemovesRequiredProperty() throws JSONException {
+        BookJson savedEnglishBook = saveBook(englishBook);
+
+        JSONObject updateBookProperties = new JSONObject();
+        updateBookProperties.put("name", JSONObject.NULL);
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue(updateBookProperties.toString())
+                .exchange()
+                .expectStatus()
+                .isBadRequest();
+    }
+
+    @Test
+    void shouldNotServeCachedBooksAfterTheyChanged() throws JSONException {
+        BookJson savedEnglishBook = saveBook(englishBook);
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .expectBody()
+                .jsonPath("$.language").isEqualTo("English");
+        webTestClient.get()
+                .uri("/api/v1/book?language=French")
+                .exchange()
+                .expectBodyList(Book.class)
+                .hasSize(0);
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue(new JSONObject().put("language", "French").toString())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .expectBody()
+                .jsonPath("$.language").isEqualTo("French");
+        webTestClient.get()
+                .uri("/api/v1/book?language=French")
+                .exchange()
+                .expectBodyList(Book.class)
+                .hasSize(1);
+
+        webTestClient.delete()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .expectStatus()
+                .isNotFound();
+        webTestClient.get()
+                .uri("/api/v1/book?language=French")
+                .exchange()
+                .expectBodyList(Book.class)
+                .hasSize(0);
+    }
+
     @Test
     void shouldThrowBadRequestWhenAttemptingToUpdateId() throws JSONException {
         BookJson savedEnglishBook = saveBook(englishBook);
@@ -294,6 +948,73 @@ class BookLibraryControllerTest extends MsSqlTestContainerHelper {
                 .isOk();
     }
 
+    @Test
+    void shouldOnlyPatchBookWhenIfMatchHasItsCurrentETag() throws JSONException {
+        BookJson savedEnglishBook = saveBook(englishBook);
+        String eTag = webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .returnResult(String.class)
+                .getResponseHeaders()
+                .getETag();
+
+        String newETag = webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .header(HttpHeaders.IF_MATCH, eTag)
+                .bodyValue(new JSONObject().put("language", "French").toString())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .returnResult(String.class)
+                .getResponseHeaders()
+                .getETag();
+        assertThat(newETag).isNotEqualTo(eTag);
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .header(HttpHeaders.IF_MATCH, eTag)
+                .bodyValue(new JSONObject().put("language", "German").toString())
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.PRECONDITION_FAILED);
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .expectBody()
+                .jsonPath("$.language").isEqualTo("French");
+    }
+
+    @Test
+    void deleteBookWithStaleETagReturns412() throws JSONException {
+        BookJson savedEnglishBook = saveBook(englishBook);
+        String eTag = webTestClient.get()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .exchange()
+                .returnResult(String.class)
+                .getResponseHeaders()
+                .getETag();
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .bodyValue(new JSONObject().put("language", "French").toString())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        webTestClient.delete()
+                .uri("/api/v1/book/" + savedEnglishBook.getId())
+                .header(HttpHeaders.IF_MATCH, eTag)
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.PRECONDITION_FAILED);
+
+        assertThat(bookLibraryRepository.existsById(savedEnglishBook.getId())).isTrue();
+    }
+
     @Test
     void deleteBookWithNoBookIdReturns405() {
         webTestClient.delete()
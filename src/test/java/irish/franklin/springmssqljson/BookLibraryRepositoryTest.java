@@ -0,0 +1,161 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.storage.BookStorageCodec;
+import irish.franklin.springmssqljson.storage.BookStorageMigration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+class BookLibraryRepositoryTest extends MsSqlTestContainerHelper {
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    BookStorageMigration bookStorageMigration;
+
+    @BeforeEach
+    void setup(){
+        bookLibraryRepository.deleteAll();
+        saveBook("English Book", "English", "{\"yearPublished\": 2020, \"randomAdditionalProp\": \"randomValue\"}");
+        saveBook("English Book", "English", "{\"yearPublished\": 2019, \"randomAdditionalProp\": \"randomValue\"}");
+        saveBook("Spanish Book", "Spanish", "{\"yearPublished\": 2020, \"randomAdditionalProp\": \"otherValue\"}");
+        saveBook("Untranslated Book", null, null);
+    }
+
+    private void saveBook(String name, String language, String additionalProperties) {
+        Book book = Book.builder()
+                .name(name)
+                .description(name + " Description")
+                .language(language)
+                .additionalProperties(additionalProperties == null ? null : JacksonUtil.toJsonNode(additionalProperties))
+                .build();
+        bookLibraryRepository.save(BookJson.builder().book(book).build());
+    }
+
+    private List<Integer> scanIds(String fieldName, String fieldValue) {
+        return jdbcTemplate.queryForList(
+                "SELECT id FROM BOOK_LIBRARY_DOCUMENTS WHERE JSON_VALUE(book, ?) = ? ORDER BY id",
+                Integer.class,
+                "$." + fieldName,
+                fieldValue);
+    }
+
+    private List<BookJson> findBooks(String fieldName, String fieldValue) {
+        return bookLibraryRepository.findBooks(BookQuery.fromQueryParams(Collections.singletonMap(fieldName, fieldValue)));
+    }
+
+    private List<Integer> ids(List<BookJson> books) {
+        return books.stream()
+                .map(BookJson::getId)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void shouldCreateComputedColumnAndIndexForEachRegisteredPath() {
+        Integer indexCount = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM sys.indexes i"
+                        + " JOIN sys.index_columns ic ON ic.object_id = i.object_id AND ic.index_id = i.index_id"
+                        + " JOIN sys.computed_columns c ON c.object_id = ic.object_id AND c.column_id = ic.column_id"
+                        + " WHERE i.object_id = OBJECT_ID('BOOK_LIBRARY') AND c.is_persisted = 1",
+                Integer.class);
+
+        assertThat(indexCount).isEqualTo(4);
+    }
+
+    @Test
+    void shouldReturnSameBooksForRegisteredPathsAsJsonValueScan() {
+        assertThat(ids(findBooks("language", "English")))
+                .hasSize(2)
+                .isEqualTo(scanIds("language", "English"));
+        assertThat(ids(findBooks("name", "Spanish Book")))
+                .hasSize(1)
+                .isEqualTo(scanIds("name", "Spanish Book"));
+        assertThat(ids(findBooks("additionalProperties.yearPublished", "2020")))
+                .hasSize(2)
+                .isEqualTo(scanIds("additionalProperties.yearPublished", "2020"));
+        assertThat(findBooks("language", "French")).isEmpty();
+    }
+
+    @Test
+    void shouldCombineRegisteredAndUnregisteredPaths() {
+        Map<String, String> queryParams = new HashMap<>();
+        queryParams.put("language", "English");
+        queryParams.put("additionalProperties.randomAdditionalProp", "randomValue");
+        List<BookJson> books = bookLibraryRepository.findBooks(BookQuery.fromQueryParams(queryParams));
+
+        assertThat(books).hasSize(2);
+        assertThat(books).allMatch(book -> "English".equals(book.getBook().getLanguage()));
+    }
+
+    @Test
+    void shouldSupportInNotEqualAndTypedRangeFilters() {
+        Map<String, String> queryParams = new HashMap<>();
+        queryParams.put("language:in", "English,Spanish,French");
+        queryParams.put("additionalProperties.yearPublished:gte:number", "2020");
+        queryParams.put("name:ne", "Spanish Book");
+
+        List<BookJson> books = bookLibraryRepository.findBooks(BookQuery.fromQueryParams(queryParams));
+
+        assertThat(books).hasSize(1);
+        assertThat(books.get(0).getBook().getLanguage()).isEqualTo("English");
+        assertThat(books.get(0).getBook().getAdditionalProperties().get("yearPublished").asInt()).isEqualTo(2020);
+    }
+
+    @Test
+    void shouldReturnStoredJsonWithIdSplicedIn() throws Exception {
+        BookJson saved = bookLibraryRepository.findBooks(BookQuery.fromQueryParams(Collections.singletonMap("name", "Spanish Book"))).get(0);
+
+        RawBook rawBook = bookLibraryRepository.findRawBookById(saved.getId()).orElseThrow(AssertionError::new);
+
+        assertThat(rawBook.getId()).isEqualTo(saved.getId());
+        assertThat(objectMapper.readValue(rawBook.getJson(), Book.class)).isEqualTo(saved.getBook());
+        assertThat(bookLibraryRepository.findRawBookById(-100)).isEmpty();
+    }
+
+    @Test
+    void shouldReadAndSearchGzipStoredBooksLikeTextStoredBooks() throws Exception {
+        List<BookJson> before = bookLibraryRepository.findAll();
+        List<Integer> english = ids(findBooks("language", "English"));
+        List<Integer> randomValue = ids(findBooks("additionalProperties.randomAdditionalProp", "randomValue"));
+
+        assertThat(bookStorageMigration.migrate(BookStorageCodec.GZIP)).isEqualTo(4);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM BOOK_LIBRARY WHERE book_codec = 1", Integer.class)).isEqualTo(4);
+
+        assertThat(bookLibraryRepository.findAll()).containsExactlyInAnyOrderElementsOf(before);
+        assertThat(ids(findBooks("language", "English"))).isEqualTo(english);
+        assertThat(ids(findBooks("additionalProperties.randomAdditionalProp", "randomValue"))).isEqualTo(randomValue);
+        for (BookJson book : before) {
+            RawBook rawBook = bookLibraryRepository.findRawBookById(book.getId()).orElseThrow(AssertionError::new);
+            assertThat(objectMapper.readValue(rawBook.getJson(), Book.class)).isEqualTo(book.getBook());
+        }
+
+        assertThat(bookStorageMigration.migrate(BookStorageCodec.TEXT)).isEqualTo(4);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM BOOK_LIBRARY WHERE book_gz IS NOT NULL", Integer.class)).isZero();
+        assertThat(bookLibraryRepository.findAll()).containsExactlyInAnyOrderElementsOf(before);
+    }
+}
@@ -0,0 +1,100 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.query.BookStatements;
+import irish.franklin.springmssqljson.storage.BookStorageCodec;
+import irish.franklin.springmssqljson.storage.BookStorageMigration;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares bytes per row and rows per second read through the documents view for each server-side storage codec.
+ * Run with {@code ./gradlew benchmark}, the amount of books is set with {@code -Dbenchmark.books=} and their size
+ * with {@code -Dbenchmark.additionalProperties=}.
+ */
+@Slf4j
+@Tag("benchmark")
+@SpringBootTest
+class BookStorageCodecBenchmark extends MsSqlTestContainerHelper {
+    private static final int BOOKS = Integer.getInteger("benchmark.books", 5000);
+    private static final int ADDITIONAL_PROPERTIES = Integer.getInteger("benchmark.additionalProperties", 100);
+    private static final int READS = 5;
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    BookStorageMigration bookStorageMigration;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setup() {
+        bookLibraryRepository.deleteAllInBatch();
+        List<BookJson> books = new ArrayList<>();
+        for (int i = 0; i < BOOKS; i++) {
+            books.add(BookJson.builder().book(book(i)).build());
+        }
+        bookLibraryRepository.saveAll(books);
+    }
+
+    private Book book(int i) {
+        ObjectNode properties = JsonNodeFactory.instance.objectNode();
+        for (int property = 0; property < ADDITIONAL_PROPERTIES; property++) {
+            properties.put("property" + property, "value " + (i + property) % 10);
+        }
+        return Book.builder()
+                .name("Benchmark Book " + i)
+                .description("Benchmark Book Description " + i)
+                .language(i % 2 == 0 ? "English" : "Spanish")
+                .additionalProperties(properties)
+                .build();
+    }
+
+    @Test
+    void textVersusGzip() {
+        measure(BookStorageCodec.TEXT);
+        bookStorageMigration.migrate(BookStorageCodec.GZIP);
+        measure(BookStorageCodec.GZIP);
+        bookStorageMigration.migrate(BookStorageCodec.TEXT);
+    }
+
+    private void measure(BookStorageCodec codec) {
+        Double bytesPerRow = jdbcTemplate.queryForObject(
+                "SELECT AVG(CAST(ISNULL(DATALENGTH(book), 0) + ISNULL(DATALENGTH(book_gz), 0) AS FLOAT)) FROM BOOK_LIBRARY",
+                Double.class);
+
+        long start = System.nanoTime();
+        long characters = 0;
+        for (int i = 0; i < READS; i++) {
+            characters += jdbcTemplate.queryForList("SELECT book FROM " + BookStatements.DOCUMENTS_VIEW, String.class)
+                    .stream()
+                    .mapToLong(String::length)
+                    .sum();
+        }
+        double rowsPerSecond = READS * BOOKS / (Duration.ofNanos(System.nanoTime() - start).toMillis() / 1000.0);
+
+        log.info("{} books with {} additionalProperties stored as {}: {} bytes/row, read {} rows/s",
+                BOOKS,
+                ADDITIONAL_PROPERTIES,
+                codec,
+                String.format("%.0f", bytesPerRow),
+                String.format("%.0f", rowsPerSecond));
+        assertThat(characters).isPositive();
+    }
+}
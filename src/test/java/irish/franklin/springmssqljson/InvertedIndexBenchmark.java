@@ -0,0 +1,112 @@
+package irish.franklin.springmssqljson;
+
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import irish.franklin.springmssqljson.index.BookInvertedIndex;
+import irish.franklin.springmssqljson.index.InvertedIndexProperties;
+import irish.franklin.springmssqljson.models.Book;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Seeds {@code -Dbenchmark.books=} books (100000 by default) with varied additionalProperties, builds the inverted
+ * index and reports its memory per million entries, then times searches on an additionalProperties path with and
+ * without it and checks the index against SQL. Run with {@code ./gradlew benchmark --tests '*InvertedIndexBenchmark'}.
+ */
+@Slf4j
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "book-library.cache.enabled=false",
+        "book-library.inverted-index.enabled=true"
+})
+@AutoConfigureWebTestClient(timeout = "PT5M")
+class InvertedIndexBenchmark extends MsSqlTestContainerHelper {
+    private static final int BOOKS = Integer.getInteger("benchmark.books", 100_000);
+    private static final int SEARCHES = Integer.getInteger("benchmark.searches", 200);
+    private static final String[] GENRES = {"Fantasy", "Crime", "History", "Poetry", "Science", "Travel", "Romance", "Horror"};
+
+    @Autowired
+    WebTestClient webTestClient;
+
+    @Autowired
+    BookInvertedIndex bookInvertedIndex;
+
+    @Autowired
+    InvertedIndexProperties invertedIndexProperties;
+
+    @Test
+    void invertedIndex() {
+        Random random = new Random(BOOKS);
+        for (int offset = 0; offset < BOOKS; offset += 1000) {
+            List<Book> batch = new ArrayList<>();
+            for (int i = offset; i < Math.min(offset + 1000, BOOKS); i++) {
+                StringBuilder additionalProperties = new StringBuilder("{\"genre\": \"")
+                        .append(GENRES[random.nextInt(GENRES.length)])
+                        .append("\", \"isbn\": \"isbn-").append(i)
+                        .append("\", \"publisher\": {\"id\": ").append(random.nextInt(1000)).append('}');
+                for (int j = random.nextInt(10); j > 0; j--) {
+                    additionalProperties.append(", \"prop").append(random.nextInt(50)).append("\": ").append(random.nextInt(100));
+                }
+                batch.add(Book.builder()
+                        .name("Benchmark Book " + i)
+                        .description("Benchmark Book Description " + i)
+                        .additionalProperties(JacksonUtil.toJsonNode(additionalProperties.append('}').toString()))
+                        .build());
+            }
+            webTestClient.post()
+                    .uri("/api/v1/book/batch")
+                    .bodyValue(batch)
+                    .exchange()
+                    .expectStatus()
+                    .isCreated();
+        }
+
+        long start = System.nanoTime();
+        bookInvertedIndex.build();
+        bookInvertedIndex.refresh();
+        long buildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        BookInvertedIndex.Stats stats = bookInvertedIndex.getStats();
+        log.info("Built the index of {} books in {} ms: {} entries, {} terms, {} MB per million entries"
+                        + " (bitmaps {} MB, term ids per book {} MB, dictionary about {} MB)",
+                BOOKS, buildMillis, stats.getEntries(), stats.getTerms(),
+                String.format("%.1f", stats.getBytesPerMillionEntries() / 1e6),
+                String.format("%.1f", stats.getBitmapBytes() / 1e6),
+                String.format("%.1f", stats.getBookTermBytes() / 1e6),
+                String.format("%.1f", stats.getDictionaryBytes() / 1e6));
+
+        long indexedMillis = timeSearches();
+        invertedIndexProperties.setEnabled(false);
+        long scanMillis = timeSearches();
+        invertedIndexProperties.setEnabled(true);
+        log.info("{} searches by additionalProperties.isbn: {} ms with the index, {} ms scanning", SEARCHES, indexedMillis, scanMillis);
+
+        BookInvertedIndex.ConsistencyReport report = bookInvertedIndex.verify(500);
+        log.info("Checked {} terms against SQL: {} missing books, {} stale books",
+                report.getCheckedTerms(), report.getMissingBooks(), report.getStaleBooks());
+        assertThat(report.isConsistent()).isTrue();
+    }
+
+    private long timeSearches() {
+        Random random = new Random(SEARCHES);
+        long start = System.nanoTime();
+        for (int i = 0; i < SEARCHES; i++) {
+            webTestClient.get()
+                    .uri("/api/v1/book?additionalProperties.isbn={isbn}", "isbn-" + random.nextInt(BOOKS))
+                    .exchange()
+                    .expectStatus()
+                    .isOk();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
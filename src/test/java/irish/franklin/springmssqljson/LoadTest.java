@@ -0,0 +1,333 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Seeds books with varied additionalProperties and runs a mix of creates, reads by id, one and two filter searches,
+ * patches and deletes against them at a fixed arrival rate, then reports throughput and p50/p99/p99.9 latency per
+ * operation and writes them to {@code benchmark.load.results}.
+ * <p>
+ * Requests are sent on schedule whether or not the earlier ones completed, and latency is measured from the time a
+ * request was due, so a stalled server shows up in the percentiles instead of slowing down the load.
+ * Run with {@code ./gradlew loadTestCompare}, which compares the results with the committed baseline. The load is set
+ * with {@code -Dbenchmark.load.books=}, {@code -Dbenchmark.load.rate=} (requests/s), {@code -Dbenchmark.load.duration=}
+ * and {@code -Dbenchmark.load.warm-up=} (seconds) and {@code -Dbenchmark.load.mix=}, e.g. {@code get=40,search=20}.
+ */
+@Slf4j
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class LoadTest extends MsSqlTestContainerHelper {
+    private static final int BOOKS = Integer.getInteger("benchmark.load.books", 10000);
+    private static final int RATE = Integer.getInteger("benchmark.load.rate", 200);
+    private static final int DURATION_SECONDS = Integer.getInteger("benchmark.load.duration", 60);
+    private static final int WARM_UP_SECONDS = Integer.getInteger("benchmark.load.warm-up", 10);
+    private static final String MIX = System.getProperty("benchmark.load.mix", "create=10,get=40,search=20,search2=15,patch=10,delete=5");
+    private static final String RESULTS = System.getProperty("benchmark.load.results", "build/reports/load-test/results.json");
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final String[] LANGUAGES = {"English", "Spanish", "French", "German", "Irish", "Italian"};
+    private static final String[] GENRES = {"Fantasy", "Crime", "History", "Poetry", "Science", "Travel", "Romance", "Horror"};
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @LocalServerPort
+    int port;
+
+    private WebClient webClient;
+    private final List<Integer> readIds = new ArrayList<>();
+    // the seeded books after readIds and the created books, so reads and patches never hit a deleted book
+    private final ConcurrentLinkedQueue<Integer> deletableIds = new ConcurrentLinkedQueue<>();
+
+    enum Operation {
+        CREATE("create"), GET("get"), SEARCH("search"), SEARCH_TWO_FILTERS("search2"), PATCH("patch"), DELETE("delete");
+
+        final String mixName;
+
+        Operation(String mixName) {
+            this.mixName = mixName;
+        }
+    }
+
+    @Test
+    void mixedWorkload() throws Exception {
+        ConnectionProvider connections = ConnectionProvider.builder("load-test")
+                .maxConnections(500)
+                // queue instead of failing when all connections are busy, the wait counts towards the latency
+                .pendingAcquireMaxCount(-1)
+                .pendingAcquireTimeout(TIMEOUT)
+                .build();
+        webClient = WebClient.builder()
+                .baseUrl("http://localhost:" + port + "/api/v1/book")
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections)))
+                .build();
+        try {
+            seed();
+            Operation[] schedule = schedule(MIX);
+            run(schedule, WARM_UP_SECONDS);
+            Map<Operation, Recording> recordings = run(schedule, DURATION_SECONDS);
+            report(recordings);
+        } finally {
+            connections.dispose();
+        }
+    }
+
+    private void seed() {
+        Random random = new Random(BOOKS);
+        int deletable = BOOKS / 10;
+        for (int offset = 0; offset < BOOKS; offset += 1000) {
+            ArrayNode batch = objectMapper.createArrayNode();
+            for (int i = offset; i < Math.min(offset + 1000, BOOKS); i++) {
+                batch.add(book("Load Test Book " + i, random));
+            }
+            JsonNode results = webClient.post()
+                    .uri("/batch")
+                    .bodyValue(batch)
+                    .retrieve()
+                    .bodyToMono(JsonNode.class)
+                    .block(TIMEOUT);
+            for (JsonNode result : results) {
+                int id = result.get("book").get("id").asInt();
+                if (readIds.size() < BOOKS - deletable) {
+                    readIds.add(id);
+                } else {
+                    deletableIds.add(id);
+                }
+            }
+        }
+        log.info("Seeded {} books", BOOKS);
+    }
+
+    /**
+     * A book with 0 to 20 additionalProperties of mixed types besides yearPublished and genre, so documents differ
+     * in size and shape like they do in production.
+     */
+    private ObjectNode book(String name, Random random) {
+        ObjectNode book = objectMapper.createObjectNode()
+                .put("name", name)
+                .put("description", name + " Description")
+                .put("author", "Author " + random.nextInt(500))
+                .put("language", LANGUAGES[random.nextInt(LANGUAGES.length)]);
+        ObjectNode additionalProperties = book.putObject("additionalProperties")
+                .put("yearPublished", 1950 + random.nextInt(75))
+                .put("genre", GENRES[random.nextInt(GENRES.length)]);
+        int members = random.nextInt(21);
+        for (int i = 0; i < members; i++) {
+            String key = "prop" + random.nextInt(50);
+            switch (random.nextInt(5)) {
+                case 0:
+                    additionalProperties.put(key, "value " + random.nextInt(1000));
+                    break;
+                case 1:
+                    additionalProperties.put(key, random.nextInt(100000));
+                    break;
+                case 2:
+                    additionalProperties.put(key, random.nextBoolean());
+                    break;
+                case 3:
+                    additionalProperties.putObject(key)
+                            .put("code", random.nextInt(100))
+                            .put("label", "label " + random.nextInt(100));
+                    break;
+                default:
+                    ArrayNode array = additionalProperties.putArray(key);
+                    for (int j = random.nextInt(8); j > 0; j--) {
+                        array.add("item " + random.nextInt(100));
+                    }
+            }
+        }
+        return book;
+    }
+
+    /** The operations of 100 consecutive requests, shuffled but the same every run */
+    private static Operation[] schedule(String mix) {
+        List<Operation> schedule = new ArrayList<>();
+        Map<String, Operation> byMixName = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            byMixName.put(operation.mixName, operation);
+        }
+        for (String weight : mix.split(",")) {
+            String[] nameAndWeight = weight.trim().split("=");
+            Operation operation = byMixName.get(nameAndWeight[0]);
+            if (operation == null) {
+                throw new IllegalArgumentException("Unknown operation " + nameAndWeight[0] + ", expected one of " + byMixName.keySet());
+            }
+            schedule.addAll(Collections.nCopies(Integer.parseInt(nameAndWeight[1]), operation));
+        }
+        Collections.shuffle(schedule, new Random(42));
+        return schedule.toArray(new Operation[0]);
+    }
+
+    private Map<Operation, Recording> run(Operation[] schedule, int seconds) throws InterruptedException {
+        Map<Operation, Recording> recordings = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            recordings.put(operation, new Recording());
+        }
+        AtomicLong inFlight = new AtomicLong();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (long n = 0; start + n * intervalNanos < end; n++) {
+            long due = start + n * intervalNanos;
+            for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            Operation operation = schedule[(int) (n % schedule.length)];
+            Recording recording = recordings.get(operation);
+            inFlight.incrementAndGet();
+            send(operation)
+                    .timeout(TIMEOUT)
+                    .doFinally(signal -> inFlight.decrementAndGet())
+                    .subscribe(
+                            ok -> recording.latencies.recordValue(System.nanoTime() - due),
+                            error -> {
+                                recording.latencies.recordValue(System.nanoTime() - due);
+                                recording.errors.incrementAndGet();
+                                log.debug("{} failed", operation, error);
+                            });
+        }
+        long drainDeadline = System.nanoTime() + TIMEOUT.toNanos() * 2;
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        recordings.values().forEach(recording -> recording.seconds = seconds);
+        return recordings;
+    }
+
+    private Mono<?> send(Operation operation) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (operation) {
+            case CREATE:
+                return webClient.post()
+                        .bodyValue(book("Load Test Created Book", new Random(random.nextLong())))
+                        .retrieve()
+                        .bodyToMono(JsonNode.class)
+                        .doOnNext(book -> deletableIds.add(book.get("id").asInt()));
+            case GET:
+                return webClient.get()
+                        .uri("/{id}", readId(random))
+                        .retrieve()
+                        .toBodilessEntity();
+            case SEARCH:
+                return webClient.get()
+                        .uri("?language={language}&limit=20", LANGUAGES[random.nextInt(LANGUAGES.length)])
+                        .retrieve()
+                        .toBodilessEntity();
+            case SEARCH_TWO_FILTERS:
+                return webClient.get()
+                        .uri("?language={language}&additionalProperties.genre={genre}&limit=20",
+                                LANGUAGES[random.nextInt(LANGUAGES.length)], GENRES[random.nextInt(GENRES.length)])
+                        .retrieve()
+                        .toBodilessEntity();
+            case PATCH:
+                return webClient.patch()
+                        .uri("/{id}", readId(random))
+                        .contentType(MediaType.valueOf("application/merge-patch+json"))
+                        .bodyValue("{\"additionalProperties\": {\"loadTestRating\": " + random.nextInt(6) + "}}")
+                        .retrieve()
+                        .toBodilessEntity();
+            default:
+                Integer id = deletableIds.poll();
+                if (id == null) {
+                    return Mono.error(new IllegalStateException("No book left to delete, the mix deletes faster than it creates"));
+                }
+                return webClient.delete()
+                        .uri("/{id}", id)
+                        .retrieve()
+                        .toBodilessEntity();
+        }
+    }
+
+    private Integer readId(ThreadLocalRandom random) {
+        return readIds.get(random.nextInt(readIds.size()));
+    }
+
+    private void report(Map<Operation, Recording> recordings) throws Exception {
+        ObjectNode results = objectMapper.createObjectNode();
+        results.putObject("settings")
+                .put("books", BOOKS)
+                .put("rate", RATE)
+                .put("duration", DURATION_SECONDS)
+                .put("mix", MIX);
+        ArrayNode operations = results.putArray("operations");
+        long errors = 0;
+        for (Map.Entry<Operation, Recording> entry : recordings.entrySet()) {
+            Histogram latencies = entry.getValue().latencies;
+            if (latencies.getTotalCount() == 0) {
+                continue;
+            }
+            ObjectNode result = operations.addObject()
+                    .put("operation", entry.getKey().mixName)
+                    .put("requests", latencies.getTotalCount())
+                    .put("errors", entry.getValue().errors.get())
+                    .put("throughput", round((double) latencies.getTotalCount() / entry.getValue().seconds))
+                    .put("p50", millis(latencies.getValueAtPercentile(50)))
+                    .put("p99", millis(latencies.getValueAtPercentile(99)))
+                    .put("p999", millis(latencies.getValueAtPercentile(99.9)))
+                    .put("max", millis(latencies.getMaxValue()));
+            errors += entry.getValue().errors.get();
+            log.info("{}: {} req/s, p50 {} ms, p99 {} ms, p99.9 {} ms, max {} ms, {} errors",
+                    result.get("operation").asText(),
+                    result.get("throughput"),
+                    result.get("p50"),
+                    result.get("p99"),
+                    result.get("p999"),
+                    result.get("max"),
+                    result.get("errors"));
+        }
+        File resultsFile = new File(RESULTS);
+        resultsFile.getAbsoluteFile().getParentFile().mkdirs();
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(resultsFile, results);
+        log.info("Wrote the results to {}", resultsFile.getAbsolutePath());
+
+        assertThat(errors).as("failed requests, run with debug logging to see them").isZero();
+    }
+
+    private static double millis(long nanos) {
+        return round(nanos / 1e6);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private static class Recording {
+        // auto resizing, so a stall of any length is recorded
+        final Histogram latencies = new ConcurrentHistogram(3);
+        final AtomicLong errors = new AtomicLong();
+        int seconds;
+    }
+}
@@ -30,6 +30,9 @@ public abstract class MsSqlTestContainerHelper {
             props.put("spring.datasource.url", mssql.getJdbcUrl());
             props.put("spring.datasource.username", mssql.getUsername());
             props.put("spring.datasource.password", mssql.getPassword());
+            props.put("spring.r2dbc.url", "r2dbc:mssql://" + mssql.getHost() + ":" + mssql.getMappedPort(MSSQLServerContainer.MS_SQL_SERVER_PORT));
+            props.put("spring.r2dbc.username", mssql.getUsername());
+            props.put("spring.r2dbc.password", mssql.getPassword());
 
             environment.getPropertySources().addFirst(new PropertiesPropertySource("myTestDBProps", props));
             configurableApplicationContext.setEnvironment(environment);
@@ -0,0 +1,104 @@
+package irish.franklin.springmssqljson;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.patch.PatchCoalescer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(properties = {
+        "book-library.patch-coalescing.enabled=true",
+        "book-library.patch-coalescing.window=200ms"
+})
+class PatchCoalescingTest extends MsSqlTestContainerHelper {
+
+    @Autowired
+    PatchCoalescer patchCoalescer;
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    Integer id;
+
+    @BeforeEach
+    void setup() {
+        bookLibraryRepository.deleteAll();
+        id = bookLibraryRepository.save(BookJson.builder()
+                .book(Book.builder()
+                        .name("Coalesced Book")
+                        .description("Coalesced Book Description")
+                        .additionalProperties(JacksonUtil.toJsonNode("{\"status\": \"new\", \"counter\": 0}"))
+                        .build())
+                .build()).getId();
+    }
+
+    @Test
+    void shouldWritePatchesOfTheSameBookInOrderWithOneWrite() throws Exception {
+        double writesBefore = meterRegistry.counter("book.patch.coalescing.writes").count();
+
+        List<CompletableFuture<RawBook>> results = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            results.add(patchCoalescer.submit(id, JacksonUtil.toJsonNode(
+                    "{\"additionalProperties\": {\"counter\": " + i + ", \"patch" + i + "\": true}}")));
+        }
+        results.add(patchCoalescer.submit(id, JacksonUtil.toJsonNode("{\"additionalProperties\": {\"status\": null}}")));
+
+        RawBook last = results.get(results.size() - 1).join();
+        for (CompletableFuture<RawBook> result : results) {
+            assertThat(result.join()).isEqualTo(last);
+        }
+        JsonNode additionalProperties = objectMapper.readValue(last.getJson(), Book.class).getAdditionalProperties();
+        assertThat(additionalProperties.get("counter").asInt()).isEqualTo(10);
+        assertThat(additionalProperties.has("status")).isFalse();
+        for (int i = 1; i <= 10; i++) {
+            assertThat(additionalProperties.get("patch" + i).asBoolean()).isTrue();
+        }
+        assertThat(meterRegistry.counter("book.patch.coalescing.writes").count()).isEqualTo(writesBefore + 1);
+    }
+
+    @Test
+    void shouldFailOnlyThePatchThatCannotBeApplied() throws Exception {
+        CompletableFuture<RawBook> renamed = patchCoalescer.submit(id, JacksonUtil.toJsonNode("{\"name\": \"Renamed Book\"}"));
+        CompletableFuture<RawBook> invalid = patchCoalescer.submit(id, JacksonUtil.toJsonNode("{\"name\": null}"));
+        CompletableFuture<RawBook> described = patchCoalescer.submit(id, JacksonUtil.toJsonNode("{\"description\": \"New Description\"}"));
+
+        Book book = objectMapper.readValue(described.join().getJson(), Book.class);
+        assertThat(renamed.join()).isEqualTo(described.join());
+        assertThat(book.getName()).isEqualTo("Renamed Book");
+        assertThat(book.getDescription()).isEqualTo("New Description");
+        assertThatThrownBy(invalid::join)
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(ResponseStatusException.class)
+                .satisfies(e -> assertThat(((ResponseStatusException) e.getCause()).getStatus()).isEqualTo(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    void shouldReturnNotFoundForEveryPatchOfAMissingBook() {
+        assertThatThrownBy(() -> patchCoalescer.patch(-1, JacksonUtil.toJsonNode("{\"name\": \"Missing Book\"}")))
+                .isInstanceOf(ResponseStatusException.class)
+                .satisfies(e -> assertThat(((ResponseStatusException) e).getStatus()).isEqualTo(HttpStatus.NOT_FOUND));
+    }
+}
@@ -0,0 +1,133 @@
+package irish.franklin.springmssqljson;
+
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.query.BookQuery;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.annotations.QueryHints;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reads {@code -Dbenchmark.rows=} books (10000 by default) as managed entities, as read-only entities and as raw JSON
+ * through JDBC, and reports the bytes each allocates and the heap it holds while the persistence context is still open,
+ * scaled to 10k rows. Managed entities are what reads used to load: Hibernate keeps a deep copy of every JSON document
+ * in its snapshot to dirty check at flush. Run with {@code ./gradlew benchmark --tests '*ReadPathHeapBenchmark'}.
+ */
+@Slf4j
+@Tag("benchmark")
+@SpringBootTest
+class ReadPathHeapBenchmark extends MsSqlTestContainerHelper {
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 10_000);
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    EntityManager entityManager;
+
+    @Test
+    void heapPerTenThousandRows() {
+        bookLibraryRepository.deleteAll();
+        List<BookJson> books = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            books.add(BookJson.builder()
+                    .book(Book.builder()
+                            .name("Benchmark Book " + i)
+                            .description("Benchmark Book Description " + i)
+                            .language(i % 2 == 0 ? "English" : "Spanish")
+                            .additionalProperties(JacksonUtil.toJsonNode(
+                                    "{\"yearPublished\": " + (1950 + i % 70) + ", \"tags\": [\"a\", \"b\", \"c\"], \"rating\": " + i % 5 + "}"))
+                            .build())
+                    .build());
+        }
+        bookLibraryRepository.saveAll(books);
+
+        TransactionTemplate readWrite = new TransactionTemplate(transactionManager);
+        TransactionTemplate readOnly = new TransactionTemplate(transactionManager);
+        readOnly.setReadOnly(true);
+
+        // warms up the mapping of both entity paths and the row mapper before anything is measured
+        readWrite.execute(status -> managedBooks().size());
+        bookLibraryRepository.findBooks(allBooks());
+        bookLibraryRepository.findRawBooks(allBooks());
+
+        Heap managed = readWrite.execute(status -> measure(this::managedBooks));
+        Heap readOnlyEntities = readOnly.execute(status -> measure(() -> bookLibraryRepository.findBooks(allBooks())));
+        Heap rawJson = measure(() -> bookLibraryRepository.findRawBooks(allBooks()));
+
+        log.info("managed entities: {}", managed);
+        log.info("read-only entities: {}", readOnlyEntities);
+        log.info("raw JSON through JDBC: {}", rawJson);
+        assertThat(readOnlyEntities.retainedBytes).isLessThan(managed.retainedBytes);
+    }
+
+    /** The read all reads went through before: entities managed by a transaction that may write them */
+    @SuppressWarnings("unchecked")
+    private List<BookJson> managedBooks() {
+        return entityManager.createNativeQuery("SELECT id, book FROM BOOK_LIBRARY_DOCUMENTS", BookJson.class)
+                .setHint(QueryHints.READ_ONLY, false)
+                .getResultList();
+    }
+
+    private static BookQuery allBooks() {
+        return BookQuery.fromQueryParams(Collections.emptyMap());
+    }
+
+    /**
+     * Measures the read inside the caller's transaction, so the heap held by its persistence context is included.
+     */
+    private Heap measure(Supplier<List<?>> read) {
+        long retainedBefore = usedHeapAfterGc();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        List<?> rows = read.get();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long retained = usedHeapAfterGc() - retainedBefore;
+        assertThat(rows).hasSize(ROWS);
+        return new Heap(allocated * 10_000 / ROWS, retained * 10_000 / ROWS);
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static class Heap {
+        final long allocatedBytes;
+        final long retainedBytes;
+
+        Heap(long allocatedBytes, long retainedBytes) {
+            this.allocatedBytes = allocatedBytes;
+            this.retainedBytes = retainedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f MB allocated, %.1f MB held per 10k rows", allocatedBytes / 1e6, retainedBytes / 1e6);
+        }
+    }
+}
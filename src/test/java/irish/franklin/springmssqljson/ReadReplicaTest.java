@@ -0,0 +1,192 @@
+package irish.franklin.springmssqljson;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.schema.BookLibrarySchema;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reads from a second database on the test container standing in for a replica, which only holds the books the test
+ * puts there, so where a read went shows in what it finds. The second replica's database doesn't exist. The cache is
+ * enabled, as it is by default.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "book-library.read-replicas.enabled=true",
+        "book-library.read-replicas.health-check-delay=PT1H",
+        "book-library.read-replicas.sticky-window=PT30S"
+})
+@AutoConfigureWebTestClient
+class ReadReplicaTest extends MsSqlTestContainerHelper {
+    private static final String REPLICA = ";databaseName=book_replica";
+    private static final int REPLICA_BOOK_ID = 900_001;
+    private static final int CACHED_BOOK_ID = 900_002;
+    private static final int CHANGED_BOOK_ID = 900_003;
+
+    @Autowired
+    WebTestClient webTestClient;
+
+    @Autowired
+    BookLibrarySchema bookLibrarySchema;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
+    @DynamicPropertySource
+    static void replicas(DynamicPropertyRegistry registry) {
+        registry.add("book-library.read-replicas.replicas[0].url", () -> mssql.getJdbcUrl() + REPLICA);
+        registry.add("book-library.read-replicas.replicas[1].url", () -> mssql.getJdbcUrl() + ";databaseName=book_replica_missing");
+        for (int replica = 0; replica < 2; replica++) {
+            registry.add("book-library.read-replicas.replicas[" + replica + "].username", mssql::getUsername);
+            registry.add("book-library.read-replicas.replicas[" + replica + "].password", mssql::getPassword);
+        }
+    }
+
+    @BeforeEach
+    void setup() throws SQLException {
+        try (Connection connection = mssql.createConnection("");
+             Statement statement = connection.createStatement()) {
+            statement.execute("IF DB_ID('book_replica') IS NULL CREATE DATABASE book_replica");
+        }
+        try (Connection connection = DriverManager.getConnection(mssql.getJdbcUrl() + REPLICA, mssql.getUsername(), mssql.getPassword());
+             Statement statement = connection.createStatement()) {
+            statement.execute("IF OBJECT_ID('BOOK_LIBRARY', 'U') IS NULL"
+                    + " CREATE TABLE BOOK_LIBRARY (id INT NOT NULL PRIMARY KEY, book NVARCHAR(MAX) NOT NULL)");
+            for (String schemaStatement : bookLibrarySchema.statements()) {
+                statement.execute(schemaStatement);
+            }
+            statement.execute("DELETE FROM BOOK_LIBRARY");
+            for (int id : new int[]{REPLICA_BOOK_ID, CACHED_BOOK_ID, CHANGED_BOOK_ID}) {
+                statement.execute("INSERT INTO BOOK_LIBRARY (id, book) VALUES (" + id
+                        + ", N'{\"name\": \"Replica Book\", \"description\": \"Replica Book Description\"}')");
+            }
+        }
+    }
+
+    @Test
+    void shouldReadFromAHealthyReplica() {
+        double replicaConnections = meterRegistry.counter("book.datasource.connections", "target", "replica-1").count();
+        webTestClient.get()
+                .uri("/api/v1/book/{id}", REPLICA_BOOK_ID)
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.name").isEqualTo("Replica Book");
+        webTestClient.get()
+                .uri("/api/v1/book?name=Replica Book")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(3);
+
+        assertThat(meterRegistry.counter("book.datasource.connections", "target", "replica-1").count())
+                .isGreaterThan(replicaConnections);
+        assertThat(meterRegistry.get("book.datasource.healthy").tag("target", "replica-2").gauge().value()).isZero();
+        assertThat(meterRegistry.get("book.datasource.healthy").tag("target", "replica-1").gauge().value()).isOne();
+    }
+
+    @Test
+    void shouldReadOwnWritesFromThePrimary() {
+        EntityExchangeResult<Book> created = webTestClient.post()
+                .uri("/api/v1/book")
+                .bodyValue(Book.builder().name("Primary Book").description("Primary Book Description").build())
+                .exchange()
+                .expectStatus()
+                .isCreated()
+                .expectBody(Book.class)
+                .returnResult();
+        String primaryUntil = created.getResponseHeaders().getFirst("X-Primary-Until");
+        Integer id = created.getResponseBody().getId();
+        assertThat(primaryUntil).isNotNull();
+
+        // the replica never receives the book, a client without the header doesn't find it
+        webTestClient.get()
+                .uri("/api/v1/book/{id}", id)
+                .exchange()
+                .expectStatus()
+                .isNotFound();
+        webTestClient.get()
+                .uri("/api/v1/book/{id}", id)
+                .header("X-Primary-Until", primaryUntil)
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        // the patch reads the book it applies to from the primary
+        webTestClient.patch()
+                .uri("/api/v1/book/{id}", id)
+                .contentType(MediaType.parseMediaType("application/merge-patch+json"))
+                .bodyValue("{\"additionalProperties\": {\"patched\": true}}")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.additionalProperties.patched").isEqualTo(true);
+    }
+
+    @Test
+    void shouldCacheReplicaReadsUnlessTheBookChangedWithinTheStickyWindow() throws SQLException {
+        assertThat(nameOf(CACHED_BOOK_ID)).isEqualTo("Replica Book");
+        renameOnReplica(CACHED_BOOK_ID);
+        assertThat(nameOf(CACHED_BOOK_ID)).isEqualTo("Replica Book");
+
+        // the replica may not have caught up with the change yet, what it returns is not cached
+        eventPublisher.publishEvent(new BookChangedEvent(CHANGED_BOOK_ID, BookChangedEvent.Change.UPDATED));
+        assertThat(nameOf(CHANGED_BOOK_ID)).isEqualTo("Replica Book");
+        renameOnReplica(CHANGED_BOOK_ID);
+        assertThat(nameOf(CHANGED_BOOK_ID)).isEqualTo("Renamed Replica Book");
+    }
+
+    @Test
+    void shouldCheckWhetherABookAWriteDidNotMatchExistsOnAReplica() {
+        webTestClient.delete()
+                .uri("/api/v1/book/{id}", REPLICA_BOOK_ID)
+                .header(HttpHeaders.IF_MATCH, "\"0000000000000000\"")
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.PRECONDITION_FAILED);
+    }
+
+    private String nameOf(int id) {
+        return webTestClient.get()
+                .uri("/api/v1/book/{id}", id)
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody(Book.class)
+                .returnResult()
+                .getResponseBody()
+                .getName();
+    }
+
+    private static void renameOnReplica(int id) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(mssql.getJdbcUrl() + REPLICA, mssql.getUsername(), mssql.getPassword());
+             Statement statement = connection.createStatement()) {
+            statement.execute("UPDATE BOOK_LIBRARY SET book = JSON_MODIFY(book, '$.name', 'Renamed Replica Book') WHERE id = " + id);
+        }
+    }
+}
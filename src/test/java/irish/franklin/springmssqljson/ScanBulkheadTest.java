@@ -0,0 +1,153 @@
+package irish.franklin.springmssqljson;
+
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.bulkhead.ScanRejectedException;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.query.BookQueryCompiler;
+import irish.franklin.springmssqljson.query.ResultColumns;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "book-library.cache.enabled=false",
+        "book-library.scan-bulkhead.enabled=true",
+        "book-library.scan-bulkhead.max-concurrent-scans=1",
+        "book-library.scan-bulkhead.max-queued-scans=1",
+        "book-library.scan-bulkhead.max-queue-wait=2s",
+        "book-library.scan-bulkhead.query-timeout=1s"
+})
+@AutoConfigureWebTestClient
+class ScanBulkheadTest extends MsSqlTestContainerHelper {
+    private static final BookQuery SCAN = BookQuery.fromQueryParams(Collections.singletonMap("additionalProperties.rating", "4.5"));
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    BookQueryCompiler bookQueryCompiler;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    WebTestClient webTestClient;
+
+    Integer id;
+
+    @BeforeEach
+    void setup() {
+        bookLibraryRepository.deleteAll();
+        id = bookLibraryRepository.save(BookJson.builder()
+                .book(Book.builder()
+                        .name("Scanned Book")
+                        .description("Scanned Book Description")
+                        .additionalProperties(JacksonUtil.toJsonNode("{\"rating\": 4.5}"))
+                        .build())
+                .build()).getId();
+    }
+
+    @Test
+    void shouldOnlyClassifyReadsThatParseEveryDocumentAsScans() {
+        assertThat(bookQueryCompiler.compile(SCAN, ResultColumns.RAW_JSON).isFullScan()).isTrue();
+        assertThat(bookQueryCompiler.compile(BookQuery.fromQueryParams(Collections.singletonMap("name", "Scanned Book")),
+                ResultColumns.RAW_JSON).isFullScan()).isFalse();
+        assertThat(bookQueryCompiler.compile(BookQuery.fromQueryParams(Collections.singletonMap("limit", "10")),
+                ResultColumns.RAW_JSON).isFullScan()).isFalse();
+
+        Map<String, String> indexedAndScanned = new HashMap<>();
+        indexedAndScanned.put("name", "Scanned Book");
+        indexedAndScanned.put("additionalProperties.rating", "4.5");
+        assertThat(bookQueryCompiler.compile(BookQuery.fromQueryParams(indexedAndScanned), ResultColumns.RAW_JSON).isFullScan()).isFalse();
+    }
+
+    @Test
+    void shouldShedScansBeyondTheQueueAndKeepLookupsGoing() throws Exception {
+        CountDownLatch streaming = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> running = CompletableFuture.runAsync(() -> bookLibraryRepository.streamRawBooks(SCAN, book -> {
+            streaming.countDown();
+            await(release);
+        }));
+        assertThat(streaming.await(10, TimeUnit.SECONDS)).isTrue();
+
+        CompletableFuture<Integer> queued = CompletableFuture.supplyAsync(() -> bookLibraryRepository.findRawBooks(SCAN).size());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (meterRegistry.get("book.scan-bulkhead.queued").gauge().value() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThatThrownBy(() -> bookLibraryRepository.findRawBooks(SCAN))
+                .isInstanceOfSatisfying(ScanRejectedException.class, e -> {
+                    assertThat(e.getStatus()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+                    assertThat(e.getResponseHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+                });
+        assertThat(bookLibraryRepository.findRawBookById(id)).isPresent();
+
+        release.countDown();
+        running.get(10, TimeUnit.SECONDS);
+        assertThat(queued.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(meterRegistry.counter("book.scan-bulkhead.rejected", "reason", "queue-full").count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldCancelScansAfterTheQueryTimeout() throws Exception {
+        double cancelled = meterRegistry.counter("book.scan-bulkhead.cancelled").count();
+        try (Connection connection = DriverManager.getConnection(mssql.getJdbcUrl(), mssql.getUsername(), mssql.getPassword())) {
+            connection.setAutoCommit(false);
+            // the uncommitted update blocks every scan that reaches the book
+            try (PreparedStatement lock = connection.prepareStatement(
+                    "UPDATE BOOK_LIBRARY SET book = JSON_MODIFY(book, '$.name', 'Locked Book') WHERE id = ?")) {
+                lock.setInt(1, id);
+                lock.executeUpdate();
+            }
+            try {
+                webTestClient.get()
+                        .uri("/api/v1/book?additionalProperties.rating=4.5")
+                        .exchange()
+                        .expectStatus()
+                        .isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                        .expectHeader()
+                        .valueEquals(HttpHeaders.RETRY_AFTER, "1");
+                // entities are read with the timeout as a query hint
+                assertThatThrownBy(() -> bookLibraryRepository.findBooks(SCAN))
+                        .isInstanceOfSatisfying(ScanRejectedException.class,
+                                e -> assertThat(e.getStatus()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE));
+                // a lookup seeks the primary key and only waits for the locked book itself
+                assertThat(bookLibraryRepository.findVersionById(id + 1)).isEmpty();
+            } finally {
+                connection.rollback();
+            }
+        }
+        assertThat(meterRegistry.counter("book.scan-bulkhead.cancelled").count()).isEqualTo(cancelled + 2);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package irish.franklin.springmssqljson;
+
+import irish.franklin.springmssqljson.models.Book;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires searches that scan every document with a fixed amount of requests in flight and reports throughput,
+ * latency and how many requests were served concurrently per core (throughput times mean latency).
+ * The servlet and the reactive variant extend it, run both with {@code ./gradlew benchmark} to compare them,
+ * {@code -Dbenchmark.concurrency=} and {@code -Dbenchmark.requests=} set the load.
+ */
+@Slf4j
+public abstract class SearchConcurrencyBenchmark extends MsSqlTestContainerHelper {
+    private static final int BOOKS = Integer.getInteger("benchmark.books", 5000);
+    private static final int REQUESTS = Integer.getInteger("benchmark.requests", 2000);
+    private static final int CONCURRENCY = Integer.getInteger("benchmark.concurrency", 256);
+    // description is not an indexed path, so every search scans the documents
+    private static final String SCAN_SEARCH = "/api/v1/book?description:ne=none&limit=50";
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @LocalServerPort
+    private int port;
+
+    @Test
+    void searchConcurrency() {
+        for (int offset = 0; offset < BOOKS; offset += 1000) {
+            List<Book> batch = new ArrayList<>();
+            for (int i = offset; i < Math.min(offset + 1000, BOOKS); i++) {
+                batch.add(Book.builder()
+                        .name("Benchmark Book " + i)
+                        .description("Benchmark Book Description " + i)
+                        .language(i % 2 == 0 ? "English" : "Spanish")
+                        .build());
+            }
+            webTestClient.post()
+                    .uri("/api/v1/book/batch")
+                    .bodyValue(batch)
+                    .exchange()
+                    .expectStatus()
+                    .isCreated();
+        }
+
+        WebClient webClient = WebClient.create("http://localhost:" + port);
+        search(webClient, REQUESTS / 10);
+        long start = System.nanoTime();
+        long[] latencies = search(webClient, REQUESTS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        double throughput = REQUESTS / seconds;
+        double meanLatencySeconds = Arrays.stream(latencies).average().orElse(0) / 1e9;
+        double concurrencyPerCore = throughput * meanLatencySeconds / Runtime.getRuntime().availableProcessors();
+        log.info("{}: {} searches with {} in flight: {} req/s, p50 {} ms, p99 {} ms, {} concurrent requests per core",
+                variant(),
+                REQUESTS,
+                CONCURRENCY,
+                String.format("%.0f", throughput),
+                TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length / 2]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length * 99 / 100]),
+                String.format("%.1f", concurrencyPerCore));
+    }
+
+    protected abstract String variant();
+
+    private static long[] search(WebClient webClient, int requests) {
+        long[] latencies = new long[requests];
+        Flux.range(0, requests)
+                .flatMap(i -> {
+                    long requestStart = System.nanoTime();
+                    return webClient.get()
+                            .uri(SCAN_SEARCH)
+                            .retrieve()
+                            .toBodilessEntity()
+                            .doOnNext(response -> latencies[i] = System.nanoTime() - requestStart);
+                }, CONCURRENCY)
+                .blockLast();
+        return latencies;
+    }
+}
@@ -0,0 +1,17 @@
+package irish.franklin.springmssqljson;
+
+import org.junit.jupiter.api.Tag;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "book-library.cache.enabled=false")
+@AutoConfigureWebTestClient(timeout = "PT5M")
+class ServletSearchConcurrencyBenchmark extends SearchConcurrencyBenchmark {
+
+    @Override
+    protected String variant() {
+        return "Spring MVC + JPA";
+    }
+}
@@ -0,0 +1,209 @@
+package irish.franklin.springmssqljson;
+
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.models.BookVersion;
+import irish.franklin.springmssqljson.models.RawBook;
+import irish.franklin.springmssqljson.query.BookQuery;
+import irish.franklin.springmssqljson.sharding.BookShards;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Spreads books over the test database and two more databases on the same server, which stand in for the shards.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "book-library.cache.enabled=false",
+        "book-library.sharding.enabled=true"
+})
+@AutoConfigureWebTestClient
+class ShardedBookLibraryTest extends MsSqlTestContainerHelper {
+    private static final int BOOKS = 120;
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    BookShards bookShards;
+
+    @Autowired
+    WebTestClient webTestClient;
+
+    List<Integer> ids;
+
+    @DynamicPropertySource
+    static void shards(DynamicPropertyRegistry registry) {
+        for (int shard = 1; shard <= 2; shard++) {
+            String database = "book_shard_" + shard;
+            registry.add("book-library.sharding.shards[" + (shard - 1) + "].url", () -> createDatabase(database));
+            registry.add("book-library.sharding.shards[" + (shard - 1) + "].username", mssql::getUsername);
+            registry.add("book-library.sharding.shards[" + (shard - 1) + "].password", mssql::getPassword);
+        }
+    }
+
+    private static String createDatabase(String database) {
+        try (Connection connection = DriverManager.getConnection(mssql.getJdbcUrl(), mssql.getUsername(), mssql.getPassword());
+             Statement statement = connection.createStatement()) {
+            statement.execute("IF DB_ID('" + database + "') IS NULL CREATE DATABASE " + database);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return mssql.getJdbcUrl() + ";databaseName=" + database;
+    }
+
+    @BeforeEach
+    void setup() {
+        for (int shard = 0; shard < bookShards.count(); shard++) {
+            bookShards.get(shard).getJdbcTemplate().update("DELETE FROM BOOK_LIBRARY");
+        }
+        List<BookJson> books = new ArrayList<>();
+        for (int i = 0; i < BOOKS; i++) {
+            books.add(BookJson.builder()
+                    .book(Book.builder()
+                            .name("Sharded Book " + i)
+                            .description("Sharded Book Description " + i)
+                            .language(i % 3 == 0 ? "English" : "Spanish")
+                            .additionalProperties(JacksonUtil.toJsonNode("{\"yearPublished\": " + (2000 + i) + "}"))
+                            .build())
+                    .build());
+        }
+        ids = bookLibraryRepository.createBooks(books).stream()
+                .map(BookJson::getId)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void shouldSpreadBooksOverEveryShardByTheirId() {
+        assertThat(bookShards.count()).isEqualTo(3);
+        int stored = 0;
+        for (int shard = 0; shard < bookShards.count(); shard++) {
+            List<Integer> shardIds = bookShards.get(shard).getJdbcTemplate()
+                    .queryForList("SELECT id FROM BOOK_LIBRARY", Integer.class);
+            assertThat(shardIds).isNotEmpty();
+            for (Integer id : shardIds) {
+                assertThat(BookShards.shardOf(id, bookShards.count())).isEqualTo(shard);
+            }
+            stored += shardIds.size();
+        }
+        assertThat(stored).isEqualTo(BOOKS);
+        for (Integer id : ids) {
+            assertThat(bookLibraryRepository.findRawBookById(id)).isPresent();
+        }
+    }
+
+    @Test
+    void shouldMergeSearchesOfAllShardsInIdOrder() {
+        List<Integer> paged = new ArrayList<>();
+        Integer after = null;
+        do {
+            Map<String, String> queryParams = new HashMap<>();
+            queryParams.put("limit", "25");
+            if (after != null) {
+                queryParams.put("after", after.toString());
+            }
+            List<RawBook> page = bookLibraryRepository.findRawBooks(BookQuery.fromQueryParams(queryParams));
+            page.forEach(book -> paged.add(book.getId()));
+            after = page.size() == 25 ? page.get(page.size() - 1).getId() : null;
+        } while (after != null);
+        assertThat(paged).isEqualTo(ids);
+
+        assertThat(bookLibraryRepository.findBooks(BookQuery.fromQueryParams(Collections.singletonMap("language", "English"))))
+                .hasSize(BOOKS / 3);
+        assertThat(bookLibraryRepository.findBookVersions(BookQuery.fromQueryParams(Collections.singletonMap("limit", "10"))))
+                .extracting(BookVersion::getId)
+                .isEqualTo(ids.subList(0, 10));
+    }
+
+    @Test
+    void shouldStreamTheBooksOfAllShardsInIdOrder() {
+        List<Integer> streamed = new ArrayList<>();
+        bookLibraryRepository.streamRawBooks(BookQuery.fromQueryParams(Collections.emptyMap()), book -> streamed.add(book.getId()));
+        assertThat(streamed).isEqualTo(ids);
+
+        // a cursor taken from a streamed book skips no book of another shard
+        List<Integer> streamedAfter = new ArrayList<>();
+        bookLibraryRepository.streamRawBooks(BookQuery.fromQueryParams(Collections.singletonMap("after", ids.get(49).toString())),
+                book -> streamedAfter.add(book.getId()));
+        assertThat(streamedAfter).isEqualTo(ids.subList(50, ids.size()));
+    }
+
+    @Test
+    void shouldMergeTheBucketsOfAllShards() {
+        webTestClient.get()
+                .uri("/api/v1/book/aggregate?groupBy=language")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(2)
+                .jsonPath("$[0].key").isEqualTo("English")
+                .jsonPath("$[0].value").isEqualTo(BOOKS / 3)
+                .jsonPath("$[1].key").isEqualTo("Spanish")
+                .jsonPath("$[1].value").isEqualTo(BOOKS - BOOKS / 3);
+
+        webTestClient.get()
+                .uri("/api/v1/book/aggregate?groupBy=language&metric=max(additionalProperties.yearPublished)")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$[0].value").isEqualTo(2000 + BOOKS - 3)
+                .jsonPath("$[1].value").isEqualTo(2000 + BOOKS - 1);
+    }
+
+    @Test
+    void shouldWriteBooksOnTheirShard() {
+        Integer id = ids.get(ids.size() - 1);
+        webTestClient.patch()
+                .uri("/api/v1/book/{id}", id)
+                .contentType(MediaType.parseMediaType("application/merge-patch+json"))
+                .bodyValue("{\"name\": \"Patched Book\"}")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.name").isEqualTo("Patched Book");
+        assertThat(bookShards.forId(id).getJdbcTemplate()
+                .queryForObject("SELECT JSON_VALUE(book, '$.name') FROM BOOK_LIBRARY_DOCUMENTS WHERE id = ?", String.class, id))
+                .isEqualTo("Patched Book");
+
+        webTestClient.delete()
+                .uri("/api/v1/book/{id}", id)
+                .exchange()
+                .expectStatus()
+                .is2xxSuccessful();
+        webTestClient.get()
+                .uri("/api/v1/book/{id}", id)
+                .exchange()
+                .expectStatus()
+                .isNotFound();
+
+        webTestClient.get()
+                .uri("/api/v1/book/changes")
+                .exchange()
+                .expectStatus()
+                .isEqualTo(501);
+    }
+}
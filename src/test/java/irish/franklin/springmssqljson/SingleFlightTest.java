@@ -0,0 +1,205 @@
+package irish.franklin.springmssqljson;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookChangedEvent;
+import irish.franklin.springmssqljson.models.BookJson;
+import irish.franklin.springmssqljson.singleflight.SingleFlight;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "book-library.cache.enabled=false"
+})
+@AutoConfigureWebTestClient
+class SingleFlightTest extends MsSqlTestContainerHelper {
+    private static final int WAITING_READS = 4;
+
+    @Autowired
+    SingleFlight singleFlight;
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    WebTestClient webTestClient;
+
+    ExecutorService readers = Executors.newCachedThreadPool();
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger loads = new AtomicInteger();
+
+    @AfterEach
+    void stopReaders() {
+        release.countDown();
+        readers.shutdownNow();
+    }
+
+    @Test
+    void shouldShareTheAnswerOfOneRead() throws Exception {
+        double joined = reads("shared", "joined");
+        CompletableFuture<Object> leader = read("shared", "key", this::blockedLoad);
+        awaitLoads(1);
+        List<CompletableFuture<Object>> waiting = readWaiting("shared", "key", this::load);
+        // another key runs on its own
+        assertThat(singleFlight.run("shared", "other key", this::load)).isNotNull();
+
+        release.countDown();
+        Object answer = leader.get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<Object> read : waiting) {
+            assertThat(read.get(10, TimeUnit.SECONDS)).isSameAs(answer);
+        }
+        assertThat(loads.get()).isEqualTo(2);
+        assertThat(reads("shared", "joined")).isEqualTo(joined + WAITING_READS);
+
+        // nothing is kept once the read answered
+        assertThat(singleFlight.run("shared", "key", this::load)).isNotSameAs(answer);
+    }
+
+    @Test
+    void shouldThrowTheErrorOfTheReadToEveryWaitingRead() throws Exception {
+        CompletableFuture<Object> leader = read("failing", "key", () -> {
+            blockedLoad();
+            throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Shard 1 did not answer");
+        });
+        awaitLoads(1);
+        List<CompletableFuture<Object>> waiting = readWaiting("failing", "key", this::load);
+
+        release.countDown();
+        assertFailsWithGatewayTimeout(leader);
+        for (CompletableFuture<Object> read : waiting) {
+            assertFailsWithGatewayTimeout(read);
+        }
+        assertThat(loads.get()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldRunTheReadAgainWhenTheRunningReadWasInterrupted() throws Exception {
+        List<Thread> leaderThread = new ArrayList<>();
+        CompletableFuture<Object> leader = read("interrupted", "key", () -> {
+            leaderThread.add(Thread.currentThread());
+            return blockedLoad();
+        });
+        awaitLoads(1);
+        List<CompletableFuture<Object>> waiting = readWaiting("interrupted", "key", this::blockedLoad);
+
+        leaderThread.get(0).interrupt();
+        assertThatThrownBy(() -> leader.get(10, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+        // one of the waiting reads runs it again instead of failing with the cancellation of another request
+        awaitLoads(2);
+        release.countDown();
+        for (CompletableFuture<Object> read : waiting) {
+            assertThat(read.get(10, TimeUnit.SECONDS)).isNotNull();
+        }
+        assertThat(loads.get()).isGreaterThanOrEqualTo(2);
+    }
+
+    @Test
+    void shouldNotWaitForAReadThatStartedBeforeAChange() throws Exception {
+        CompletableFuture<Object> leader = read("changed", "key", this::blockedLoad);
+        awaitLoads(1);
+
+        singleFlight.onBookChanged(new BookChangedEvent(1, BookChangedEvent.Change.UPDATED));
+        assertThat(singleFlight.run("changed", "key", this::load)).isNotNull();
+        assertThat(loads.get()).isEqualTo(2);
+
+        release.countDown();
+        leader.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void shouldReadBooksThroughTheSingleFlight() {
+        double led = reads("book-by-id", "led");
+        Integer id = bookLibraryRepository.save(BookJson.builder()
+                .book(Book.builder().name("Single Book").description("Single Book Description").build())
+                .build()).getId();
+
+        webTestClient.get()
+                .uri("/api/v1/book/{id}", id)
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.name").isEqualTo("Single Book");
+        assertThat(reads("book-by-id", "led")).isEqualTo(led + 1);
+    }
+
+    private Object load() {
+        loads.incrementAndGet();
+        return new Object();
+    }
+
+    private Object blockedLoad() {
+        Object answer = load();
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // as JDBC does for a statement that was cancelled
+            throw new IllegalStateException("Cancelled", e);
+        }
+        return answer;
+    }
+
+    private CompletableFuture<Object> read(String read, Object key, Supplier<Object> loader) {
+        return CompletableFuture.supplyAsync(() -> singleFlight.run(read, key, loader), readers);
+    }
+
+    private List<CompletableFuture<Object>> readWaiting(String read, Object key, Supplier<Object> loader)
+            throws InterruptedException {
+        List<CompletableFuture<Object>> waiting = new ArrayList<>();
+        for (int i = 0; i < WAITING_READS; i++) {
+            waiting.add(read(read, key, loader));
+        }
+        awaitWaiting(WAITING_READS);
+        return waiting;
+    }
+
+    private void awaitWaiting(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (meterRegistry.get("book.single-flight.waiting").gauge().value() != expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitLoads(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (loads.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private double reads(String read, String outcome) {
+        return meterRegistry.counter("book.single-flight.reads", "read", read, "outcome", outcome).count();
+    }
+
+    private static void assertFailsWithGatewayTimeout(CompletableFuture<Object> read) {
+        assertThatThrownBy(() -> read.get(10, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(ResponseStatusException.class)
+                .satisfies(e -> assertThat(((ResponseStatusException) e.getCause()).getStatus()).isEqualTo(HttpStatus.GATEWAY_TIMEOUT));
+    }
+}
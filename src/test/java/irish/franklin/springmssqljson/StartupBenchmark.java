@@ -0,0 +1,140 @@
+package irish.franklin.springmssqljson;
+
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Starts the app in a new JVM against the test container and reports the time until its first successful
+ * {@code GET /api/v1/book/{id}}: as is, with the fast-startup profile, and with the fast-startup profile and an AppCDS
+ * archive recorded by a training run (JDK 13+ only).
+ * Run with {@code ./gradlew startupBenchmark}, which starts the app from the plain jar so its classes can be archived,
+ * add {@code -PfastStartup} for the entities enhanced at build time. The amount of starts per variant is set with
+ * {@code -Dbenchmark.startups=}.
+ */
+@Slf4j
+@Tag("benchmark")
+@SpringBootTest
+class StartupBenchmark extends MsSqlTestContainerHelper {
+    private static final int STARTUPS = Integer.getInteger("benchmark.startups", 3);
+    private static final String CLASSPATH = System.getProperty("benchmark.startup.classpath", System.getProperty("java.class.path"));
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(3);
+
+    @Autowired
+    BookLibraryRepository bookLibraryRepository;
+
+    @Test
+    void timeToFirstBook() throws Exception {
+        Integer id = bookLibraryRepository.save(BookJson.builder()
+                .book(Book.builder().name("Startup Book").description("Startup Book Description").build())
+                .build()).getId();
+
+        report("default", id, Collections.emptyList(), Collections.emptyList());
+        List<String> fastStartup = Collections.singletonList("--spring.profiles.include=fast-startup");
+        report("fast-startup", id, Collections.emptyList(), fastStartup);
+
+        if (javaVersion() >= 13) {
+            File archive = File.createTempFile("book-library", ".jsa");
+            List<String> trainingRun = new ArrayList<>(fastStartup);
+            trainingRun.add("--book-library.startup.exit-after-warm-up=true");
+            Process process = start(Collections.singletonList("-XX:ArchiveClassesAtExit=" + archive), trainingRun, freePort());
+            assertThat(process.waitFor(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).isTrue();
+            report("fast-startup with AppCDS", id, Arrays.asList("-XX:SharedArchiveFile=" + archive, "-Xshare:auto"), fastStartup);
+        } else {
+            log.info("Skipping the AppCDS variant, dynamic archives need JDK 13+");
+        }
+    }
+
+    private void report(String variant, Integer id, List<String> jvmArgs, List<String> appArgs) throws Exception {
+        List<Long> millis = new ArrayList<>();
+        for (int i = 0; i < STARTUPS; i++) {
+            millis.add(timeToFirstBook(id, jvmArgs, appArgs));
+        }
+        Collections.sort(millis);
+        log.info("{}: first GET /api/v1/book/{id} after {} ms (median of {}, min {} ms)",
+                variant, millis.get(millis.size() / 2), STARTUPS, millis.get(0));
+    }
+
+    private long timeToFirstBook(Integer id, List<String> jvmArgs, List<String> appArgs) throws Exception {
+        int port = freePort();
+        long start = System.nanoTime();
+        Process process = start(jvmArgs, appArgs, port);
+        try {
+            URL url = new URL("http://localhost:" + port + "/api/v1/book/" + id);
+            while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < TIMEOUT_MILLIS) {
+                if (isOk(url)) {
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+                assertThat(process.isAlive()).as("app exited, see its output above").isTrue();
+                Thread.sleep(10);
+            }
+            throw new AssertionError("No successful GET " + url + " within " + TIMEOUT_MILLIS + " ms");
+        } finally {
+            process.destroy();
+            process.waitFor(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Process start(List<String> jvmArgs, List<String> appArgs, int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(CLASSPATH);
+        command.add(SpringMssqlJsonApplication.class.getName());
+        command.add("--server.port=" + port);
+        command.add("--spring.datasource.url=" + mssql.getJdbcUrl());
+        command.add("--spring.datasource.username=" + mssql.getUsername());
+        command.add("--spring.datasource.password=" + mssql.getPassword());
+        // the table belongs to the context of this test
+        command.add("--spring.jpa.hibernate.ddl-auto=none");
+        command.add("--book-library.storage.migration-enabled=false");
+        command.addAll(appArgs);
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private static boolean isOk(URL url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                return connection.getResponseCode() == 200;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            // not listening yet
+            return false;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
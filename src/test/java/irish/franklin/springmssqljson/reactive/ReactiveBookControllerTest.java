@@ -0,0 +1,242 @@
+package irish.franklin.springmssqljson.reactive;
+
+import irish.franklin.springmssqljson.MsSqlTestContainerHelper;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("reactive")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "spring.main.web-application-type=reactive")
+@AutoConfigureWebTestClient
+class ReactiveBookControllerTest extends MsSqlTestContainerHelper {
+
+    Book englishBook = Book.builder()
+            .name("English Book")
+            .description("Test Book Description")
+            .language("English")
+            .build();
+
+    Book spanishBook = Book.builder()
+            .name("Spanish Test Book")
+            .description("Spanish Test Book Description")
+            .build();
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @BeforeAll
+    static void createTable() throws SQLException {
+        // without Hibernate the table has to exist before the schema initializer runs
+        try (Connection connection = mssql.createConnection("");
+             Statement statement = connection.createStatement()) {
+            statement.execute("IF OBJECT_ID('BOOK_LIBRARY', 'U') IS NULL"
+                    + " CREATE TABLE BOOK_LIBRARY (id INT NOT NULL PRIMARY KEY, book NVARCHAR(MAX) NOT NULL)");
+        }
+    }
+
+    @BeforeEach
+    void setup() {
+        databaseClient.sql("DELETE FROM BOOK_LIBRARY").then().block();
+    }
+
+    private Book saveBook(Book book) {
+        return webTestClient.post()
+                .uri("/api/v1/book")
+                .bodyValue(book)
+                .exchange()
+                .expectStatus()
+                .isCreated()
+                .expectBody(Book.class)
+                .returnResult()
+                .getResponseBody();
+    }
+
+    @Test
+    void shouldCreateAndGetBookById() {
+        Book savedBook = saveBook(englishBook);
+        assertThat(savedBook.getId()).isNotNull();
+
+        webTestClient.get()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectHeader()
+                .exists(HttpHeaders.ETAG)
+                .expectBody(Book.class)
+                .isEqualTo(savedBook);
+    }
+
+    @Test
+    void shouldReturn404StatusWhenFindBookByIdIsNotInDb() {
+        webTestClient.get()
+                .uri("/api/v1/book/-100")
+                .exchange()
+                .expectStatus()
+                .isNotFound();
+    }
+
+    @Test
+    void shouldReturnBooksByLanguageWithNextCursor() {
+        Book savedEnglishBook = saveBook(englishBook);
+        saveBook(spanishBook);
+        Book anotherEnglishBook = saveBook(Book.builder().name("Another English Book").description("Description").language("English").build());
+
+        webTestClient.get()
+                .uri("/api/v1/book?language=English&limit=1")
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectHeader()
+                .valueEquals("X-Next-Cursor", savedEnglishBook.getId().toString())
+                .expectBodyList(Book.class)
+                .containsExactly(savedEnglishBook);
+
+        webTestClient.get()
+                .uri("/api/v1/book?language=English&limit=1&after=" + savedEnglishBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectHeader()
+                .doesNotExist("X-Next-Cursor")
+                .expectBodyList(Book.class)
+                .containsExactly(anotherEnglishBook);
+    }
+
+    @Test
+    void shouldStreamBooksAsNewlineDelimitedJson() {
+        Book savedEnglishBook = saveBook(englishBook);
+        Book savedSpanishBook = saveBook(spanishBook);
+
+        List<Book> streamedBooks = webTestClient.get()
+                .uri("/api/v1/book")
+                .accept(MediaType.valueOf(ReactiveBookController.NDJSON))
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .returnResult(Book.class)
+                .getResponseBody()
+                .collectList()
+                .block();
+
+        assertThat(streamedBooks).containsExactly(savedEnglishBook, savedSpanishBook);
+    }
+
+    @Test
+    void shouldCreateBatchWithPerItemResults() {
+        webTestClient.post()
+                .uri("/api/v1/book/batch")
+                .bodyValue(Arrays.asList(englishBook, Book.builder().id(5).name("Book With Id").description("Description").build()))
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.MULTI_STATUS)
+                .expectBody()
+                .jsonPath("$[0].status").isEqualTo(201)
+                .jsonPath("$[0].book.id").isNumber()
+                .jsonPath("$[1].status").isEqualTo(400);
+    }
+
+    @Test
+    void shouldCreateBatchesSpanningSeveralIdBlocksWithoutReusingIds() throws JSONException {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < BookJson.ID_ALLOCATION_SIZE * 2 + 20; i++) {
+            books.add(Book.builder().name("Batch Book " + i).description("Batch Book Description").build());
+        }
+        JSONArray results = new JSONArray(webTestClient.post()
+                .uri("/api/v1/book/batch")
+                .bodyValue(books)
+                .exchange()
+                .expectStatus()
+                .isCreated()
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody());
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < results.length(); i++) {
+            assertThat(results.getJSONObject(i).getInt("status")).isEqualTo(201);
+            ids.add(results.getJSONObject(i).getJSONObject("book").getInt("id"));
+        }
+        assertThat(ids).hasSize(books.size());
+
+        // the ids left of the last block must not be ids the batch already used
+        assertThat(ids).doesNotContain(saveBook(englishBook).getId());
+    }
+
+    @Test
+    void shouldOnlyPatchBookWhenIfMatchHasItsCurrentETag() throws JSONException {
+        Book savedBook = saveBook(englishBook);
+        String eTag = webTestClient.get()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .exchange()
+                .returnResult(String.class)
+                .getResponseHeaders()
+                .getETag();
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .header(HttpHeaders.IF_MATCH, eTag)
+                .bodyValue(new JSONObject().put("language", "French").toString())
+                .exchange()
+                .expectStatus()
+                .isOk()
+                .expectBody()
+                .jsonPath("$.language").isEqualTo("French")
+                .jsonPath("$.name").isEqualTo(englishBook.getName());
+
+        webTestClient.patch()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .contentType(MediaType.valueOf("application/merge-patch+json"))
+                .header(HttpHeaders.IF_MATCH, eTag)
+                .bodyValue(new JSONObject().put("language", "German").toString())
+                .exchange()
+                .expectStatus()
+                .isEqualTo(HttpStatus.PRECONDITION_FAILED);
+    }
+
+    @Test
+    void deleteBookWithExistingBookIdReturns200ThenUnknownBookIdReturns404() {
+        Book savedBook = saveBook(englishBook);
+
+        webTestClient.delete()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .exchange()
+                .expectStatus()
+                .isOk();
+
+        webTestClient.delete()
+                .uri("/api/v1/book/" + savedBook.getId())
+                .exchange()
+                .expectStatus()
+                .isNotFound();
+    }
+}
@@ -0,0 +1,28 @@
+package irish.franklin.springmssqljson.reactive;
+
+import irish.franklin.springmssqljson.SearchConcurrencyBenchmark;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.sql.SQLException;
+
+@Tag("benchmark")
+@ActiveProfiles("reactive")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "spring.main.web-application-type=reactive")
+@AutoConfigureWebTestClient(timeout = "PT5M")
+class ReactiveSearchConcurrencyBenchmark extends SearchConcurrencyBenchmark {
+
+    @BeforeAll
+    static void createTable() throws SQLException {
+        ReactiveBookControllerTest.createTable();
+    }
+
+    @Override
+    protected String variant() {
+        return "WebFlux + R2DBC";
+    }
+}
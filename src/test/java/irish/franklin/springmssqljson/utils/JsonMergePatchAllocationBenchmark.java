@@ -0,0 +1,80 @@
+package irish.franklin.springmssqljson.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.fge.jsonpatch.mergepatch.JsonMergePatch;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the bytes allocated by one merge patch of a book with a large additionalProperties object,
+ * comparing {@link JsonMergePatchUtils} with the json-patch library it replaced. Run with {@code ./gradlew benchmark}.
+ */
+@Slf4j
+@Tag("benchmark")
+class JsonMergePatchAllocationBenchmark {
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 200;
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private BookJson bookWithAdditionalProperties(int size) {
+        ObjectNode additionalProperties = new ObjectMapper().createObjectNode();
+        for (int i = 0; i < size; i++) {
+            additionalProperties.put("property" + i, "value " + i);
+        }
+        return BookJson.builder()
+                .id(1)
+                .book(Book.builder()
+                        .name("Benchmark Book")
+                        .description("Benchmark Book Description")
+                        .additionalProperties(additionalProperties)
+                        .build())
+                .build();
+    }
+
+    private long allocatedBytesPerCall(Supplier<BookJson> patch) {
+        for (int i = 0; i < WARMUP; i++) {
+            patch.get();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            patch.get();
+        }
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 1_000, 10_000})
+    void allocatedBytesPerMergePatch(int additionalProperties) throws Exception {
+        BookJson bookJson = bookWithAdditionalProperties(additionalProperties);
+        JsonNode patch = new ObjectMapper().readTree("{\"book\":{\"additionalProperties\":{\"property0\":\"patched\"}}}");
+
+        long library = allocatedBytesPerCall(() -> {
+            try {
+                ObjectMapper mapper = new ObjectMapper();
+                JsonNode node = mapper.convertValue(bookJson, JsonNode.class);
+                return mapper.treeToValue(JsonMergePatch.fromJson(patch).apply(node), BookJson.class);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long inPlace = allocatedBytesPerCall(() -> JsonMergePatchUtils.mergePatch(bookJson, patch.deepCopy(), BookJson.class));
+
+        log.info("additionalProperties size {}: json-patch {} bytes, in place {} bytes per patch ({}% less)",
+                additionalProperties, library, inPlace, 100 - inPlace * 100 / library);
+        assertThat(inPlace).isLessThan(library);
+    }
+}
@@ -0,0 +1,98 @@
+package irish.franklin.springmssqljson.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fge.jsonpatch.mergepatch.JsonMergePatch;
+import com.vladmihalcea.hibernate.type.json.internal.JacksonUtil;
+import irish.franklin.springmssqljson.models.Book;
+import irish.franklin.springmssqljson.models.BookJson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JsonMergePatchUtilsTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private JsonNode json(String json) throws Exception {
+        return mapper.readTree(json.replace('\'', '"'));
+    }
+
+    private String library(String target, String patch) throws Exception {
+        return JsonMergePatch.fromJson(json(patch)).apply(json(target)).toString();
+    }
+
+    // the examples of RFC 7386 appendix A, followed by nested replacements and key order cases
+    static Stream<Arguments> mergePatchCases() {
+        return Stream.of(
+                Arguments.of("{'a':'b'}", "{'a':'c'}", "{'a':'c'}"),
+                Arguments.of("{'a':'b'}", "{'b':'c'}", "{'a':'b','b':'c'}"),
+                Arguments.of("{'a':'b'}", "{'a':null}", "{}"),
+                Arguments.of("{'a':'b','b':'c'}", "{'a':null}", "{'b':'c'}"),
+                Arguments.of("{'a':['b']}", "{'a':'c'}", "{'a':'c'}"),
+                Arguments.of("{'a':'c'}", "{'a':['b']}", "{'a':['b']}"),
+                Arguments.of("{'a':{'b':'c'}}", "{'a':{'b':'d','c':null}}", "{'a':{'b':'d'}}"),
+                Arguments.of("{'a':[{'b':'c'}]}", "{'a':[1]}", "{'a':[1]}"),
+                Arguments.of("['a','b']", "['c','d']", "['c','d']"),
+                Arguments.of("{'a':'b'}", "['c']", "['c']"),
+                Arguments.of("{'a':'foo'}", "null", "null"),
+                Arguments.of("{'a':'foo'}", "'bar'", "'bar'"),
+                Arguments.of("{'e':null}", "{'a':1}", "{'e':null,'a':1}"),
+                Arguments.of("[1,2]", "{'a':'b','c':null}", "{'a':'b'}"),
+                Arguments.of("{}", "{'a':{'bb':{'ccc':null}}}", "{'a':{'bb':{}}}"),
+                Arguments.of("{'a':'b'}", "{'a':{'b':{'c':null,'d':1}}}", "{'a':{'b':{'d':1}}}"),
+                Arguments.of("{'a':1,'b':2,'c':3}", "{'d':4,'b':null,'a':5}", "{'a':5,'c':3,'d':4}"),
+                Arguments.of("{'a':{'x':1},'b':2}", "{'a':{'y':{'z':null}}}", "{'a':{'x':1,'y':{}},'b':2}")
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("mergePatchCases")
+    void shouldMatchRfc7386AndJsonPatchLibrary(String target, String patch, String expected) throws Exception {
+        JsonNode result = JsonMergePatchUtils.mergePatch(json(target), json(patch));
+
+        assertThat(result).isEqualTo(json(expected));
+        assertThat(result.toString()).isEqualTo(library(target, patch));
+    }
+
+    @Test
+    void shouldMergePatchBookJsonLikeJsonPatchLibrary() throws Exception {
+        BookJson bookJson = BookJson.builder()
+                .id(1)
+                .book(Book.builder()
+                        .name("Test Book")
+                        .description("Test Book Description")
+                        .language("English")
+                        .additionalProperties(JacksonUtil.toJsonNode("{\"yearPublished\": 2020, \"tags\": [\"a\"]}"))
+                        .build())
+                .build();
+        JsonNode patch = json("{'book':{'language':null,'author':'Someone','additionalProperties':{'yearPublished':2021,'tags':null}}}");
+        BookJson expected = mapper.treeToValue(
+                JsonMergePatch.fromJson(patch).apply(mapper.valueToTree(bookJson)), BookJson.class);
+
+        BookJson patched = JsonMergePatchUtils.mergePatch(bookJson, patch, BookJson.class);
+
+        assertThat(patched).isEqualTo(expected);
+        assertThat(patched.getBook().getLanguage()).isNull();
+        assertThat(patched.getBook().getAdditionalProperties()).isEqualTo(json("{'yearPublished':2021}"));
+    }
+
+    @Test
+    void shouldThrowBadRequestWhenPatchedObjectIsInvalid() throws Exception {
+        BookJson bookJson = BookJson.builder()
+                .id(1)
+                .book(Book.builder().name("Test Book").description("Test Book Description").build())
+                .build();
+
+        assertThatThrownBy(() -> JsonMergePatchUtils.mergePatch(bookJson, json("{'book':{'name':null}}"), BookJson.class))
+                .isInstanceOf(ResponseStatusException.class);
+        assertThatThrownBy(() -> JsonMergePatchUtils.mergePatch(bookJson, json("{'book':{'unknown':1}}"), BookJson.class))
+                .isInstanceOf(ResponseStatusException.class);
+    }
+}